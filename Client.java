@@ -3,6 +3,13 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Scanner;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.awt.*;
 import javax.swing.*;
 
@@ -17,11 +24,32 @@ import javax.swing.*;
  */
 
 public class Client{
+    // stands in for a null response in the response queue, and marks the end of the stream
+    private static final Object NULL_RESPONSE = new Object();
+    private static final Object END_OF_STREAM = new Object();
+
     private Socket socket;
     private ObjectInputStream input;
     private ObjectOutputStream output;
     private User currentUser;
-    private boolean connected;
+    // the sync position of the last syncMessages, 0 before the first one of a login
+    private long messageSyncPosition;
+    private volatile boolean connected;
+    private byte codecVersion = WireCodec.SERIALIZATION;
+    // framed mode, used with the NioServer
+    private boolean framed;
+    private DataInputStream frameInput;
+    private OutputStream frameOutput;
+    // objects of the current command, sent together by the next read
+    private final ArrayList<Object> pendingRequest = new ArrayList<>();
+    private final Object writeLock = new Object();
+    // the reader thread puts untagged responses here and completes pipelined requests
+    private final LinkedBlockingQueue<Object> responses = new LinkedBlockingQueue<>();
+    private final ConcurrentHashMap<Long, CompletableFuture<Object[]>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private Thread readerThread;
+    // told about every message the server pushes, on the reader thread
+    private final CopyOnWriteArrayList<Consumer<MessagePush>> messageListeners = new CopyOnWriteArrayList<>();
 
     /**
      * Constructs a new Client instance.
@@ -49,7 +77,12 @@ public class Client{
             socket = new Socket(host, port);
             this.output = new ObjectOutputStream(socket.getOutputStream());
             this.input = new ObjectInputStream(socket.getInputStream());
+            // offer the newest codec, the server answers with the version to use
+            output.writeByte(WireCodec.VERSION);
+            output.flush();
+            codecVersion = WireCodec.negotiate(input.readByte());
             connected = true;
+            startReader();
             System.out.println("Connect successfully");
             return true;
         } catch (IOException e) {
@@ -58,6 +91,106 @@ public class Client{
         }
     }
 
+    /**
+     * Attempts to connect to a NioServer at the specified host and port.
+     * Every command and its arguments are sent together in one frame when the
+     * response is read, so the other methods work the same as with connect.
+     *
+     * @param host The server hostname or IP address
+     * @param port The server port number
+     * @return true if connection was successful, false otherwise
+     */
+    public boolean connectFramed(String host, int port) {
+        if (connected) {
+            System.out.println("Already connected to a server");
+            return false;
+        }
+
+        try {
+            socket = new Socket(host, port);
+            this.frameOutput = new BufferedOutputStream(socket.getOutputStream());
+            this.frameInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            framed = true;
+            connected = true;
+            startReader();
+            write("negotiateCodec");
+            write((int) WireCodec.VERSION);
+            Object answer = read();
+            codecVersion = answer instanceof Byte ? WireCodec.negotiate((Byte) answer) : WireCodec.SERIALIZATION;
+            System.out.println("Connect successfully");
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            disconnect();
+            System.out.println("Fail to connect to server: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Starts the thread that reads everything the server sends. Responses to pipelined
+     * requests complete their futures, pushed messages go to the message listeners and
+     * everything else is queued for read.
+     */
+    private void startReader() {
+        responses.clear();
+        readerThread = new Thread(this::readLoop, "client-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Reads from the server until the connection ends.
+     */
+    private void readLoop() {
+        IOException failure = null;
+        try {
+            while (true) {
+                if (framed) {
+                    for (Object value : FrameCodec.readFrame(frameInput)) {
+                        dispatch(value);
+                    }
+                } else {
+                    dispatch(input.readObject());
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (ClassNotFoundException e) {
+            failure = new IOException("Unknown class from server: " + e.getMessage());
+        } finally {
+            responses.add(END_OF_STREAM);
+            IOException cause = failure != null ? failure : new IOException("Connection closed");
+            for (CompletableFuture<Object[]> future : inFlight.values()) {
+                future.completeExceptionally(cause);
+            }
+            inFlight.clear();
+        }
+    }
+
+    /**
+     * Hands one object from the server to whoever is waiting for it.
+     *
+     * @param value the object read from the server
+     */
+    private void dispatch(Object value) {
+        if (value instanceof Response response) {
+            CompletableFuture<Object[]> future = inFlight.remove(response.getId());
+            if (future != null) {
+                future.complete(response.getValues());
+            }
+        } else if (value instanceof MessagePush push) {
+            for (Consumer<MessagePush> listener : messageListeners) {
+                try {
+                    listener.accept(push);
+                } catch (RuntimeException e) {
+                    System.out.println("Error handling pushed message: " + e.getMessage());
+                }
+            }
+        } else {
+            responses.add(value == null ? NULL_RESPONSE : value);
+        }
+    }
+
     /**
      * Disconnects from the server and closes all resources.
      *
@@ -77,6 +210,16 @@ public class Client{
             if (input != null) {
                 input.close();
             }
+            if (frameOutput != null) {
+                frameOutput.close();
+            }
+            if (frameInput != null) {
+                frameInput.close();
+            }
+            framed = false;
+            synchronized (writeLock) {
+                pendingRequest.clear();
+            }
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
@@ -96,6 +239,7 @@ public class Client{
     }
     /**
      * Reads an object from the server.
+     * The command written before is sent first, so its objects reach the server together.
      *
      * @return The object read from the server
      * @throws IOException If there is an error reading from the connection
@@ -105,23 +249,163 @@ public class Client{
         if (!connected) {
             throw new IOException("Not connected to server");
         }
-        return input.readObject();
+        sendPendingRequest();
+        Object value;
+        try {
+            value = responses.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the server");
+        }
+        if (value == END_OF_STREAM) {
+            responses.add(END_OF_STREAM); // keep failing later reads too
+            throw new IOException("Connection to server closed");
+        }
+        return value == NULL_RESPONSE ? null : value;
     }
 
     /**
      * Writes an object to the server.
+     * It is sent, with the rest of the command, by the next read.
      *
      * @param command The object to write to the server
      * @throws IOException If there is an error writing to the connection
      */
     public void write(Object command) throws IOException {
-        output.writeObject(command);
-        output.flush();
+        if (!connected) {
+            throw new IOException("Not connected to server");
+        }
+        synchronized (writeLock) {
+            pendingRequest.add(command);
+        }
+    }
+
+    /**
+     * Sends the objects written since the last read.
+     *
+     * @throws IOException If there is an error writing to the connection
+     */
+    private void sendPendingRequest() throws IOException {
+        synchronized (writeLock) {
+            if (pendingRequest.isEmpty()) {
+                return;
+            }
+            try {
+                if (framed) {
+                    FrameCodec.writeFrame(frameOutput, pendingRequest.toArray());
+                } else {
+                    for (Object value : pendingRequest) {
+                        output.writeObject(value);
+                    }
+                    output.flush();
+                }
+            } finally {
+                pendingRequest.clear();
+            }
+        }
+    }
+
+    /**
+     * Sends a pipelined request without waiting for the answers of earlier ones.
+     * The future completes with every object the command responded with, or
+     * exceptionally if the connection is lost first.
+     *
+     * @param command the command, as accepted by the server
+     * @param arguments the arguments of the command in the order it reads them
+     * @return the future response values
+     */
+    public CompletableFuture<Object[]> submit(String command, Object... arguments) {
+        CompletableFuture<Object[]> future = new CompletableFuture<>();
+        if (!connected) {
+            future.completeExceptionally(new IOException("Not connected to server"));
+            return future;
+        }
+        long id = nextRequestId.incrementAndGet();
+        inFlight.put(id, future);
+        try {
+            Request request = new Request(id, command, arguments);
+            synchronized (writeLock) {
+                if (framed) {
+                    FrameCodec.writeFrame(frameOutput, new Object[] {request});
+                } else {
+                    output.writeObject(request);
+                    output.flush();
+                }
+            }
+        } catch (IOException e) {
+            inFlight.remove(id);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Pipelined version of viewItems.
+     *
+     * @param limit The maximum number of items in the page
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @return the future page of items
+     */
+    public CompletableFuture<ItemPage> viewItemsAsync(int limit, String cursor) {
+        return submit("browseItems", limit, cursor).thenApply(values -> {
+            if (values.length < 2 || (values[1] != null && !(values[1] instanceof String))) {
+                throw new CompletionException(new IOException("Unexpected response from server"));
+            }
+            return new ItemPage(listingsFrom(values), (String) values[1]);
+        });
+    }
+
+    /**
+     * Pipelined version of searchItems.
+     *
+     * @param searchTerm The term to search for in item names
+     * @return the future list of matching items
+     */
+    public CompletableFuture<ArrayList<ItemListing>> searchItemsAsync(String searchTerm) {
+        return submit("search", searchTerm).thenApply(Client::listingsFrom);
+    }
+
+    /**
+     * Pipelined version of getMessageHistory.
+     *
+     * @return the future map of message partners to lists of messages
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<HashMap<String, ArrayList<String>>> getMessageHistoryAsync() {
+        return submit("getMessageHistory").thenApply(values -> {
+            if (values.length > 0 && values[0] instanceof HashMap<?, ?>) {
+                return (HashMap<String, ArrayList<String>>) values[0];
+            }
+            throw new CompletionException(new IOException("Unexpected response from server"));
+        });
+    }
+
+    /**
+     * Reads the item list out of the values of a pipelined response.
+     *
+     * @param values the response values
+     * @return the listings
+     */
+    private static ArrayList<ItemListing> listingsFrom(Object[] values) {
+        try {
+            ArrayList<ItemListing> listings = values.length > 0 ? toListings(values[0]) : null;
+            if (listings == null) {
+                throw new IOException("Unexpected response from server");
+            }
+            return listings;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
     }
 
     public static void main(String[] args) {
         Client client = new Client();
-        boolean connected = client.connect("localhost", 4242);
+        boolean connected;
+        if (args.length > 0 && args[0].equals("--nio")) {
+            connected = client.connectFramed("localhost", NioServer.DEFAULT_PORT);
+        } else {
+            connected = client.connect("localhost", 4242);
+        }
 
         if (!connected) {
             JOptionPane.showMessageDialog(null,
@@ -143,10 +427,10 @@ public class Client{
      *
      * @param sellerName The username of the seller
      * @param itemName The name of the item to buy
-     * @param price The price of the item
+     * @param price The price of the item in cents
      * @return true if the purchase was successful, false otherwise
      */
-    private boolean buyItem(String sellerName, String itemName, double price) {
+    private boolean buyItem(String sellerName, String itemName, long price) {
         try {
             write("buyItem");
             write(sellerName);
@@ -167,13 +451,38 @@ public class Client{
         }
     }
 
+    /**
+     * Attempts to purchase an item by its id.
+     *
+     * @param itemId The id of the item to buy
+     * @return true if the purchase was successful, false otherwise
+     */
+    private boolean buyItemById(long itemId) {
+        try {
+            write("buyItemById");
+            write(itemId);
+
+            String response = (String) read();
+            if (response.startsWith("Success")) {
+                System.out.println(response.substring(9)); // Remove "SUCCESS: " prefix
+                return true;
+            } else {
+                System.out.println(response);
+                return false;
+            }
+        } catch (Exception e) {
+            System.out.println("Error buying item: " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Adds money to the user's balance.
      *
-     * @param money The amount to add to the balance
+     * @param money The amount to add to the balance in cents
      * @return true if the operation was successful, false otherwise
      */
-    private boolean addBalance(double money) {
+    private boolean addBalance(long money) {
         if (money <= 0) {
             System.out.println("Amount must be positive");
             return false;
@@ -206,10 +515,10 @@ public class Client{
     /**
      * Withdraws money from the user's balance.
      *
-     * @param amount The amount to withdraw
+     * @param amount The amount to withdraw in cents
      * @return true if the withdrawal was successful, false otherwise
      */
-    public boolean withdrawBalance(double amount) {
+    public boolean withdrawBalance(long amount) {
         if (amount <= 0) {
             System.out.println("Withdrawal amount must be positive");
             return false;
@@ -330,6 +639,83 @@ public class Client{
         }
     }
 
+    /**
+     * Retrieves the messages sent in the current user's conversations since the last sync.
+     * The first sync after logging in returns the newest messages of every conversation.
+     *
+     * @param limit The maximum number of messages per conversation, the newest are kept
+     * @return the new messages of each conversation that has any, or null if the request failed
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<MessageBatch> syncMessages(int limit) {
+        try {
+            write("syncMessages");
+            write(messageSyncPosition);
+            write(limit);
+
+            Object response = read();
+            if (response instanceof ArrayList<?>) {
+                messageSyncPosition = (long) read();
+                return (ArrayList<MessageBatch>) response;
+            } else {
+                System.out.println("Error: Unexpected response from server: " + response);
+                return null;
+            }
+        } catch (Exception e) {
+            System.out.println("Error syncing messages: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Adds a listener told about every message sent to the current user while connected,
+     * as soon as the server pushes it. The listener runs on the reader thread, so it must
+     * not block and must not send commands to the server itself.
+     *
+     * @param listener the listener
+     */
+    public void addMessageListener(Consumer<MessagePush> listener) {
+        messageListeners.add(listener);
+    }
+
+    /**
+     * Returns the sync position of the last syncMessages.
+     *
+     * @return the position, 0 if there was no sync since logging in
+     */
+    public long getMessageSyncPosition() {
+        return messageSyncPosition;
+    }
+
+    /**
+     * Retrieves the messages of a conversation just before a sequence number, for
+     * scrolling back through it.
+     *
+     * @param partner The other user of the conversation
+     * @param beforeSeq The sequence number after the page, 0 for the newest messages
+     * @param limit The maximum number of messages in the page
+     * @return the page, or null if the request failed
+     */
+    public MessageBatch getConversationPage(String partner, int beforeSeq, int limit) {
+        try {
+            write("getConversationPage");
+            write(partner);
+            write(beforeSeq);
+            write(limit);
+
+            Object response = read();
+            if (response instanceof MessageBatch) {
+                return (MessageBatch) response;
+            } else {
+                System.out.println("Error: Unexpected response from server: " + response);
+                return null;
+            }
+        } catch (Exception e) {
+            System.out.println("Error retrieving conversation: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Sends a message to another user.
      *
@@ -357,6 +743,29 @@ public class Client{
 
     }
 
+    /**
+     * Turns an item list response into listings, whichever codec the server used.
+     *
+     * @param response the object the server answered with
+     * @return the listings, or null if the response is not an item list
+     * @throws IOException If the encoded payload is malformed
+     */
+    private static ArrayList<ItemListing> toListings(Object response) throws IOException {
+        if (response instanceof byte[]) {
+            return WireCodec.decodeListings((byte[]) response);
+        }
+        if (response instanceof ArrayList<?> list) {
+            ArrayList<ItemListing> listings = new ArrayList<>(list.size());
+            for (Object item : list) {
+                if (item instanceof Item) {
+                    listings.add(ItemListing.of((Item) item));
+                }
+            }
+            return listings;
+        }
+        return null;
+    }
+
     /**
      * Searches for items matching the given search term.
      *
@@ -364,14 +773,14 @@ public class Client{
      * @return A list of matching items
      * @throws IOException If there is an error communicating with the server
      */
-    public ArrayList<Item> searchItems(String searchTerm) throws IOException {
+    public ArrayList<ItemListing> searchItems(String searchTerm) throws IOException {
         try {
             write("search");
             write(searchTerm);
 
-            Object response = read();
-            if (response instanceof ArrayList) {
-                return (ArrayList<Item>) response;
+            ArrayList<ItemListing> listings = toListings(read());
+            if (listings != null) {
+                return listings;
             } else {
                 System.out.println("Error: Unexpected response from server");
                 return new ArrayList<>();
@@ -383,32 +792,62 @@ public class Client{
     }
 
     /**
-     * Retrieves all items available in the marketplace.
+     * Retrieves one page of the items in the marketplace, in the order they were posted.
      *
-     * @return A list of all items
+     * @param limit The maximum number of items in the page
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @return the page, empty if the request failed
      * @throws IOException If there is an error communicating with the server
      */
-    public ArrayList<Item> viewItems() throws IOException {
+    public ItemPage viewItems(int limit, String cursor) throws IOException {
         try {
-            write("viewItems");
+            write("browseItems");
+            write(limit);
+            write(cursor);
 
             Object response = read();
-            if (response instanceof ArrayList<?> list) {
-                // Cast with proper type checking
-                if (!list.isEmpty() && list.getFirst() instanceof Item) {
-                    return (ArrayList<Item>) list;
-                } else {
-                    System.out.println("Error: Received empty or non-Item list");
-                    return new ArrayList<>();
-                }
+            ArrayList<ItemListing> listings = toListings(response);
+            if (listings != null) {
+                return new ItemPage(listings, (String) read());
             } else {
                 System.out.println("Error: Unexpected response from server: " + response);
-                return new ArrayList<>();
+                return new ItemPage(new ArrayList<>(), null);
             }
         } catch (Exception e) {
             System.out.println("Error retrieving items: " + e.getMessage());
             e.printStackTrace();
-            return new ArrayList<>();
+            return new ItemPage(new ArrayList<>(), null);
+        }
+    }
+
+    /**
+     * Retrieves one page of the items for sale in a price range, ordered by price.
+     *
+     * @param min The lowest price in cents
+     * @param max The highest price in cents
+     * @param cheapestFirst true to sort by increasing price, false for decreasing
+     * @param limit The maximum number of items in the page
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @return the page, or null if the request failed
+     */
+    public ItemPage searchByPriceRange(long min, long max, boolean cheapestFirst, int limit, String cursor) {
+        try {
+            write("searchByPriceRange");
+            write(min);
+            write(max);
+            write(cheapestFirst ? "asc" : "desc");
+            write(limit);
+            write(cursor);
+
+            ArrayList<ItemListing> listings = toListings(read());
+            if (listings == null) {
+                System.out.println("Error: Unexpected response from server");
+                return null;
+            }
+            return new ItemPage(listings, (String) read());
+        } catch (Exception e) {
+            System.out.println("Error searching by price: " + e.getMessage());
+            return null;
         }
     }
 
@@ -416,10 +855,10 @@ public class Client{
      * Posts a new item for sale in the marketplace.
      *
      * @param itemName The name of the item
-     * @param price The price of the item
+     * @param price The price of the item in cents
      * @param description A description of the item
      */
-    public boolean postItem(String itemName, double price, String description) {
+    public boolean postItem(String itemName, long price, String description) {
         try {
             write("postItem");
             write(itemName);
@@ -482,9 +921,13 @@ public class Client{
             String response = (String) read();
             if (response.equals("Success")) {
                 Object userObj = read();
+                if (userObj instanceof byte[]) {
+                    userObj = WireCodec.decodeUser((byte[]) userObj);
+                }
                 //check if userObj is a user (it should be the currentUser that server sends us)
                 if (userObj instanceof User) {
                     currentUser = (User) userObj;
+                    messageSyncPosition = 0;
                     System.out.println("Login successful! Welcome, " + currentUser.getName());
                     return true;
                 } else {
@@ -510,10 +953,10 @@ public class Client{
      * @param username The username for the new account
      * @param email The email address for the new account
      * @param newPassword The password for the new account
-     * @param balance The initial balance for the new account
+     * @param balance The initial balance for the new account in cents
      * @return true if account creation was successful, false otherwise
      */
-    public boolean createAccount(String username, String email, String newPassword, double balance) {
+    public boolean createAccount(String username, String email, String newPassword, long balance) {
         try {
             write("createAccount");
             write(username);
@@ -560,6 +1003,11 @@ public class Client{
     }
 
     static class ClientGUI {
+        // items fetched per page while scrolling through all items
+        private static final int VIEW_ITEMS_PAGE_SIZE = 50;
+        // messages fetched per conversation when syncing or scrolling back
+        private static final int MESSAGES_PAGE_SIZE = 50;
+
         private final Client client;
         private JFrame mainFrame;
         private JPanel currentPanel;
@@ -717,7 +1165,7 @@ public class Client{
                         return;
                     }
 
-                    double balance = Double.parseDouble(balanceText);
+                    long balance = Money.parse(balanceText);
                     if (balance < 0) {
                         JOptionPane.showMessageDialog(mainFrame, "Balance cannot be negative.");
                         return;
@@ -865,7 +1313,7 @@ public class Client{
             postButton.addActionListener(e -> {
                 try {
                     String name = nameField.getText();
-                    double price = Double.parseDouble(priceField.getText());
+                    long price = Money.parse(priceField.getText());
                     String description = descriptionArea.getText();
                     if (client.postItem(name, price, description)) {
                         JOptionPane.showMessageDialog(mainFrame, "Item posted successfully!");
@@ -908,15 +1356,15 @@ public class Client{
             searchButton.addActionListener(e -> {
                 try {
                     String searchTerm = searchField.getText();
-                    ArrayList<Item> items = client.searchItems(searchTerm);
+                    ArrayList<ItemListing> items = client.searchItems(searchTerm);
                     resultsArea.setText("");
                     if (items.isEmpty()) {
                         resultsArea.append("No items found.\n");
                     } else {
                         for (int i = 0; i < items.size(); i++) {
-                            Item item = items.get(i);
-                            resultsArea.append((i + 1) + ". " + item.getItemName() + " - $" + item.getPrice() +
-                                    " - Seller: " + item.getOwner().getName() + "\n");
+                            ItemListing item = items.get(i);
+                            resultsArea.append((i + 1) + ". " + item.getItemName() + " - $" + Money.format(item.getPrice()) +
+                                    " - Seller: " + item.getSellerName() + "\n");
                             resultsArea.append("   Description: " + item.getDescription() + "\n");
 
                             // Add buy button for each item
@@ -928,13 +1376,13 @@ public class Client{
                                 }
 
                                 int confirm = JOptionPane.showConfirmDialog(mainFrame,
-                                        "Are you sure you want to buy " + item.getItemName() + " for $" + item.getPrice() + "?",
+                                        "Are you sure you want to buy " + item.getItemName() + " for $" + Money.format(item.getPrice()) + "?",
                                         "Confirm Purchase",
                                         JOptionPane.YES_NO_OPTION);
 
                                 if (confirm == JOptionPane.YES_OPTION) {
                                     try {
-                                        if (client.buyItem(item.getOwner().getName(), item.getItemName(), item.getPrice())) {
+                                        if (client.buyItemById(item.getId())) {
                                             JOptionPane.showMessageDialog(mainFrame, "Purchase successful!");
                                             // Refresh the search results
                                             searchButton.doClick();
@@ -975,20 +1423,42 @@ public class Client{
             buttonPanel.add(refreshButton);
             buttonPanel.add(backButton);
 
-            refreshButton.addActionListener(e -> {
+            // cursor of the next page to load, null once the last page has been shown
+            String[] nextCursor = {null};
+            boolean[] loading = {false};
+
+            Runnable loadNextPage = () -> {
+                loading[0] = true;
                 try {
-                    ArrayList<Item> items = client.viewItems();
-                    itemsArea.setText("");
-                    if (items.isEmpty()) {
+                    ItemPage page = client.viewItems(VIEW_ITEMS_PAGE_SIZE, nextCursor[0]);
+                    nextCursor[0] = page.getNextCursor();
+                    if (page.getListings().isEmpty() && itemsArea.getText().isEmpty()) {
                         itemsArea.append("No items found.\n");
-                    } else {
-                        for (Item item : items) {
-                            itemsArea.append(item.getItemName() + " - $" + item.getPrice() +
-                                    " - " + item.getDescription() + " - " + item.isForSale() + "\n\n");
-                        }
+                    }
+                    for (ItemListing item : page.getListings()) {
+                        itemsArea.append(item.getItemName() + " - $" + Money.format(item.getPrice()) +
+                                " - " + item.getDescription() + " - " + item.isForSale() + "\n\n");
                     }
                 } catch (IOException ex) {
+                    nextCursor[0] = null;
                     JOptionPane.showMessageDialog(mainFrame, "Error viewing items: " + ex.getMessage());
+                } finally {
+                    loading[0] = false;
+                }
+            };
+
+            refreshButton.addActionListener(e -> {
+                itemsArea.setText("");
+                nextCursor[0] = null;
+                loadNextPage.run();
+            });
+
+            // load the next page when the user scrolls close to the bottom
+            scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+                JScrollBar bar = scrollPane.getVerticalScrollBar();
+                boolean nearBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - bar.getVisibleAmount() / 2;
+                if (nearBottom && nextCursor[0] != null && !loading[0] && !e.getValueIsAdjusting()) {
+                    SwingUtilities.invokeLater(loadNextPage);
                 }
             });
 
@@ -1058,24 +1528,73 @@ public class Client{
 
             JPanel buttonPanel = new JPanel(new FlowLayout());
             JButton refreshButton = new JButton("Refresh");
+            JButton olderButton = new JButton("Load Older");
             JButton backButton = new JButton("Back to Menu");
             buttonPanel.add(refreshButton);
+            buttonPanel.add(olderButton);
             buttonPanel.add(backButton);
 
-            refreshButton.addActionListener(e -> {
-                HashMap<String, ArrayList<String>> messages = client.getMessageHistory();
+            // the messages shown of each conversation, merged from syncs and older pages
+            HashMap<String, MessageBatch> conversations = new HashMap<>();
+            Runnable showMessages = () -> {
                 messagesArea.setText("");
-                if (messages.isEmpty()) {
+                if (conversations.isEmpty()) {
                     messagesArea.append("No messages.\n");
+                }
+                for (MessageBatch conversation : conversations.values()) {
+                    messagesArea.append("- " + conversation.getPartner() + ":\n");
+                    if (conversation.getFirstSeq() > 1) {
+                        messagesArea.append("  ...\n");
+                    }
+                    for (String msg : conversation.getMessages()) {
+                        messagesArea.append("  " + msg + "\n");
+                    }
+                    messagesArea.append("\n");
+                }
+            };
+
+            Runnable refresh = () -> {
+                if (client.getMessageSyncPosition() == 0) {
+                    conversations.clear();
+                }
+                ArrayList<MessageBatch> batches = client.syncMessages(MESSAGES_PAGE_SIZE);
+                if (batches != null) {
+                    for (MessageBatch batch : batches) {
+                        MessageBatch merged = merge(conversations.get(batch.getPartner()), batch);
+                        // the newest messages are kept when older ones are missing in between
+                        conversations.put(batch.getPartner(), merged != null ? merged : batch);
+                    }
+                }
+                showMessages.run();
+            };
+            refreshButton.addActionListener(e -> refresh.run());
+
+            // pushed messages are shown right away; one that does not continue what is shown
+            // means something was missed, so the view syncs instead
+            client.addMessageListener(push -> SwingUtilities.invokeLater(() -> {
+                MessageBatch shown = conversations.get(push.getSender());
+                MessageBatch merged = shown != null ? merge(shown, push.toBatch())
+                        : push.getSeq() == 1 ? push.toBatch() : null;
+                if (client.getMessageSyncPosition() != 0 && merged != null) {
+                    conversations.put(push.getSender(), merged);
+                    showMessages.run();
                 } else {
-                    for (String partner : messages.keySet()) {
-                        messagesArea.append("- " + partner + ":\n");
-                        for (String msg : messages.get(partner)) {
-                            messagesArea.append("  " + msg + "\n");
+                    refresh.run();
+                }
+            }));
+
+            olderButton.addActionListener(e -> {
+                for (MessageBatch conversation : new ArrayList<>(conversations.values())) {
+                    if (conversation.getFirstSeq() > 1) {
+                        MessageBatch page = client.getConversationPage(conversation.getPartner(),
+                                conversation.getFirstSeq(), MESSAGES_PAGE_SIZE);
+                        MessageBatch merged = page == null ? null : merge(conversation, page);
+                        if (merged != null) {
+                            conversations.put(conversation.getPartner(), merged);
                         }
-                        messagesArea.append("\n");
                     }
                 }
+                showMessages.run();
             });
 
             backButton.addActionListener(e -> showMainMenuPanel());
@@ -1086,6 +1605,31 @@ public class Client{
             return panel;
         }
 
+        /**
+         * Joins the messages of a conversation already shown with newly fetched ones, which
+         * may overlap them, using their sequence numbers.
+         *
+         * @param shown the messages shown so far, or null
+         * @param batch the fetched messages
+         * @return the messages to show, or null if a gap would be left between them
+         */
+        private static MessageBatch merge(MessageBatch shown, MessageBatch batch) {
+            if (shown == null) {
+                return batch;
+            }
+            if (batch.getFirstSeq() > shown.getLastSeq() + 1 || batch.getLastSeq() + 1 < shown.getFirstSeq()) {
+                return null;
+            }
+            int first = Math.min(shown.getFirstSeq(), batch.getFirstSeq());
+            int last = Math.max(shown.getLastSeq(), batch.getLastSeq());
+            ArrayList<String> messages = new ArrayList<>(last - first + 1);
+            for (int seq = first; seq <= last; seq++) {
+                MessageBatch from = seq >= batch.getFirstSeq() && seq <= batch.getLastSeq() ? batch : shown;
+                messages.add(from.getMessages().get(seq - from.getFirstSeq()));
+            }
+            return new MessageBatch(shown.getPartner(), first, messages);
+        }
+
         private JPanel createProfilePanel() {
             JPanel panel = new JPanel(new GridBagLayout());
             GridBagConstraints gbc = new GridBagConstraints();
@@ -1162,7 +1706,7 @@ public class Client{
 
             JLabel balanceLabel;
             if (client.currentUser != null) {
-                balanceLabel = new JLabel("Current Balance: $" + client.currentUser.getBalance());
+                balanceLabel = new JLabel("Current Balance: $" + Money.format(client.currentUser.getBalance()));
             } else {
                 balanceLabel = new JLabel("Please log in to view your balance");
             }
@@ -1180,9 +1724,9 @@ public class Client{
                     String amountStr = JOptionPane.showInputDialog(mainFrame, "Enter amount to add:");
                     if (amountStr != null && !amountStr.isEmpty()) {
                         try {
-                            double amount = Double.parseDouble(amountStr);
+                            long amount = Money.parse(amountStr);
                             if (client.addBalance(amount)) {
-                                balanceLabel.setText("Current Balance: $" + client.currentUser.getBalance());
+                                balanceLabel.setText("Current Balance: $" + Money.format(client.currentUser.getBalance()));
                                 JOptionPane.showMessageDialog(mainFrame, "Balance updated successfully!");
                             }
                         } catch (NumberFormatException ex) {
@@ -1198,9 +1742,9 @@ public class Client{
                     String amountStr = JOptionPane.showInputDialog(mainFrame, "Enter amount to withdraw:");
                     if (amountStr != null && !amountStr.isEmpty()) {
                         try {
-                            double amount = Double.parseDouble(amountStr);
+                            long amount = Money.parse(amountStr);
                             if (client.withdrawBalance(amount)) {
-                                balanceLabel.setText("Current Balance: $" + client.currentUser.getBalance());
+                                balanceLabel.setText("Current Balance: $" + Money.format(client.currentUser.getBalance()));
                                 JOptionPane.showMessageDialog(mainFrame, "Balance updated successfully!");
                             }
                         } catch (NumberFormatException ex) {
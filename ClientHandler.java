@@ -1,7 +1,11 @@
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  *
@@ -14,15 +18,33 @@ import java.util.HashMap;
 
 
 public class ClientHandler implements Runnable {
-    // use to handle all clients
-    public static ArrayList<ClientHandler> clientHandlers = new ArrayList<>();
+    // the open connections and the users logged in on them, used to close them all and to push messages
+    public static final SessionRegistry sessions = new SessionRegistry();
+    // pushes waiting for a slow client beyond this are dropped, the client catches up with syncMessages
+    private static final int MAX_QUEUED_PUSHES = 64;
+    // commands whose changes may wait for the next coalesced flush, all others are synced
+    private static final Map<String, Database.Durability> DURABILITY = Map.of(
+            "changeUsername", Database.Durability.COALESCED,
+            "changePassword", Database.Durability.COALESCED,
+            "changeEmail", Database.Durability.COALESCED);
     private Socket socket;
     private ObjectInputStream input;
     private ObjectOutputStream output;
     User currentUser;
+    private volatile boolean closed;
+    private byte codecVersion = WireCodec.SERIALIZATION;
     private final Database database;
     private final MessageDatabase messageDatabase;
-    private final Object gatekeeper = new Object();
+    // set while a framed or pipelined request is processed, see execute
+    private Object[] requestArguments;
+    private int requestArgumentIndex;
+    private ArrayList<Object> requestResponses;
+    // where pushes go on a connection not owned by this handler, see setPushSink
+    private volatile Consumer<Object> pushSink;
+    // pushes waiting to be written to the stream, guarded by itself
+    private final ArrayDeque<Object> pushes = new ArrayDeque<>();
+    private boolean pushing;
+
     /**
      * Constructs a new ClientHandler to manage a client connection.
      * Sets up the input and output streams and adds this handler to the list of active handlers.
@@ -38,23 +60,105 @@ public class ClientHandler implements Runnable {
             this.socket = socket;
             this.output = new ObjectOutputStream(socket.getOutputStream());
             this.input = new ObjectInputStream(socket.getInputStream());
-            // use synchronize to prevent from race conditions
-            synchronized (gatekeeper) {
-                clientHandlers.add(this);
-                System.out.println("New client connected. Total clients: " + clientHandlers.size());
-            }
+            // the client offers the highest codec version it knows, answer with the one to use
+            codecVersion = WireCodec.negotiate(input.readByte());
+            output.writeByte(codecVersion);
+            output.flush();
         } catch (IOException e) {
             closeEverything(socket, output, input);
         }
     }
 
+    /**
+     * Constructs a ClientHandler for a connection that is not owned by this handler,
+     * such as one served by the NioServer. Requests are passed in with handleFrame.
+     *
+     * @param database The user and item database
+     * @param messageDatabase The message database
+     */
+    public ClientHandler(Database database, MessageDatabase messageDatabase) {
+        this.database = database;
+        this.messageDatabase = messageDatabase;
+    }
+
+    /**
+     * Removes this ClientHandler and the session of its user from the session registry.
+     */
+    public void removeClientHandler() {
+        sessions.disconnected(this, currentUser == null ? null : currentUser.getName());
+    }
+
+    /**
+     * Makes pushes go to a sink instead of the object stream, for a connection served by
+     * the NioServer.
+     *
+     * @param sink called with every object to push, from the thread that pushes it; it must not block
+     */
+    public void setPushSink(Consumer<Object> sink) {
+        this.pushSink = sink;
+    }
 
     /**
-     * Removes this ClientHandler from the list of active handlers.
-     * This method is synchronized to prevent concurrent modification issues.
+     * Sends an object to the client without being asked, such as a MessagePush. It is
+     * written by another thread between the responses to the client's commands, so the
+     * caller never waits for a slow client; when too many pushes are waiting, it is dropped.
+     *
+     * @param notification the object to push
      */
-    public synchronized void removeClientHandler() {
-        clientHandlers.remove(this);
+    public void push(Object notification) {
+        Consumer<Object> sink = pushSink;
+        if (sink != null) {
+            sink.accept(notification);
+            return;
+        }
+        synchronized (pushes) {
+            if (closed || output == null || pushes.size() >= MAX_QUEUED_PUSHES) {
+                return;
+            }
+            pushes.add(notification);
+            if (pushing) {
+                return;
+            }
+            pushing = true;
+        }
+        Thread.startVirtualThread(this::writePushes);
+    }
+
+    /**
+     * Writes the queued pushes to the stream in order until the queue is empty.
+     */
+    private void writePushes() {
+        while (true) {
+            Object notification;
+            synchronized (pushes) {
+                notification = pushes.poll();
+                if (notification == null) {
+                    pushing = false;
+                    return;
+                }
+            }
+            try {
+                synchronized (output) {
+                    output.writeObject(notification);
+                    output.flush();
+                }
+            } catch (IOException e) {
+                // the connection is closing, its own thread notices and cleans up
+                synchronized (pushes) {
+                    pushes.clear();
+                    pushing = false;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes this client connection and releases its resources.
+     * Used by the server to end open connections when it shuts down.
+     */
+    public void close() {
+        closeEverything(socket, output, input);
     }
 
     /**
@@ -65,17 +169,21 @@ public class ClientHandler implements Runnable {
      * @param output The output stream to close
      * @param input The input stream to close
      */
-    private void closeEverything(Socket socket, ObjectOutputStream output, ObjectInputStream input) {
+    private synchronized void closeEverything(Socket socket, ObjectOutputStream output, ObjectInputStream input) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        //remove the clientHandler and its session from the registry
+        removeClientHandler();
         // Log out user if they're logged in
         if (currentUser != null) {
             database.logOut(currentUser);
             currentUser = null;
         }
-        //remove the clientHandler from the static list
-        removeClientHandler();
         //close everything
         try {
-            if (output != null) {
+            if (output != null && socket != null && !socket.isClosed()) {
                 output.flush();
                 output.close();
             }
@@ -96,6 +204,11 @@ public class ClientHandler implements Runnable {
      */
     @Override
     public void run() {
+        if (input == null) {
+            return; // the streams could not be set up, the connection is already closed
+        }
+        // registered here rather than in the constructor, so no push reaches a half-built handler
+        System.out.println("New client connected. Total clients: " + sessions.connected(this));
         try {
             // Process client commands until disconnect
             while (socket.isConnected()) {
@@ -105,12 +218,147 @@ public class ClientHandler implements Runnable {
                 if (commandObj instanceof String) {
                     String command = (String) commandObj;
                     processCommand(command);
+                } else if (commandObj instanceof Request) {
+                    Response response = handleRequest((Request) commandObj);
+                    synchronized (output) {
+                        output.writeObject(response);
+                        output.flush();
+                    }
                 }
             }
         } catch (IOException e) {
             System.out.println("Client disconnected: " + e.getMessage());
         } catch (ClassNotFoundException e) {
             System.out.println("Error reading command: " + e.getMessage());
+        } finally {
+            closeEverything(socket, output, input);
+        }
+    }
+
+    /**
+     * Processes one framed request and returns everything the command responded with.
+     * The frame either holds the command followed by its arguments, in the order the
+     * blocking protocol would have sent them, or a single pipelined Request.
+     * Not thread safe, frames of one connection must be handled one at a time.
+     *
+     * @param frame the values of the frame
+     * @return the responses, in the order they would have been written to the stream
+     * @throws IOException If the frame is malformed
+     */
+    public ArrayList<Object> handleFrame(Object[] frame) throws IOException {
+        if (frame.length == 1 && frame[0] instanceof Request) {
+            ArrayList<Object> responses = new ArrayList<>(1);
+            responses.add(handleRequest((Request) frame[0]));
+            return responses;
+        }
+        if (frame.length == 0 || !(frame[0] instanceof String)) {
+            throw new IOException("Frame does not start with a command");
+        }
+        return execute((String) frame[0], Arrays.copyOfRange(frame, 1, frame.length));
+    }
+
+    /**
+     * Processes a pipelined request and tags everything the command responded with
+     * with the id of the request.
+     *
+     * @param request the request
+     * @return the response to send back
+     * @throws IOException If the request has no command
+     */
+    public Response handleRequest(Request request) throws IOException {
+        if (request.getCommand() == null) {
+            throw new IOException("Request " + request.getId() + " has no command");
+        }
+        Object[] arguments = request.getArguments() == null ? new Object[0] : request.getArguments();
+        return new Response(request.getId(), execute(request.getCommand(), arguments).toArray());
+    }
+
+    /**
+     * Runs a command with the given arguments and collects its responses instead of
+     * writing them to the stream.
+     *
+     * @param command the command
+     * @param arguments the arguments of the command
+     * @return the responses of the command
+     * @throws IOException If the command fails to respond
+     */
+    private ArrayList<Object> execute(String command, Object[] arguments) throws IOException {
+        requestArguments = arguments;
+        requestArgumentIndex = 0;
+        requestResponses = new ArrayList<>();
+        try {
+            processCommand(command);
+            return requestResponses;
+        } finally {
+            requestArguments = null;
+            requestResponses = null;
+        }
+    }
+
+    /**
+     * Reads the next argument of the current command, either from the
+     * current request or from the object stream.
+     *
+     * @return the next argument
+     * @throws IOException If there is an error in communication or the request has no more arguments
+     * @throws ClassNotFoundException If there is an error deserializing objects
+     */
+    private Object readArgument() throws IOException, ClassNotFoundException {
+        if (requestArguments != null) {
+            if (requestArgumentIndex >= requestArguments.length) {
+                throw new IOException("Missing argument");
+            }
+            return requestArguments[requestArgumentIndex++];
+        }
+        return input.readObject();
+    }
+
+    /**
+     * Reads an amount of money. Current clients send a Long in cents, older ones a
+     * Double in dollars.
+     *
+     * @return the amount in cents
+     * @throws IOException If there is an error in communication or the argument is not a number
+     * @throws ClassNotFoundException If there is an error deserializing objects
+     */
+    private long readMoney() throws IOException, ClassNotFoundException {
+        Object value = readArgument();
+        if (value instanceof Long cents) {
+            return cents;
+        }
+        if (value instanceof Double dollars) {
+            return Money.fromDollars(dollars);
+        }
+        throw new IOException("Expected an amount but got " + value);
+    }
+
+    /**
+     * Sends a response object to the client, or collects it when a request is being handled.
+     *
+     * @param response the object to send
+     * @throws IOException If there is an error in communication
+     */
+    private void respond(Object response) throws IOException {
+        if (requestResponses != null) {
+            requestResponses.add(response);
+        } else {
+            // pushes are written to the same stream by other threads
+            synchronized (output) {
+                output.writeObject(response);
+            }
+        }
+    }
+
+    /**
+     * Flushes the responses written so far. Collected responses are sent by the caller of execute.
+     *
+     * @throws IOException If there is an error in communication
+     */
+    private void flushResponses() throws IOException {
+        if (requestResponses == null) {
+            synchronized (output) {
+                output.flush();
+            }
         }
     }
 
@@ -144,15 +392,30 @@ public class ClientHandler implements Runnable {
                 case "viewItems":
                     handleViewItems();
                     break;
+                case "browseItems":
+                    handleBrowseItems();
+                    break;
+                case "searchByPriceRange":
+                    handleSearchByPriceRange();
+                    break;
                 case "sendMessage":
                     handleSendMessage();
                     break;
                 case "getMessageHistory":
                     handleGetMessageHistory();
                     break;
+                case "syncMessages":
+                    handleSyncMessages();
+                    break;
+                case "getConversationPage":
+                    handleGetConversationPage();
+                    break;
                 case "buyItem":
                     handleBuyItem();
                     break;
+                case "buyItemById":
+                    handleBuyItemById();
+                    break;
                 case "changeUsername":
                     handleChangeUsername();
                     break;
@@ -171,14 +434,45 @@ public class ClientHandler implements Runnable {
                 case "addBalance":
                     handleAddBalance();
                     break;
+                case "negotiateCodec":
+                    handleNegotiateCodec();
+                    break;
                 default:
-                    output.writeObject("ERROR: Unknown command " + command);
-                    output.flush();
+                    respond("ERROR: Unknown command " + command);
+                    flushResponses();
             }
         } catch (Exception e) {
             System.out.println("Error processing command: " + e.getMessage());
-            output.writeObject("ERROR: " + e.getMessage());
-            output.flush();
+            respond("ERROR: " + e.getMessage());
+            flushResponses();
+        }
+    }
+
+    /**
+     * Handles the negotiateCodec command from the client.
+     * Framed connections have no handshake, so they agree on the codec version with this command.
+     *
+     * @throws IOException If there is an error in communication
+     * @throws ClassNotFoundException If there is an error deserializing objects
+     */
+    public void handleNegotiateCodec() throws IOException, ClassNotFoundException {
+        int offered = (int) readArgument();
+        codecVersion = WireCodec.negotiate(offered);
+        respond(codecVersion);
+        flushResponses();
+    }
+
+    /**
+     * Sends a list of items in the codec agreed on with the client.
+     *
+     * @param items the items to send
+     * @throws IOException If there is an error in communication
+     */
+    private void respondItems(ArrayList<Item> items) throws IOException {
+        if (codecVersion >= WireCodec.VERSION) {
+            respond(WireCodec.encodeListings(items, codecVersion));
+        } else {
+            respond(items);
         }
     }
 
@@ -190,21 +484,20 @@ public class ClientHandler implements Runnable {
      * @throws ClassNotFoundException If there is an error deserializing objects
      */
     public void handleAddBalance() throws IOException, ClassNotFoundException {
-        double amount = (double) input.readObject();
+        long amount = readMoney();
 
         // Check if amount is valid
         if (amount <= 0) {
-            output.writeObject("Failure: Amount must be positive");
-            output.flush();
+            respond("Failure: Amount must be positive");
+            flushResponses();
             return;
         }
 
         // Update balance
-        currentUser.addBalance(amount);
-        database.writeToFile(); // Save changes
+        long balance = database.addBalance(currentUser, amount);
 
-        output.writeObject("Success: Added $" + amount + ". New balance: $" + currentUser.getBalance());
-        output.flush();
+        respond("Success: Added $" + Money.format(amount) + ". New balance: $" + Money.format(balance));
+        flushResponses();
     }
 
 
@@ -216,28 +509,27 @@ public class ClientHandler implements Runnable {
      * @throws ClassNotFoundException If there is an error deserializing objects
      */
     public void handleWithdrawBalance() throws IOException, ClassNotFoundException {
-        double amount = (double) input.readObject();
+        long amount = readMoney();
 
         // Check if withdrawal amount is valid
         if (amount <= 0) {
-            output.writeObject("Failure: Withdrawal amount must be positive");
-            output.flush();
+            respond("Failure: Withdrawal amount must be positive");
+            flushResponses();
             return;
         }
 
-        // Check if user has sufficient balance
-        if (currentUser.getBalance() < amount) {
-            output.writeObject("Failure: Insufficient balance");
-            output.flush();
+        // Check the balance and update it in one step, so two withdrawals cannot both pass
+        long balance;
+        try {
+            balance = database.withdrawBalance(currentUser, amount);
+        } catch (InvalidAccountOperationException e) {
+            respond("Failure: " + e.getMessage());
+            flushResponses();
             return;
         }
 
-        // Update balance
-        currentUser.setBalance(currentUser.getBalance() - amount);
-        database.writeToFile(); // Save changes
-
-        output.writeObject("Success: Withdrew $" + amount + ". New balance: $" + currentUser.getBalance());
-        output.flush();
+        respond("Success: Withdrew $" + Money.format(amount) + ". New balance: $" + Money.format(balance));
+        flushResponses();
     }
 
     /**
@@ -248,8 +540,8 @@ public class ClientHandler implements Runnable {
      * @throws ClassNotFoundException If there is an error deserializing objects
      */
     public void handleLogin() throws IOException, ClassNotFoundException {
-        String emailOrUsername = (String) input.readObject();
-        String password = (String) input.readObject();
+        String emailOrUsername = (String) readArgument();
+        String password = (String) readArgument();
         try {
             boolean success = database.login(emailOrUsername, password);
             if (success) {
@@ -259,17 +551,22 @@ public class ClientHandler implements Runnable {
                 } else {
                     currentUser = database.findByUsername(emailOrUsername);
                 }
-                output.writeObject("Success");
-                output.writeObject(currentUser);
-                output.flush();
+                sessions.loggedIn(currentUser.getName(), this);
+                respond("Success");
+                if (codecVersion >= WireCodec.VERSION) {
+                    respond(WireCodec.encodeUser(currentUser, codecVersion));
+                } else {
+                    respond(currentUser);
+                }
+                flushResponses();
             } else {
-                output.writeObject("FAILURE: Login failed");
-                output.flush();
+                respond("FAILURE: Login failed");
+                flushResponses();
             }
         } catch (InvalidAccountOperationException e) {
-            output.writeObject("Failure: " + e.getMessage());
-//            output.writeObject(database.findByEmail(emailOrUsername).getPassword()); //for testing
-            output.flush();
+            respond("Failure: " + e.getMessage());
+//            respond(database.findByEmail(emailOrUsername).getPassword()); //for testing
+            flushResponses();
         }
     }
 
@@ -281,13 +578,14 @@ public class ClientHandler implements Runnable {
      */
     public void handleLogout() throws IOException {
         if (currentUser != null) {
+            sessions.loggedOut(currentUser.getName(), this);
             database.logOut(currentUser);
             currentUser = null;
-            output.writeObject("Success");
+            respond("Success");
         } else {
-            output.writeObject("Failure: No user is currently logged in");
+            respond("Failure: No user is currently logged in");
         }
-        output.flush();
+        flushResponses();
     }
 
     /**
@@ -298,17 +596,17 @@ public class ClientHandler implements Runnable {
      * @throws ClassNotFoundException If there is an error deserializing objects
      */
     public void handleCreateAccount() throws IOException, ClassNotFoundException {
-        String username = (String) input.readObject();
-        String email = (String) input.readObject();
-        String password = (String) input.readObject();
-        double balance = (double) input.readObject();
+        String username = (String) readArgument();
+        String email = (String) readArgument();
+        String password = (String) readArgument();
+        long balance = readMoney();
         try {
             database.createUser(username, email, password, balance);
-            output.writeObject("Success");
+            respond("Success");
         } catch (InvalidAccountOperationException e) {
-            output.writeObject("Cannot create account: " + e.getMessage());
+            respond("Cannot create account: " + e.getMessage());
         }
-        output.flush();
+        flushResponses();
     }
 
     /**
@@ -319,22 +617,21 @@ public class ClientHandler implements Runnable {
      * @throws ClassNotFoundException If there is an error deserializing objects
      */
     public void handlePostItem() throws IOException, ClassNotFoundException {
-        String itemName = (String) input.readObject();
-        double price = (double) input.readObject();
-        String description = (String) input.readObject();
+        String itemName = (String) readArgument();
+        long price = readMoney();
+        String description = (String) readArgument();
 
         try {
             boolean success = database.createItem(currentUser, itemName, price, description);
             if (success) {
-                output.writeObject("Success");
-                database.writeToFile(); //save data
+                respond("Success");
             } else {
-                output.writeObject("FAILURE: Failed to post item");
+                respond("FAILURE: Failed to post item");
             }
         } catch (Exception e) {
-            output.writeObject("FAILURE: " + e.getMessage());
+            respond("FAILURE: " + e.getMessage());
         }
-        output.flush();
+        flushResponses();
     }
 
     /**
@@ -345,17 +642,61 @@ public class ClientHandler implements Runnable {
      * @throws ClassNotFoundException If there is an error deserializing objects
      */
     public void handleSearchItems() throws IOException, ClassNotFoundException {
-        String searchTerm = (String) input.readObject();
+        String searchTerm = (String) readArgument();
         ArrayList<Item> items = database.getItemsFromName(searchTerm);
-        output.writeObject(items);
-        output.flush();
+        respondItems(items);
+        flushResponses();
     }
 
+    /**
+     * Handles the searchByPriceRange command from the client.
+     * Sends one page of the items for sale in the price range, then the cursor of the
+     * next page (null on the last page).
+     *
+     * @throws IOException If there is an error in communication
+     * @throws ClassNotFoundException If there is an error deserializing objects
+     */
+    public void handleSearchByPriceRange() throws IOException, ClassNotFoundException {
+        long min = readMoney();
+        long max = readMoney();
+        String order = (String) readArgument();
+        int limit = (int) readArgument();
+        String cursor = (String) readArgument();
+
+        PagedItems page = database.searchByPriceRange(min, max, "desc".equalsIgnoreCase(order), limit, cursor);
+        respondItems(page.items());
+        respond(page.nextCursor());
+        flushResponses();
+    }
+
+    /**
+     * Handles the viewItems command from the client by sending every item at once.
+     * Kept for older clients, current clients page through browseItems instead.
+     *
+     * @throws IOException If there is an error in communication
+     */
     public void handleViewItems() throws IOException {
         // This will return all items in the database
-        ArrayList<Item> allItems = new ArrayList<>(database.allItemList);
-        output.writeObject(allItems);
-        output.flush();
+        respondItems(database.getAllItems());
+        flushResponses();
+    }
+
+    /**
+     * Handles the browseItems command from the client.
+     * Sends one page of all items in the order they were posted, then the cursor of the
+     * next page (null on the last page).
+     *
+     * @throws IOException If there is an error in communication
+     * @throws ClassNotFoundException If there is an error deserializing objects
+     */
+    public void handleBrowseItems() throws IOException, ClassNotFoundException {
+        int limit = (int) readArgument();
+        String cursor = (String) readArgument();
+
+        PagedItems page = database.browseItems(limit, cursor);
+        respondItems(page.items());
+        respond(page.nextCursor());
+        flushResponses();
     }
 
     /**
@@ -365,48 +706,91 @@ public class ClientHandler implements Runnable {
      * @throws IOException If there is an error in communication
      */
     public void handleSendMessage() throws IOException, ClassNotFoundException {
-        String receiverUsername = (String) input.readObject();
-        String messageContent = (String) input.readObject();
+        String receiverUsername = (String) readArgument();
+        String messageContent = (String) readArgument();
 
         User receiver = database.findByUsername(receiverUsername);
         if (receiver == null) {
-            output.writeObject("FAILURE: Receiver not found");
-            output.flush();
+            respond("FAILURE: Receiver not found");
+            flushResponses();
             return;
         }
         boolean success = messageDatabase.sendMessage(currentUser.getName(),
                 receiverUsername, messageContent);
         if (success) {
-            output.writeObject("Success");
+            respond("Success");
         } else {
-            output.writeObject("Failure: Failed to send message");
+            respond("Failure: Failed to send message");
         }
-        output.flush();
+        flushResponses();
     }
 
     /**
      * Handles the getMessageHistory command from the client.
      * Retrieves the message history for the current user.
+     * Kept for older clients, current clients use syncMessages and getConversationPage instead.
      *
      * @throws IOException If there is an error in communication
      */
     public void handleGetMessageHistory() throws IOException {
         if (currentUser == null) {
-            output.writeObject("FAILURE: User not logged in");
-            output.flush();
+            respond("FAILURE: User not logged in");
+            flushResponses();
             return;
         }
         // Get all users who message the currentUser
-        ArrayList<String> messagePartners = messageDatabase.userMessageList.get(currentUser.getName());
+        ArrayList<String> messagePartners = messageDatabase.getPartners(currentUser.getName());
         HashMap<String, ArrayList<String>> allMessages = new HashMap<>();
-        if (messagePartners != null) {
-            for (String partner : messagePartners) {
-                allMessages.put(partner,
-                        messageDatabase.getMessageHistory(currentUser.getName(), partner));
-            }
+        for (String partner : messagePartners) {
+            allMessages.put(partner,
+                    messageDatabase.getMessageHistory(currentUser.getName(), partner));
+        }
+        respond(allMessages);
+        flushResponses();
+    }
+
+    /**
+     * Handles the syncMessages command from the client.
+     * Sends the messages of the current user's conversations sent since the client's last
+     * sync, at most a limit per conversation, then the sync position to pass next time.
+     *
+     * @throws IOException If there is an error in communication
+     * @throws ClassNotFoundException If there is an error deserializing objects
+     */
+    public void handleSyncMessages() throws IOException, ClassNotFoundException {
+        long since = (long) readArgument();
+        int limit = (int) readArgument();
+        if (currentUser == null) {
+            respond("FAILURE: User not logged in");
+            flushResponses();
+            return;
         }
-        output.writeObject(allMessages);
-        output.flush();
+        // taken first, so a message sent while this sync runs is in the next one
+        long until = messageDatabase.syncPosition();
+        respond(messageDatabase.syncMessages(currentUser.getName(), since, until, limit));
+        respond(until);
+        flushResponses();
+    }
+
+    /**
+     * Handles the getConversationPage command from the client.
+     * Sends the messages of one conversation just before a sequence number, for scrolling
+     * back through it.
+     *
+     * @throws IOException If there is an error in communication
+     * @throws ClassNotFoundException If there is an error deserializing objects
+     */
+    public void handleGetConversationPage() throws IOException, ClassNotFoundException {
+        String partner = (String) readArgument();
+        int beforeSeq = (int) readArgument();
+        int limit = (int) readArgument();
+        if (currentUser == null) {
+            respond("FAILURE: User not logged in");
+            flushResponses();
+            return;
+        }
+        respond(messageDatabase.getConversationPage(currentUser.getName(), partner, beforeSeq, limit));
+        flushResponses();
     }
 
     /**
@@ -417,15 +801,15 @@ public class ClientHandler implements Runnable {
      * @throws ClassNotFoundException If there is an error deserializing objects
      */
     public void handleBuyItem() throws IOException, ClassNotFoundException {
-        String sellerName = (String) input.readObject();
-        String itemName = (String) input.readObject();
-        double price = (double) input.readObject();
+        String sellerName = (String) readArgument();
+        String itemName = (String) readArgument();
+        long price = readMoney();
 
         //Find the seller
         User seller = database.findByUsername(sellerName);
         if (seller == null) {
-            output.writeObject("Failure: Seller not found");
-            output.flush();
+            respond("Failure: Seller not found");
+            flushResponses();
             return;
         }
 
@@ -439,18 +823,54 @@ public class ClientHandler implements Runnable {
             }
         }
         if (itemToBuy == null) {
-            output.writeObject("Failure: Item not found");
-            output.flush();
+            respond("Failure: Item not found");
+            flushResponses();
             return;
         }
 
         String result = database.transaction(currentUser, seller, itemToBuy);
         if (result.equals("Transaction occurs successfully")) {
-            output.writeObject("Success: " + result);
+            respond("Success: " + result);
         } else {
-            output.writeObject("Failure: " + result);
+            respond("Failure: " + result);
         }
-        output.flush();
+        flushResponses();
+    }
+
+    /**
+     * Handles the buyItemById command from the client.
+     * Looks the item up by its id and processes a transaction with its owner.
+     *
+     * @throws IOException If there is an error in communication
+     * @throws ClassNotFoundException If there is an error deserializing objects
+     */
+    public void handleBuyItemById() throws IOException, ClassNotFoundException {
+        long itemId = (long) readArgument();
+
+        Item itemToBuy = database.findItemById(itemId);
+        if (itemToBuy == null || !itemToBuy.isForSale()) {
+            respond("Failure: Item not found");
+            flushResponses();
+            return;
+        }
+
+        String result = database.transaction(currentUser, itemToBuy.getOwner(), itemToBuy);
+        if (result.equals("Transaction occurs successfully")) {
+            respond("Success: " + result);
+        } else {
+            respond("Failure: " + result);
+        }
+        flushResponses();
+    }
+
+    /**
+     * Returns when the change made by a command is on disk.
+     *
+     * @param command the command
+     * @return COALESCED for profile edits, SYNC for everything else
+     */
+    private static Database.Durability durabilityOf(String command) {
+        return DURABILITY.getOrDefault(command, Database.Durability.SYNC);
     }
 
     /**
@@ -461,21 +881,17 @@ public class ClientHandler implements Runnable {
      * @throws ClassNotFoundException If there is an error deserializing objects
      */
     public void handleChangeUsername() throws IOException, ClassNotFoundException {
-        String newUsername = (String) input.readObject();
+        String newUsername = (String) readArgument();
 
         try {
-            if (database.findByUsername(newUsername) != null) {
-                output.writeObject("Failure: Username already exists");
-                output.flush();
-            } else {
-                currentUser.setName(newUsername);
-                database.writeToFile();
-                output.writeObject("Success");
-            }
+            String oldUsername = currentUser.getName();
+            database.changeUsername(currentUser, newUsername, durabilityOf("changeUsername"));
+            sessions.renamed(oldUsername, currentUser.getName(), this);
+            respond("Success");
         } catch (InvalidAccountOperationException e) {
-            output.writeObject("Failure: " + e.getMessage());
+            respond("Failure: " + e.getMessage());
         }
-        output.flush();
+        flushResponses();
     }
 
     /**
@@ -486,16 +902,15 @@ public class ClientHandler implements Runnable {
      * @throws ClassNotFoundException If there is an error deserializing objects
      */
     public void handleChangePassword() throws IOException, ClassNotFoundException {
-        String newPassword = (String) input.readObject();
+        String newPassword = (String) readArgument();
 
         try {
-            currentUser.setPassword(newPassword);
-            database.writeToFile(); // Save changes
-            output.writeObject("Success");
+            database.changePassword(currentUser, newPassword, durabilityOf("changePassword"));
+            respond("Success");
         } catch (InvalidAccountOperationException e) {
-            output.writeObject("Failure: " + e.getMessage());
+            respond("Failure: " + e.getMessage());
         }
-        output.flush();
+        flushResponses();
     }
 
     /**
@@ -506,27 +921,16 @@ public class ClientHandler implements Runnable {
      * @throws ClassNotFoundException If there is an error deserializing objects
      */
     public void handleChangeEmail() throws IOException, ClassNotFoundException {
-        String newEmail = (String) input.readObject();
+        String newEmail = (String) readArgument();
         try {
-            // Check if email already exists
-            if (database.findByEmail(newEmail) != null) {
-                output.writeObject("Failure: Email already exists");
-            } else {
-                // We need to update the key in the hashmap
-                String oldEmail = currentUser.getEmail();
-                currentUser.setEmail(newEmail);
-
-                // Update the user in the database
-                database.deleteUser(currentUser);
-                database.allUserList.put(newEmail, currentUser);
-                database.writeToFile(); // Save changes
+            // moves the user to its new key, fails if the email already exists
+            database.changeEmail(currentUser, newEmail, durabilityOf("changeEmail"));
 
-                output.writeObject("Success");
-            }
+            respond("Success");
         } catch (InvalidAccountOperationException e) {
-            output.writeObject("Failure: " + e.getMessage());
+            respond("Failure: " + e.getMessage());
         }
-        output.flush();
+        flushResponses();
     }
 
     /**
@@ -537,10 +941,10 @@ public class ClientHandler implements Runnable {
      */
     public void handleDeleteAccount() throws IOException {
         database.deleteUser(currentUser);
-        database.writeToFile(); //Save changes
 
+        sessions.loggedOut(currentUser.getName(), this);
         currentUser = null;
-        output.writeObject("Success");
-        output.flush();
+        respond("Success");
+        flushResponses();
     }
 }
@@ -0,0 +1,252 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The newest messages of recently read conversations, formatted for display and kept in
+ * memory, so the conversations of heavy chat users are not read from the message log and
+ * parsed again on every refresh.
+ *
+ * Each conversation keeps a tail of at most a fixed number of messages, always the newest
+ * ones and without gaps. The cache is kept write-through: a message sent to a cached
+ * conversation is added to its tail, so a tail never misses a message that was sent. The
+ * conversations are evicted least recently used first once their estimated size exceeds the
+ * memory budget. All methods synchronize on the cache; it only holds strings that are
+ * already formatted, so nothing slow runs while it is locked.
+ */
+public class ConversationCache {
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_TAIL_MESSAGES = 500;
+
+    // rough sizes of the objects kept per conversation and per message
+    private static final int CONVERSATION_OVERHEAD_BYTES = 128;
+    private static final int MESSAGE_OVERHEAD_BYTES = 48;
+
+    /**
+     * The cached tail of a conversation.
+     */
+    private static final class Tail {
+        int firstSeq;
+        final ArrayList<String> messages = new ArrayList<>();
+        long bytes;
+    }
+
+    /**
+     * Messages of a conversation taken from the cache.
+     *
+     * @param firstSeq the sequence number of the first message
+     * @param messages a copy of the messages, formatted for display
+     */
+    public record Slice(int firstSeq, ArrayList<String> messages) {
+    }
+
+    // in access order, the least recently used conversation first
+    private final LinkedHashMap<String, Tail> tails = new LinkedHashMap<>(16, 0.75f, true);
+    private final int tailMessages;
+    private long budgetBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ConversationCache() {
+        this(DEFAULT_BUDGET_BYTES, DEFAULT_TAIL_MESSAGES);
+    }
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param budgetBytes  the most memory the cached messages may take, estimated
+     * @param tailMessages the most messages kept per conversation
+     * @throws IllegalArgumentException if the budget is negative or the tail not positive
+     */
+    public ConversationCache(long budgetBytes, int tailMessages) {
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("Cache budget must not be negative: " + budgetBytes);
+        }
+        if (tailMessages <= 0) {
+            throw new IllegalArgumentException("Cached tail must hold at least one message: " + tailMessages);
+        }
+        this.budgetBytes = budgetBytes;
+        this.tailMessages = tailMessages;
+    }
+
+    /**
+     * Returns the most messages kept per conversation.
+     *
+     * @return the tail length
+     */
+    public int getTailMessages() {
+        return tailMessages;
+    }
+
+    /**
+     * Returns the cached messages of a conversation from a sequence number on, and counts a
+     * hit, or counts a miss if the conversation is not cached.
+     *
+     * @param conversation the conversation
+     * @param fromSeq      the sequence number of the first message wanted; messages older
+     *                     than the tail are not returned
+     * @return the cached messages, or null on a miss
+     */
+    public synchronized Slice get(String conversation, int fromSeq) {
+        Tail tail = tails.get(conversation);
+        if (tail == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        int from = Math.min(Math.max(0, fromSeq - tail.firstSeq), tail.messages.size());
+        return new Slice(tail.firstSeq + from, new ArrayList<>(tail.messages.subList(from, tail.messages.size())));
+    }
+
+    /**
+     * Caches the newest messages of a conversation after they were read from the log. The
+     * caller must make sure no message is sent to the conversation meanwhile.
+     *
+     * @param conversation the conversation
+     * @param firstSeq     the sequence number of the first message
+     * @param messages     the newest messages of the conversation, formatted for display
+     */
+    public synchronized void put(String conversation, int firstSeq, ArrayList<String> messages) {
+        remove(conversation);
+        int from = Math.max(0, messages.size() - tailMessages);
+        Tail tail = new Tail();
+        tail.firstSeq = firstSeq + from;
+        tail.bytes = CONVERSATION_OVERHEAD_BYTES + sizeOf(conversation);
+        for (int i = from; i < messages.size(); i++) {
+            tail.messages.add(messages.get(i));
+            tail.bytes += sizeOf(messages.get(i));
+        }
+        if (tail.bytes > budgetBytes) {
+            return;
+        }
+        tails.put(conversation, tail);
+        bytes += tail.bytes;
+        evict();
+    }
+
+    /**
+     * Adds a message that was just sent to its conversation's tail, if the conversation is
+     * cached. A message that does not follow the tail means the tail is stale, so it is
+     * dropped.
+     *
+     * @param conversation the conversation
+     * @param seq          the sequence number of the message
+     * @param message      the message, formatted for display
+     */
+    public synchronized void appended(String conversation, int seq, String message) {
+        Tail tail = tails.get(conversation);
+        if (tail == null) {
+            return;
+        }
+        if (seq != tail.firstSeq + tail.messages.size()) {
+            remove(conversation);
+            return;
+        }
+        tail.messages.add(message);
+        tail.bytes += sizeOf(message);
+        bytes += sizeOf(message);
+        if (tail.messages.size() > tailMessages) {
+            long dropped = sizeOf(tail.messages.remove(0));
+            tail.firstSeq++;
+            tail.bytes -= dropped;
+            bytes -= dropped;
+        }
+        evict();
+    }
+
+    /**
+     * Drops a conversation from the cache.
+     *
+     * @param conversation the conversation
+     */
+    public synchronized void remove(String conversation) {
+        Tail tail = tails.remove(conversation);
+        if (tail != null) {
+            bytes -= tail.bytes;
+        }
+    }
+
+    /**
+     * Changes the memory budget, evicting conversations right away if it shrinks.
+     *
+     * @param budgetBytes the most memory the cached messages may take, 0 to cache nothing
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("Cache budget must not be negative: " + budgetBytes);
+        }
+        this.budgetBytes = budgetBytes;
+        evict();
+    }
+
+    /**
+     * Returns the memory budget.
+     *
+     * @return the budget in bytes
+     */
+    public synchronized long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Returns the estimated memory the cached messages take.
+     *
+     * @return the cached bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of cached conversations.
+     *
+     * @return the number of conversations
+     */
+    public synchronized int size() {
+        return tails.size();
+    }
+
+    /**
+     * Returns how many lookups found their conversation cached.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns how many lookups had to read their conversation from the message log.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns how many conversations were evicted to stay within the budget.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Tail>> iterator = tails.entrySet().iterator();
+        while (bytes > budgetBytes && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static long sizeOf(String value) {
+        return MESSAGE_OVERHEAD_BYTES + 2L * value.length();
+    }
+}
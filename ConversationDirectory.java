@@ -0,0 +1,102 @@
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The conversations between users, kept in memory so sending a message finds its
+ * conversation and its users' partners with hash lookups instead of list scans.
+ *
+ * A conversation is keyed by its two users in sorted order, so both users find the same
+ * conversation whoever sent first. Its name in the message log is the two users joined by
+ * "-": new conversations are named in sorted order, conversations that already had messages
+ * keep the name they were stored under. Each user has a set of the partners they have a
+ * conversation with.
+ *
+ * The directory is not written anywhere itself: the message log already stores every
+ * conversation's name with its messages and in its index, so the directory is rebuilt from
+ * the log when the server starts and a new conversation is persisted by its first message.
+ * Both maps are concurrent, lookups take no lock.
+ */
+public class ConversationDirectory {
+    /**
+     * The two users of a conversation, in sorted order.
+     */
+    private record Pair(String low, String high) {
+        static Pair of(String user1, String user2) {
+            return user1.compareTo(user2) <= 0 ? new Pair(user1, user2) : new Pair(user2, user1);
+        }
+    }
+
+    private final ConcurrentHashMap<Pair, String> names = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> partners = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a conversation found in the message log under its stored name.
+     *
+     * @param conversation the name, the two users joined by "-"
+     */
+    public void load(String conversation) {
+        String[] parts = conversation.split("-");
+        if (parts.length < 2) {
+            System.out.println("Warning: ignoring conversation with a malformed name " + conversation);
+            return;
+        }
+        names.putIfAbsent(Pair.of(parts[0], parts[1]), conversation);
+        link(parts[0], parts[1]);
+    }
+
+    /**
+     * Finds the conversation between two users.
+     *
+     * @param user1 one user
+     * @param user2 the other user
+     * @return its name in the message log, or the name a new conversation would get
+     */
+    public String find(String user1, String user2) {
+        Pair pair = Pair.of(user1, user2);
+        String name = names.get(pair);
+        return name != null ? name : pair.low() + "-" + pair.high();
+    }
+
+    /**
+     * Finds the conversation between two users and adds it if they have none.
+     *
+     * @param user1 one user
+     * @param user2 the other user
+     * @return its name in the message log
+     */
+    public String add(String user1, String user2) {
+        Pair pair = Pair.of(user1, user2);
+        String name = names.get(pair);
+        if (name == null) {
+            name = names.computeIfAbsent(pair, p -> p.low() + "-" + p.high());
+            link(user1, user2);
+        }
+        return name;
+    }
+
+    /**
+     * Returns the users a user has a conversation with.
+     *
+     * @param user the user
+     * @return a copy of the partners, empty if the user has no conversation
+     */
+    public ArrayList<String> partners(String user) {
+        Set<String> set = partners.get(user);
+        return set == null ? new ArrayList<>() : new ArrayList<>(set);
+    }
+
+    /**
+     * Returns the number of conversations.
+     *
+     * @return the number of conversations
+     */
+    public int size() {
+        return names.size();
+    }
+
+    private void link(String user1, String user2) {
+        partners.computeIfAbsent(user1, u -> ConcurrentHashMap.newKeySet()).add(user2);
+        partners.computeIfAbsent(user2, u -> ConcurrentHashMap.newKeySet()).add(user1);
+    }
+}
@@ -1,5 +1,11 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.regex.Pattern;
 /**
  *
@@ -12,183 +18,489 @@ import java.util.regex.Pattern;
  */
 
 public class Database {
+    /**
+     * How the in-memory data is guarded.
+     * STAMPED lets searches and lookups run in parallel and only serializes changes.
+     * MONITOR is the old behavior where every call waits for every other call.
+     */
+    public enum LockMode {
+        STAMPED,
+        MONITOR
+    }
+
+    /**
+     * When a change is on disk.
+     * SYNC returns once the change is durable, for money and accounts.
+     * COALESCED returns right away and the change is persisted with others within the
+     * coalescing latency, for edits that may be lost in a crash, like a new password.
+     */
+    public enum Durability {
+        SYNC,
+        COALESCED
+    }
+
     // private HashMap<String,String> userIDPassword; // this was never used
     // private ArrayList<String> allUserEmail; // only used once
     // private ArrayList<String> allUsername;
 
     public HashMap<String, User> allUserList;
-    ArrayList<Item> allItemList;
-    private final String allUserFileName = "allUser.txt";
-    private final String allItemFileName = "MarketInventory.txt";
+    // secondary index of allUserList by username, kept in step by every method that adds,
+    // removes or renames a user
+    private final HashMap<String, User> usersByName;
+    // every item keyed by its id; ids are handed out in increasing order, so this is also
+    // the order the items were added
+    TreeMap<Long, Item> allItemList;
+    private final ItemNameIndex itemNameIndex;
+    private final PriceIndex priceIndex = new PriceIndex();
+    private long nextItemId = 1;
+
+    private final LockMode lockMode;
+    // guards every field above; StampedLock is not reentrant, so locked methods only call
+    // the unlocked helpers below, never other public methods
+    private final StampedLock lock = new StampedLock();
+    // guards balances and the for-sale state of each user's items; always taken before
+    // the database lock, never while holding it
+    private final UserLocks userLocks = new UserLocks();
+    // serializes snapshots with each other, never held together with the write lock
+    private final ReentrantLock fileLock = new ReentrantLock();
+    // keeps the data between runs; every change is handed to it under the same locks as the
+    // change itself, so the changes of one user or item reach it in the order they happened
+    private final Storage storage;
+    // every change goes to the storage through here, coalesced or not
+    private final WriteCoalescer coalescer;
+    private volatile long lastSnapshotBytes;
+    private volatile long lastSnapshotNanos;
+    private volatile long lastSnapshotPauseNanos;
+    private volatile long lastSnapshotTime = System.nanoTime();
+    // takes snapshots in the background once setupAutoSave is called, guarded by schedulerLock
+    private ScheduledExecutorService snapshotScheduler;
+    private final Object schedulerLock = new Object();
+
+    // how often the scheduler checks whether a snapshot is due
+    private static final long SNAPSHOT_CHECK_SECONDS = 5;
+    // a snapshot is taken at least this often while anything changes
+    private static final long SNAPSHOT_INTERVAL_SECONDS = 10 * 60;
+    // and as soon as a restart would have to read this much besides the last snapshot
+    private static final long SNAPSHOT_BACKLOG_BYTES = 16L * 1024 * 1024;
+    // how long a coalesced change may wait before it is persisted, unless configured
+    public static final long DEFAULT_COALESCE_MILLIS = 50;
 
     public Database() {
-        allUserList = new HashMap<>();
-        allItemList = new ArrayList<>();
-        loadDatabase();
+        this("allUser.txt", "MarketInventory.txt");
     }
 
     /**
-     * Loads all user and item data from files into memory.
-     * This method reads from two files: allUser.txt for user data and
-     * MarketInventory.txt for item data.
+     * Creates a database backed by the given user and item files.
+     *
+     * @param allUserFileName the file holding all users
+     * @param allItemFileName the file holding all items
      */
-    public synchronized void loadDatabase() {
-        File userFile = new File(allUserFileName);
-        File allItemFile = new File(allItemFileName);
-
-        // Create files if they don't exist
-        try {
-            if (!userFile.exists()) {
-                userFile.createNewFile();
-                System.out.println("Created new user database file: " + allUserFileName);
-            }
-            if (!allItemFile.exists()) {
-                allItemFile.createNewFile();
-                System.out.println("Created new item database file: " + allItemFileName);
-            }
-        } catch (IOException e) {
-            System.out.println("Error creating database files: " + e.getMessage());
-            e.printStackTrace();
-        }
+    public Database(String allUserFileName, String allItemFileName) {
+        this(allUserFileName, allItemFileName, LockMode.STAMPED);
+    }
 
-        // Load user data
-        try (BufferedReader bfr = new BufferedReader(new FileReader(userFile))) {
-            String line;
-            while ((line = bfr.readLine()) != null) {
-                if (line.trim().isEmpty()) continue; // Skip empty lines
+    /**
+     * Creates a database backed by the given user and item files, with a choice of locking.
+     *
+     * @param allUserFileName the file holding all users
+     * @param allItemFileName the file holding all items
+     * @param lockMode        how concurrent calls are guarded
+     */
+    public Database(String allUserFileName, String allItemFileName, LockMode lockMode) {
+        this(new FileStorage(allUserFileName, allItemFileName), lockMode);
+    }
 
-                String[] parts = line.split(",");
-                if (parts.length < 4) {
-                    System.out.println("Warning: Invalid user data format: " + line);
-                    continue;
-                }
+    /**
+     * Creates a database kept by a storage backend, with a choice of locking.
+     *
+     * @param storage  the backend, loaded right away
+     * @param lockMode how concurrent calls are guarded
+     */
+    public Database(Storage storage, LockMode lockMode) {
+        this.storage = storage;
+        this.coalescer = new WriteCoalescer(storage, userLocks, DEFAULT_COALESCE_MILLIS);
+        this.lockMode = lockMode;
+        allUserList = new HashMap<>();
+        usersByName = new HashMap<>();
+        allItemList = new TreeMap<>();
+        itemNameIndex = new ItemNameIndex();
+        loadDatabase();
+    }
 
-                try {
-                    String username = parts[0];
-                    String password = parts[1];
-                    String email = parts[2];
-                    double balance = Double.parseDouble(parts[3]);
-                    allUserList.put(email, new User(username, email, password, balance));
-                } catch (NumberFormatException e) {
-                    System.out.println("Warning: Invalid balance format in user data: " + line);
-                }
-            }
+    /**
+     * Loads all user and item data from the storage backend into memory.
+     * The backend reads its files before the lock is taken, so only building the maps and
+     * indexes blocks other calls.
+     *
+     * @throws UncheckedIOException if the backend cannot load its data; starting empty
+     *                              instead would let the next snapshot overwrite it
+     */
+    public void loadDatabase() {
+        long start = System.nanoTime();
+        StoredData data;
+        try {
+            data = storage.load();
         } catch (IOException e) {
-            System.out.println("Error reading user database: " + e.getMessage());
-            e.printStackTrace();
+            throw new UncheckedIOException("Error loading database: " + e.getMessage(), e);
         }
+        long readNanos = System.nanoTime() - start;
+        write(() -> {
+            install(data);
+            return null;
+        });
+        System.out.printf("Loaded %,d users and %,d items in %.1f ms (%.1f ms reading)%n",
+                data.users().length, data.items().length, (System.nanoTime() - start) / 1e6, readNanos / 1e6);
+    }
 
-        // Load item data
-        try (BufferedReader bfr = new BufferedReader(new FileReader(allItemFile))) {
-            String line;
-            while ((line = bfr.readLine()) != null) {
-                if (line.trim().isEmpty()) continue; // Skip empty lines
-
-                String[] itemPart = line.split(",");
-                if (itemPart.length < 5) {
-                    System.out.println("Warning: Invalid item data format: " + line);
-                    continue;
-                }
-
-                try {
-                    String ownerName = itemPart[0];
-                    String itemName = itemPart[1];
-                    double price = Double.parseDouble(itemPart[2]);
-                    String description = itemPart[3];
-                    boolean forSale = Boolean.parseBoolean(itemPart[4]);
-
-                    // Find owner by username
-                    User owner = findByUsername(ownerName);
-                    if (owner == null) {
-                        System.out.println("Warning: Owner not found for item: " + itemName);
-                        continue;
+    /**
+     * Replaces the in-memory data with what the backend loaded. The maps and indexes do
+     * not depend on each other, so each is filled by its own task.
+     * The caller must hold the write lock.
+     *
+     * @param snapshot the loaded users and items
+     */
+    private void install(StoredData snapshot) {
+        allUserList.clear();
+        usersByName.clear();
+        allItemList.clear();
+        itemNameIndex.clear();
+        priceIndex.clear();
+        User[] users = snapshot.users();
+        Item[] items = snapshot.items();
+        CompletableFuture.allOf(
+                CompletableFuture.runAsync(() -> {
+                    for (User user : users) {
+                        allUserList.put(user.getEmail(), user);
+                    }
+                }),
+                CompletableFuture.runAsync(() -> {
+                    for (User user : users) {
+                        usersByName.put(user.getName(), user);
                     }
+                }),
+                CompletableFuture.runAsync(() -> {
+                    for (Item item : items) {
+                        allItemList.put(item.getId(), item);
+                    }
+                }),
+                CompletableFuture.runAsync(() -> {
+                    for (Item item : items) {
+                        itemNameIndex.add(item);
+                    }
+                }),
+                CompletableFuture.runAsync(() -> {
+                    for (Item item : items) {
+                        priceIndex.add(item);
+                    }
+                })).join();
+        nextItemId = snapshot.nextItemId();
+        for (Item item : items) {
+            nextItemId = Math.max(nextItemId, item.getId() + 1);
+        }
+    }
 
-                    Item item = new Item(owner, itemName, price, description, forSale);
-                    allItemList.add(item);
-                } catch (NumberFormatException e) {
-                    System.out.println("Warning: Invalid price format in item data: " + line);
-                }
-            }
+    /**
+     * Waits until a change handed to the backend is on disk. Must be called after
+     * releasing every lock, so that other clients' changes can join the same sync.
+     *
+     * @param token the token the backend returned for the change
+     * @return true if the change is durable
+     */
+    private boolean commit(long token) {
+        try {
+            storage.awaitDurable(token);
+            return true;
         } catch (IOException e) {
-            System.out.println("Error reading item database: " + e.getMessage());
-            e.printStackTrace();
+            System.out.println("Error saving database change: " + e.getMessage());
+            return false;
         }
     }
 
     /**
-     * Writes all current user and item data from memory to files.
-     * The method first clears existing file content, then writes all current data.
+     * Writes a snapshot through the storage backend, so a restart has less to read. For the
+     * file backend this is the binary snapshot file, written in one pass and renamed over the
+     * old one, after which the journal records it contains are dropped.
+     *
+     * Writers are only blocked while the users and items are copied into two arrays; they
+     * are encoded after releasing the lock. The backend notes under the same lock which
+     * changes the copy already has, and a change made after that is still persisted by the
+     * backend, so it is never lost whether or not the snapshot contains it.
      *
      * @return true if the write operation was successful, false otherwise
      */
-    public synchronized boolean writeToFile() {
+    public boolean writeToFile() {
+        long start = System.nanoTime();
+        long bytes;
+        fileLock.lock();
         try {
-            deleteContentInFile(allUserFileName);
-            deleteContentInFile(allItemFileName);
+            bytes = storage.snapshot(mark -> {
+                long pauseStart = System.nanoTime();
+                StoredData copy = read(() -> {
+                    // the changes after the mark must find every user under the name and
+                    // email it has in the copy
+                    coalescer.settleKeys();
+                    mark.run();
+                    return new StoredData(allUserList.values().toArray(new User[0]),
+                            allItemList.values().toArray(new Item[0]), nextItemId);
+                });
+                lastSnapshotPauseNanos = System.nanoTime() - pauseStart;
+                return copy;
+            });
         } catch (IOException e) {
-            System.out.println(e.getMessage());
+            System.out.println("Error saving database: " + e.getMessage());
             return false;
+        } finally {
+            fileLock.unlock();
+        }
+        lastSnapshotBytes = bytes;
+        lastSnapshotNanos = System.nanoTime() - start;
+        lastSnapshotTime = System.nanoTime();
+        System.out.printf("Saved database: %,d bytes in %.1f ms%n", bytes, lastSnapshotNanos / 1e6);
+        return true;
+    }
+
+    /**
+     * Stops the snapshot scheduler, writes the last changes, including the coalesced ones,
+     * to disk and closes the storage backend. No change can be made after this, call it
+     * when the server shuts down.
+     */
+    public void close() {
+        ScheduledExecutorService scheduler;
+        synchronized (schedulerLock) {
+            scheduler = snapshotScheduler;
+            snapshotScheduler = null;
         }
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            coalescer.close();
+            storage.close();
+        } catch (IOException e) {
+            System.out.println("Error closing database storage: " + e.getMessage());
+        }
+    }
 
-        for (User user : allUserList.values()) {
-            try (BufferedWriter bfw = new BufferedWriter(new FileWriter(new File(allUserFileName), true))) {
-                bfw.write(user.toFileString());
-                bfw.newLine();
-            } catch (IOException e) {
-                System.out.println("Error: IO Exception");
-                return false;
+    /**
+     * Sets how long a change made with COALESCED durability may wait before it is persisted.
+     *
+     * @param millis the latency bound in milliseconds, 0 to persist as soon as possible
+     * @throws IllegalArgumentException if the bound is negative
+     */
+    public void setCoalesceMillis(long millis) {
+        coalescer.setLatencyMillis(millis);
+    }
+
+    /**
+     * Returns how many batches of coalesced changes were persisted.
+     *
+     * @return the number of coalesced flushes
+     */
+    public long getCoalescedFlushCount() {
+        return coalescer.getFlushCount();
+    }
+
+    /**
+     * Returns how many users and items the coalesced flushes persisted, each counted once
+     * per flush however often it changed.
+     *
+     * @return the number of coalesced writes
+     */
+    public long getCoalescedWriteCount() {
+        return coalescer.getCoalescedCount();
+    }
+
+    /**
+     * Returns how many times the storage backend synced changes to disk. Changes made at the
+     * same time share a sync, so this grows slower than the number of changes under load.
+     *
+     * @return the number of syncs
+     */
+    public long getStorageSyncCount() {
+        return storage.getSyncCount();
+    }
+
+    /**
+     * Returns the size of the last successful snapshot written by writeToFile.
+     *
+     * @return the size of the snapshot file, or 0 if nothing was saved yet
+     */
+    public long getLastSnapshotBytes() {
+        return lastSnapshotBytes;
+    }
+
+    /**
+     * Returns how long the last successful snapshot written by writeToFile took.
+     *
+     * @return the duration in nanoseconds, or 0 if nothing was saved yet
+     */
+    public long getLastSnapshotNanos() {
+        return lastSnapshotNanos;
+    }
+
+    /**
+     * Returns how long the last snapshot blocked changes, the time spent copying the
+     * users and items under the lock.
+     *
+     * @return the duration in nanoseconds, or 0 if nothing was saved yet
+     */
+    public long getLastSnapshotPauseNanos() {
+        return lastSnapshotPauseNanos;
+    }
+
+    /**
+     * Returns how many bytes a restart would read besides the last snapshot, the journal
+     * for the file backend.
+     *
+     * @return the backlog in bytes
+     */
+    public long getStorageBacklogBytes() {
+        return storage.getBacklogBytes();
+    }
+
+    /**
+     * Runs a read-only action under the read lock, or the monitor in MONITOR mode.
+     *
+     * @param action the action
+     * @return the result of the action
+     */
+    private <T, E extends Exception> T read(LockedAction<T, E> action) throws E {
+        if (lockMode == LockMode.MONITOR) {
+            synchronized (this) {
+                return action.run();
             }
         }
+        long stamp = lock.readLock();
+        try {
+            return action.run();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
 
-        for (Item item : allItemList) {
-            try (BufferedWriter bfw = new BufferedWriter(new FileWriter(new File(allItemFileName), true))) {
-                bfw.write(item.toFileString());
-                bfw.newLine();
-            } catch (IOException e) {
-                System.out.println("Error: IO Exception");
-                return false;
+    /**
+     * Runs an action that changes the data under the write lock, or the monitor in
+     * MONITOR mode.
+     *
+     * @param action the action
+     * @return the result of the action
+     */
+    private <T, E extends Exception> T write(LockedAction<T, E> action) throws E {
+        if (lockMode == LockMode.MONITOR) {
+            synchronized (this) {
+                return action.run();
             }
         }
-        return true;
+        long stamp = lock.writeLock();
+        try {
+            return action.run();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * The body of a locked section.
+     */
+    @FunctionalInterface
+    private interface LockedAction<T, E extends Exception> {
+        T run() throws E;
     }
 
     /**
      * Searches and returns items that match the given name (fully or partially).
-     * Only returns items that are currently for sale.
-     * This method is synchronized to prevent concurrent access issues.
+     * Items whose name contains the search term are returned, as well as items
+     * currently for sale whose name is part of the search term.
+     * The search is answered from the item name index instead of a scan, under the
+     * read lock so searches run in parallel with each other.
      *
      * @param name the item name to search for
      * @return an ArrayList of items that match the search criteria
      */
-    public synchronized ArrayList<Item> getItemsFromName(String name) {
-        ArrayList<Item> found = new ArrayList<Item>();
-        for (Item item : allItemList) {
-            // check if search words contain item names or item name that have the searched
-            // word in there.
-            if ((item.getItemName().contains(name) || name.contains(item.getItemName())
-                    && item.isForSale())) {
-                found.add(item);
-            }
+    public ArrayList<Item> getItemsFromName(String name) {
+        return read(() -> itemNameIndex.search(name));
+    }
+
+    /**
+     * Returns one page of the items for sale priced between min and max, both included,
+     * ordered by price.
+     *
+     * @param min        the lowest price in cents
+     * @param max        the highest price in cents
+     * @param descending true for the most expensive items first
+     * @param limit      the page size
+     * @param cursor     the cursor of the previous page, or null for the first page
+     * @return the page of items and the cursor of the next page
+     */
+    public PagedItems searchByPriceRange(long min, long max, boolean descending, int limit,
+                                          String cursor) {
+        // the price index is a concurrent skip list, it does not need the database lock
+        return priceIndex.range(min, max, descending, limit, cursor);
+    }
+
+    /**
+     * Returns a copy of every item in id order. Prefer browseItems, which does not copy
+     * the whole catalog.
+     *
+     * @return all items
+     */
+    public ArrayList<Item> getAllItems() {
+        return read(() -> new ArrayList<>(allItemList.values()));
+    }
+
+    /**
+     * Returns one page of all items in id order, which is the order they were added in.
+     * The page is read under the read lock so it never sees a half-applied change, and
+     * because the cursor is the id of the last item returned, later pages neither repeat nor
+     * skip items that existed when browsing started.
+     *
+     * @param limit  the page size
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @return the page of items and the cursor of the next page
+     * @throws IllegalArgumentException if the cursor is malformed or the limit is not positive
+     */
+    public PagedItems browseItems(int limit, String cursor) {
+        int pageSize = PagedItems.pageSize(limit);
+        long after;
+        try {
+            after = cursor == null ? Long.MIN_VALUE : Long.parseLong(PagedItems.decodeCursor(cursor));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor");
         }
-        return found;
+        return read(() -> {
+            ArrayList<Item> items = new ArrayList<>(Math.min(pageSize, allItemList.size()));
+            for (Item item : allItemList.tailMap(after, false).values()) {
+                if (items.size() == pageSize) {
+                    return new PagedItems(items, PagedItems.encodeCursor(Long.toString(items.getLast().getId())));
+                }
+                items.add(item);
+            }
+            return new PagedItems(items, null);
+        });
     }
 
     /**
      * Returns all items owned by a specific user that are currently for sale.
-     * This method is synchronized to prevent concurrent access issues.
+     * This method holds the read lock, so it runs in parallel with other reads.
      *
      * @param owner the user whose items to retrieve
      * @return an ArrayList of items owned by the specified user
      */
-    public synchronized ArrayList<Item> getItemsFromOwner(User owner) {
-        ArrayList<Item> sellerItemList = new ArrayList<>();
-        for (Item i : allItemList) {
-            if (i.getOwner().equals(owner) && i.isForSale()) {
-                sellerItemList.add(i);
+    public ArrayList<Item> getItemsFromOwner(User owner) {
+        return read(() -> {
+            ArrayList<Item> sellerItemList = new ArrayList<>();
+            for (Item i : allItemList.values()) {
+                if (i.getOwner().equals(owner) && i.isForSale()) {
+                    sellerItemList.add(i);
+                }
             }
-        }
-        return sellerItemList;
+            return sellerItemList;
+        });
     }
 
     /**
@@ -213,25 +525,26 @@ public class Database {
      * Creates a new user account with the provided information.
      * Using this method to sign up a new account.
      * Validates username, email, and password before creating the account.
-     * This method is synchronized to prevent concurrent access issues.
+     * The checks and the insert happen under the write lock, waiting for the storage after it.
      *
      * @param name     the user's name/username
      * @param email    the user's email address (used as userID)
      * @param password the user's password
-     * @param balance  the user's initial account balance
+     * @param balance  the user's initial account balance in cents
      * @throws InvalidAccountOperationException if username already exists, email
      *                                          already exists,
      *                                          or any of the input fields fail
      *                                          validation
      */
-    public synchronized void createUser(String name, String email, String password, double balance)
+    public void createUser(String name, String email, String password, long balance)
             throws InvalidAccountOperationException { // guess not
-        if (findByUsername(name) != null) {
-            throw new InvalidAccountOperationException("A user with this username already exists");
-        }
-        if (allUserList.get(email) != null || findByUsername(name) != null) {
-            throw new InvalidAccountOperationException("A user with this email already exists");
-        } else {
+        long token = write(() -> {
+            if (usersByName.get(name) != null) {
+                throw new InvalidAccountOperationException("A user with this username already exists");
+            }
+            if (allUserList.get(email) != null) {
+                throw new InvalidAccountOperationException("A user with this email already exists");
+            }
             if (name == null || name.startsWith(" ") || name.trim().isEmpty()) {
                 throw new InvalidAccountOperationException(
                         "Invalid username. Please make sure your username have at least" +
@@ -249,16 +562,16 @@ public class Database {
                                 +
                                 "with a space.");
             }
+            // a coalesced rename may still have the name or email in the storage
+            coalescer.settleClaim(name, email);
             User user = new User(name, email, password, balance);
+            // persisted first, so a user the backend refuses is not left in memory only
+            long persisted = coalescer.persistUser(user, email);
             allUserList.put(email, user);
-
-            try (BufferedWriter bfw = new BufferedWriter(new FileWriter(new File(allUserFileName), true))) {
-                bfw.write(user.toString());
-                bfw.newLine();
-            } catch (IOException e) {
-                System.out.println("Error: IO Exception");
-            }
-        }
+            usersByName.put(name, user);
+            return persisted;
+        });
+        commit(token);
     }
 
     /**
@@ -267,8 +580,8 @@ public class Database {
      * @param email the email address to search for
      * @return the User object if found, null otherwise
      */
-    public synchronized User findByEmail(String email) {
-        return allUserList.get(email);
+    public User findByEmail(String email) {
+        return read(() -> allUserList.get(email));
     }
 
     /**
@@ -277,20 +590,136 @@ public class Database {
      * @param name the username to search for
      * @return the User object if found, null otherwise
      */
-    public synchronized User findByUsername(String name) {
-        for (Map.Entry<String, User> set : allUserList.entrySet()) {
-            if (set.getValue().getName().equals(name)) {
-                return set.getValue();
+    public User findByUsername(String name) {
+        return read(() -> usersByName.get(name));
+    }
+
+    /**
+     * Changes the username of a user and keeps the username index up to date.
+     *
+     * @param user    the user to rename
+     * @param newName the new username
+     * @throws InvalidAccountOperationException if the username is taken or invalid
+     */
+    public void changeUsername(User user, String newName) throws InvalidAccountOperationException {
+        changeUsername(user, newName, Durability.SYNC);
+    }
+
+    /**
+     * Changes the username of a user with a choice of durability.
+     *
+     * @param user       the user to rename
+     * @param newName    the new username
+     * @param durability when the change is on disk
+     * @throws InvalidAccountOperationException if the username is taken or invalid
+     */
+    public void changeUsername(User user, String newName, Durability durability)
+            throws InvalidAccountOperationException {
+        long token = userLocks.withUser(user, () -> write(() -> {
+            if (usersByName.containsKey(newName)) {
+                throw new InvalidAccountOperationException("Username already exists");
+            }
+            String oldName = user.getName();
+            user.setName(newName);
+            if (usersByName.get(oldName) == user) {
+                usersByName.remove(oldName);
+            }
+            usersByName.put(newName, user);
+            long claim = coalescer.settleClaim(newName, null);
+            return Math.max(claim, persistUser(user, oldName, user.getEmail(), durability));
+        }));
+        commit(token);
+    }
+
+    /**
+     * Changes the email of a user and moves the user to its new key in allUserList.
+     *
+     * @param user     the user whose email changes
+     * @param newEmail the new email
+     * @throws InvalidAccountOperationException if the email is taken or invalid
+     */
+    public void changeEmail(User user, String newEmail) throws InvalidAccountOperationException {
+        changeEmail(user, newEmail, Durability.SYNC);
+    }
+
+    /**
+     * Changes the email of a user with a choice of durability.
+     *
+     * @param user       the user whose email changes
+     * @param newEmail   the new email
+     * @param durability when the change is on disk
+     * @throws InvalidAccountOperationException if the email is taken or invalid
+     */
+    public void changeEmail(User user, String newEmail, Durability durability)
+            throws InvalidAccountOperationException {
+        long token = userLocks.withUser(user, () -> write(() -> {
+            if (allUserList.containsKey(newEmail)) {
+                throw new InvalidAccountOperationException("Email already exists");
+            }
+            String oldEmail = user.getEmail();
+            user.setEmail(newEmail);
+            if (allUserList.get(oldEmail) == user) {
+                allUserList.remove(oldEmail);
             }
+            allUserList.put(newEmail, user);
+            long claim = coalescer.settleClaim(null, newEmail);
+            return Math.max(claim, persistUser(user, user.getName(), oldEmail, durability));
+        }));
+        commit(token);
+    }
+
+    /**
+     * Changes the password of a user.
+     *
+     * @param user        the user whose password changes
+     * @param newPassword the new password
+     * @throws InvalidAccountOperationException if the password is invalid
+     */
+    public void changePassword(User user, String newPassword) throws InvalidAccountOperationException {
+        changePassword(user, newPassword, Durability.SYNC);
+    }
+
+    /**
+     * Changes the password of a user with a choice of durability.
+     *
+     * @param user        the user whose password changes
+     * @param newPassword the new password
+     * @param durability  when the change is on disk
+     * @throws InvalidAccountOperationException if the password is invalid
+     */
+    public void changePassword(User user, String newPassword, Durability durability)
+            throws InvalidAccountOperationException {
+        long token = userLocks.withUser(user, () -> {
+            user.setPassword(newPassword);
+            return persistUser(user, user.getName(), user.getEmail(), durability);
+        });
+        commit(token);
+    }
+
+    /**
+     * Persists a changed user now or marks it for the coalescer. The caller must hold the
+     * user's stripe.
+     *
+     * @param user       the user
+     * @param oldName    the name before the change
+     * @param oldEmail   the email before the change
+     * @param durability when the change is on disk
+     * @return the token to commit, 0 for a coalesced change
+     */
+    private long persistUser(User user, String oldName, String oldEmail, Durability durability) {
+        if (durability == Durability.COALESCED) {
+            coalescer.markUser(user, oldName, oldEmail);
+            return 0;
         }
-        return null;
+        return coalescer.persistUser(user, oldEmail);
     }
 
     /**
      * Authenticates a user based on email/username and password.
      * Updates the user's online status to true if login is successful.
      * throws exception with different message for each time login fail
-     * This method is synchronized to prevent concurrent access issues.
+     * Checking and setting the online status happen under the write lock, so one
+     * account cannot be logged in twice at the same time.
      *
      * @param email    the user's email or username
      * @param password the user's password
@@ -298,8 +727,7 @@ public class Database {
      * @throws InvalidAccountOperationException if credentials are invalid or the
      *                                          account is already logged in
      */
-    public synchronized boolean login(String email, String password) throws InvalidAccountOperationException {
-        User user;
+    public boolean login(String email, String password) throws InvalidAccountOperationException {
         if (email.isEmpty()) {
             throw new InvalidAccountOperationException("Email or Username cannot be empty!");
         }
@@ -307,36 +735,36 @@ public class Database {
             throw new InvalidAccountOperationException("Password cannot be empty");
         }
         boolean isEmail = email.contains("@") && email.contains("."); // check if this is an email or not
-        if (isEmail) {
-            user = findByEmail(email);
-        } else {
-            user = findByUsername(email);
-        }
-        if (user == null) {
-            // Using a generic error message for security reasons
-            throw new InvalidAccountOperationException("Invalid credentials");
-        }
-        if (user.isOnlineStatus()) {
-            throw new InvalidAccountOperationException("This account is already logged in");
-        }
-        String correctPassword = user.getPassword();
-        if (password.equals(correctPassword)) {
+        write(() -> {
+            User user = isEmail ? allUserList.get(email) : usersByName.get(email);
+            if (user == null) {
+                // Using a generic error message for security reasons
+                throw new InvalidAccountOperationException("Invalid credentials");
+            }
+            if (user.isOnlineStatus()) {
+                throw new InvalidAccountOperationException("This account is already logged in");
+            }
+            String correctPassword = user.getPassword();
+            if (!password.equals(correctPassword)) {
+                throw new InvalidAccountOperationException("Invalid Password! Please try again");
+            }
             user.setOnlineStatus(true);
-            System.out.println("Login Successfully");
-            return true;
-        } else {
-            throw new InvalidAccountOperationException("Invalid Password! Please try again");
-        }
+            return null;
+        });
+        System.out.println("Login Successfully");
+        return true;
     }
 
     /**
      * Logs out a user by setting their online status to false.
-     * This method is synchronized to prevent concurrent access issues.
      *
      * @param user the user to log out
      */
-    public synchronized void logOut(User user) {
-        user.setOnlineStatus(false);
+    public void logOut(User user) {
+        write(() -> {
+            user.setOnlineStatus(false);
+            return null;
+        });
         System.out.println("Logout successfully");
     }
 
@@ -345,30 +773,51 @@ public class Database {
      *
      * @param owner       The seller who post this item.
      * @param itemName    The name of item.
-     * @param price       price of item
+     * @param price       price of item in cents
      * @param description some description about this item
      *
      * @return true if successfully remove the item
      * @throws InvalidAccountOperationException when the price is invalid
      */
-    public synchronized boolean createItem(User owner, String itemName, double price, String description)
+    public boolean createItem(User owner, String itemName, long price, String description)
             throws Exception {
+        return createItem(owner, itemName, price, description, Durability.SYNC);
+    }
+
+    /**
+     * Allows a user to post an item for selling, with a choice of durability.
+     *
+     * @param owner       the seller who posts this item
+     * @param itemName    the name of the item
+     * @param price       the price of the item in cents
+     * @param description some description about this item
+     * @param durability  when the item is on disk
+     * @return true if the item was posted, and is on disk for SYNC durability
+     * @throws Exception when the price is invalid
+     */
+    public boolean createItem(User owner, String itemName, long price, String description,
+                              Durability durability) throws Exception {
         if (price <= 0) {
             throw new Exception("Invalid price");
         }
-        Item item = new Item(owner, itemName, price, description, true);
-        allItemList.add(item);
-
-        // Write just this item to the file (append mode)
-        try (BufferedWriter bfw = new BufferedWriter(new FileWriter(new File(allItemFileName), true))) {
-            bfw.write(item.toFileString());
-            bfw.newLine();
-            bfw.flush(); // Ensure data is written immediately
-        } catch (IOException e) {
-            System.out.println("Error: IO Exception");
-            return false;
-        }
-        return true;
+        // the owner's stripe keeps the owner's stored name from changing under the item
+        long token = userLocks.withUser(owner, () -> write(() -> {
+            Item item = new Item(nextItemId++, owner, itemName, price, description, true);
+            // persisted first, so an item the backend refuses is not left in memory only
+            long persisted = 0;
+            if (durability == Durability.COALESCED) {
+                coalescer.markItem(item, false);
+            } else {
+                persisted = coalescer.persistItem(item);
+            }
+            allItemList.put(item.getId(), item);
+            itemNameIndex.add(item);
+            priceIndex.add(item);
+            return persisted;
+        }));
+
+        // only this item is written, by the storage backend, after releasing the lock
+        return commit(token);
     }
 
     /**
@@ -384,16 +833,21 @@ public class Database {
 
     /**
      * Removes a user and all their items from the database.
-     * This method is synchronized to prevent concurrent access issues.
      *
      * @param user the user to delete
      */
-    public synchronized void deleteUser(User user) {
-        String userEmail = user.getEmail();
-        allUserList.remove(userEmail);
-        // allUserEmail.remove(userEmail);
-        // allUsername.remove(user.getName());
-        allItemList.removeIf(i -> i.getOwner().equals(user));
+    public void deleteUser(User user) {
+        long token = userLocks.withUser(user, () -> write(() -> {
+            String userEmail = user.getEmail();
+            allUserList.remove(userEmail);
+            if (usersByName.get(user.getName()) == user) {
+                usersByName.remove(user.getName());
+            }
+            // allUserEmail.remove(userEmail);
+            // allUsername.remove(user.getName());
+            return coalescer.deleteUser(user, removeItemsOf(user));
+        }));
+        commit(token);
         // try {
         // deleteContentInFile(allUserFileName);
         // deleteContentInFile(allItemFileName);
@@ -421,13 +875,41 @@ public class Database {
 
     }
 
+    /**
+     * Finds an item by its id.
+     *
+     * @param id the id of the item
+     * @return the item, or null if there is no item with this id
+     */
+    public Item findItemById(long id) {
+        return read(() -> allItemList.get(id));
+    }
+
     /**
      * Allows an user to delete an item from their selling list.
      *
      * @param item: The item that is going to be removed
      */
-    public synchronized void deleteItem(Item item) {
-        allItemList.remove(item);
+    public void deleteItem(Item item) {
+        deleteItem(item, Durability.SYNC);
+    }
+
+    /**
+     * Deletes an item with a choice of durability.
+     *
+     * @param item       the item to remove
+     * @param durability when the deletion is on disk
+     */
+    public void deleteItem(Item item, Durability durability) {
+        long token = userLocks.withUser(item.getOwner(), () -> write(() -> {
+            removeItem(item);
+            if (durability == Durability.COALESCED) {
+                coalescer.markItem(item, true);
+                return 0L;
+            }
+            return coalescer.deleteItem(item);
+        }));
+        commit(token);
         System.out.println("Remove the item successfully");
         // try {
         // deleteContentInFile(allItemFileName);
@@ -446,6 +928,43 @@ public class Database {
 
     }
 
+    /**
+     * Removes an item from the item map and its indexes and takes it off sale, so a buyer
+     * still holding it cannot pay for it. The caller must hold the write lock and the
+     * owner's stripe.
+     *
+     * @param item the item to remove
+     */
+    private void removeItem(Item item) {
+        item.setForSale(false);
+        if (allItemList.remove(item.getId()) != null) {
+            itemNameIndex.remove(item);
+            priceIndex.remove(item);
+        }
+    }
+
+    /**
+     * Removes every item of a user from the item map and its indexes and takes them off
+     * sale. The caller must hold the write lock and the user's stripe.
+     *
+     * @param user the owner of the items
+     * @return the removed items
+     */
+    private ArrayList<Item> removeItemsOf(User user) {
+        ArrayList<Item> removed = new ArrayList<>();
+        allItemList.values().removeIf(i -> {
+            if (i.getOwner().equals(user)) {
+                i.setForSale(false);
+                itemNameIndex.remove(i);
+                priceIndex.remove(i);
+                removed.add(i);
+                return true;
+            }
+            return false;
+        });
+        return removed;
+    }
+
     // // generic search function - might break if there is null in arraylist -
     // might move to util class later
     // // returns the EXACT object found in array
@@ -468,40 +987,112 @@ public class Database {
      * @return the string if there is an error in the transaction, null if there
      *         isn't one
      */
-    public synchronized String transaction(User buyer, User seller, Item item) {
-        if (!allUserList.containsValue(buyer) || !allUserList.containsValue(seller)) {
-            return "Seller doesn't exist";
-        }
-        if (!item.isForSale()) {
-            return "Item is not sold now";
-        }
-        if (item.getPrice() > buyer.getBalance()) {
-            return "You do not have enough money to buy this";
+    public String transaction(User buyer, User seller, Item item) {
+        // only the two users are locked, so unrelated purchases run at the same time; the
+        // database lock is taken just to drop the sold item from the indexes
+        long[] token = {-1};
+        String result = userLocks.withUsers(buyer, seller, () -> {
+            if (!buyer.equals(findByEmail(buyer.getEmail())) || !seller.equals(findByEmail(seller.getEmail()))) {
+                return "Seller doesn't exist";
+            }
+            if (!item.isForSale()) {
+                return "Item is not sold now";
+            }
+            if (item.getPrice() > buyer.getBalance()) {
+                return "You do not have enough money to buy this";
+            }
+            seller.addBalance(item.getPrice());
+            buyer.setBalance(buyer.getBalance() - item.getPrice());
+            // a second buyer holding the same item now sees it as sold
+            item.setForSale(false);
+            token[0] = write(() -> {
+                removeItem(item);
+                return coalescer.recordSale(item, buyer, seller);
+            });
+            return "Transaction occurs successfully";
+        });
+        if (token[0] >= 0 && !commit(token[0])) {
+            return "The purchase could not be saved";
         }
-        seller.addBalance(item.getPrice());
-        buyer.setBalance(buyer.getBalance() - item.getPrice());
-        deleteItem(item);
-        return "Transaction occurs successfully";
+        return result;
     }
 
     /**
-     * Setting up a timer 5 minutes to auto save everything instead of just write 1
-     * time before
-     * closing everything. Doing this will create regular backup in the case the
-     * server crashes
-     * or close unexpectedly.
+     * Adds money to a user's balance.
      *
+     * @param user   the user
+     * @param amount the amount to add in cents
+     * @return the new balance in cents
+     */
+    public long addBalance(User user, long amount) {
+        long[] token = new long[1];
+        long balance = userLocks.withUser(user, () -> {
+            user.addBalance(amount);
+            token[0] = coalescer.persistUser(user, user.getEmail());
+            return user.getBalance();
+        });
+        commit(token[0]);
+        return balance;
+    }
+
+    /**
+     * Takes money from a user's balance if there is enough of it.
      *
+     * @param user   the user
+     * @param amount the amount to take in cents
+     * @return the new balance in cents
+     * @throws InvalidAccountOperationException if the balance is lower than the amount
+     */
+    public long withdrawBalance(User user, long amount) throws InvalidAccountOperationException {
+        long[] token = new long[1];
+        Long balance = userLocks.withUser(user, () -> {
+            if (user.getBalance() < amount) {
+                return null;
+            }
+            user.setBalance(user.getBalance() - amount);
+            token[0] = coalescer.persistUser(user, user.getEmail());
+            return user.getBalance();
+        });
+        if (balance == null) {
+            throw new InvalidAccountOperationException("Insufficient balance");
+        }
+        commit(token[0]);
+        return balance;
+    }
+
+    /**
+     * Starts taking snapshots in the background. The storage backend already makes every
+     * change durable, a snapshot only keeps the backlog small so a restart reads little of it.
+     * A snapshot is taken every 10 minutes if anything changed, and sooner when the backlog
+     * grows past SNAPSHOT_BACKLOG_BYTES. Calling this again does nothing.
+     */
+    public void setupAutoSave() {
+        synchronized (schedulerLock) {
+            if (snapshotScheduler != null) {
+                return;
+            }
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "database-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotScheduler.scheduleWithFixedDelay(this::snapshotIfDue, SNAPSHOT_CHECK_SECONDS,
+                    SNAPSHOT_CHECK_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Takes a snapshot if the backlog is large enough or the last one is old enough.
      */
-    public synchronized void setupAutoSave() {
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                writeToFile();
+    private void snapshotIfDue() {
+        long backlog = storage.getBacklogBytes();
+        long age = System.nanoTime() - lastSnapshotTime;
+        if (backlog >= SNAPSHOT_BACKLOG_BYTES
+                || (backlog > 0 && age >= TimeUnit.SECONDS.toNanos(SNAPSHOT_INTERVAL_SECONDS))) {
+            if (writeToFile()) {
                 System.out.println("Auto-save completed");
             }
-        }, 10 * 60 * 1000, 10 * 60 * 1000); // Run every 10 minutes
+        }
     }
 
 }
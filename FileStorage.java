@@ -0,0 +1,431 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * The file backend: a binary snapshot of everything plus a journal of the changes since.
+ *
+ * Every change is appended to the journal, whose committer syncs the changes of many
+ * clients at once. A snapshot writes database.snapshot in one pass and then drops the
+ * journal segments it covers. Before the first snapshot exists the users and items are
+ * imported from the legacy text files, allUser.txt and MarketInventory.txt by default.
+ * The snapshot and the journal live in the directory of the user file.
+ */
+public class FileStorage implements Storage {
+    // journal record types; every record carries the whole new state of what it changes,
+    // so replaying a record that the snapshot already contains does no harm
+    private static final byte USER = 'U';         // old email, name, password, email, balance
+    private static final byte DELETE_USER = 'u';  // email
+    private static final byte ITEM = 'I';         // id, owner, name, price, description, forSale
+    private static final byte DELETE_ITEM = 'i';  // id
+    private static final byte SALE = 'S';         // item id, buyer email, buyer balance, seller email, seller balance
+
+    private final String allUserFileName;
+    private final String allItemFileName;
+    // the binary snapshot, once it exists the text files are no longer read
+    private final File snapshotFile;
+    // every change since the last snapshot
+    private final Journal journal;
+    // serializes snapshots with each other
+    private final Object snapshotMonitor = new Object();
+
+    // the data being loaded, only used by load
+    private HashMap<String, User> usersByEmail;
+    private HashMap<String, User> usersByName;
+    private TreeMap<Long, Item> items;
+    private long nextItemId;
+
+    /**
+     * Creates a file backend. Nothing is read before load.
+     *
+     * @param allUserFileName the legacy text file of users
+     * @param allItemFileName the legacy text file of items
+     */
+    public FileStorage(String allUserFileName, String allItemFileName) {
+        this.allUserFileName = allUserFileName;
+        this.allItemFileName = allItemFileName;
+        File directory = new File(allUserFileName).getAbsoluteFile().getParentFile();
+        snapshotFile = new File(directory, "database.snapshot");
+        journal = new Journal(new File(directory, "database.journal"));
+    }
+
+    /**
+     * Reads the snapshot, or the text files before the first snapshot, and replays the
+     * journal on top of it.
+     *
+     * @return the users and items
+     * @throws IOException if the snapshot or the journal cannot be read; the text files are
+     *                     not a fallback, they stop being written once a snapshot exists and
+     *                     the journal before the snapshot is already gone
+     */
+    @Override
+    public StoredData load() throws IOException {
+        long start = System.nanoTime();
+        StoredData snapshot = null;
+        if (snapshotFile.exists()) {
+            try {
+                snapshot = SnapshotFile.read(snapshotFile);
+            } catch (IOException e) {
+                throw new IOException("Cannot read " + snapshotFile.getName() + ": " + e.getMessage(), e);
+            }
+        }
+        usersByEmail = new HashMap<>();
+        usersByName = new HashMap<>();
+        items = new TreeMap<>();
+        nextItemId = 1;
+        try {
+            if (snapshot == null) {
+                loadTextFiles();
+            }
+            long readNanos = System.nanoTime() - start;
+
+            // the snapshot already contains every change recorded before its journal position
+            long from = snapshot != null ? SnapshotFile.readJournalPosition(snapshotFile) : 0;
+            ArrayList<Object[]> records = new ArrayList<>();
+            journal.replay(from, (type, fields) -> records.add(new Object[] {type, fields}));
+            StoredData data = snapshot;
+            if (snapshot == null || !records.isEmpty()) {
+                if (snapshot != null) {
+                    // the snapshot is only turned into maps when there is something to replay
+                    for (User user : snapshot.users()) {
+                        usersByEmail.put(user.getEmail(), user);
+                        usersByName.put(user.getName(), user);
+                    }
+                    for (Item item : snapshot.items()) {
+                        items.put(item.getId(), item);
+                    }
+                    nextItemId = snapshot.nextItemId();
+                }
+                for (Object[] record : records) {
+                    replayRecord((Byte) record[0], (String[]) record[1]);
+                }
+                for (Item item : items.values()) {
+                    nextItemId = Math.max(nextItemId, item.getId() + 1);
+                }
+                data = new StoredData(usersByEmail.values().toArray(new User[0]),
+                        items.values().toArray(new Item[0]), nextItemId);
+            }
+            System.out.printf("Read %s in %.1f ms, %,d journal records%n",
+                    snapshot != null ? "snapshot" : "text files", readNanos / 1e6, records.size());
+            return data;
+        } finally {
+            usersByEmail = null;
+            usersByName = null;
+            items = null;
+        }
+    }
+
+    @Override
+    public long persistUser(String oldEmail, User user) {
+        return journal.append(USER, oldEmail, user.getName(), user.getPassword(), user.getEmail(),
+                Long.toString(user.getBalance()));
+    }
+
+    @Override
+    public long persistItem(Item item) {
+        return journal.append(ITEM, Long.toString(item.getId()), item.getOwner().getName(),
+                item.getItemName(), Long.toString(item.getPrice()), item.getDescription(),
+                Boolean.toString(item.isForSale()));
+    }
+
+    /**
+     * Records the deletion of a user. The items go with it on replay, so they are not
+     * recorded one by one.
+     */
+    @Override
+    public long deleteUser(User user, Collection<Item> items) {
+        return journal.append(DELETE_USER, user.getEmail());
+    }
+
+    @Override
+    public long deleteItem(Item item) {
+        return journal.append(DELETE_ITEM, Long.toString(item.getId()));
+    }
+
+    @Override
+    public long recordSale(Item item, User buyer, User seller) {
+        return journal.append(SALE, Long.toString(item.getId()), buyer.getEmail(),
+                Long.toString(buyer.getBalance()), seller.getEmail(), Long.toString(seller.getBalance()));
+    }
+
+    @Override
+    public void awaitDurable(long token) throws IOException {
+        journal.awaitDurable(token);
+    }
+
+    /**
+     * Writes the snapshot in one pass to a temporary file next to it, flushes it to disk
+     * and renames it over the old one, so a crash in the middle leaves the previous version
+     * intact. Once it is in place the journal records it contains are dropped.
+     *
+     * The snapshot keeps the journal position taken under the Database lock right before
+     * the copy; a restart replays only the records from there. A change made after that may
+     * or may not make it into the snapshot, but its record is replayed, and as no name or
+     * email changes while the lock is held, it still finds its user. Items refer to their
+     * owner by position in the snapshot, so a rename in the middle cannot orphan them.
+     */
+    @Override
+    public long snapshot(Copier copy) throws IOException {
+        synchronized (snapshotMonitor) {
+            long[] mark = new long[1];
+            // every change recorded before the mark is done and so is in the copy
+            StoredData data = copy.copy(() -> mark[0] = journal.position());
+            // items whose owner was added after the copy are left out, they are in the journal
+            long bytes = replaceFile(snapshotFile.getPath(), out -> SnapshotFile.write(out,
+                    Arrays.asList(data.users()), Arrays.asList(data.items()), data.nextItemId(),
+                    mark[0]));
+            journal.truncateBefore(mark[0]);
+            return bytes;
+        }
+    }
+
+    /**
+     * Returns how much journal a restart would replay on top of the last snapshot.
+     */
+    @Override
+    public long getBacklogBytes() {
+        return journal.getBacklogBytes();
+    }
+
+    /**
+     * Returns how many times the journal was synced to disk. Changes made at the same time
+     * share a sync, so this grows slower than the number of changes under load.
+     */
+    @Override
+    public long getSyncCount() {
+        return journal.getCommitCount();
+    }
+
+    /**
+     * Writes the last journal records to disk and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Reads the legacy text files into the maps being loaded, creating the files if they do
+     * not exist.
+     */
+    private void loadTextFiles() {
+        File userFile = new File(allUserFileName);
+        File allItemFile = new File(allItemFileName);
+
+        // Create files if they don't exist
+        try {
+            if (!userFile.exists()) {
+                userFile.createNewFile();
+                System.out.println("Created new user database file: " + allUserFileName);
+            }
+            if (!allItemFile.exists()) {
+                allItemFile.createNewFile();
+                System.out.println("Created new item database file: " + allItemFileName);
+            }
+        } catch (IOException e) {
+            System.out.println("Error creating database files: " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        // Load user data
+        try (BufferedReader bfr = new BufferedReader(new FileReader(userFile))) {
+            String line;
+            while ((line = bfr.readLine()) != null) {
+                if (line.trim().isEmpty()) continue; // Skip empty lines
+
+                String[] parts = line.split(",");
+                if (parts.length < 4) {
+                    System.out.println("Warning: Invalid user data format: " + line);
+                    continue;
+                }
+
+                try {
+                    String username = parts[0];
+                    String password = parts[1];
+                    String email = parts[2];
+                    long balance = Money.parseStored(parts[3]);
+                    User user = new User(username, email, password, balance);
+                    usersByEmail.put(email, user);
+                    usersByName.put(username, user);
+                } catch (NumberFormatException e) {
+                    System.out.println("Warning: Invalid balance format in user data: " + line);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading user database: " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        // Load item data
+        try (BufferedReader bfr = new BufferedReader(new FileReader(allItemFile))) {
+            String line;
+            while ((line = bfr.readLine()) != null) {
+                if (line.trim().isEmpty()) continue; // Skip empty lines
+
+                String[] itemPart = line.split(",");
+                if (itemPart.length < 5) {
+                    System.out.println("Warning: Invalid item data format: " + line);
+                    continue;
+                }
+
+                try {
+                    // lines written before items had ids have no id field, they get a new id
+                    long id = -1;
+                    int field = 0;
+                    if (itemPart.length >= 6 && itemPart[0].matches("\\d+")) {
+                        id = Long.parseLong(itemPart[0]);
+                        field = 1;
+                    }
+                    String ownerName = itemPart[field];
+                    String itemName = itemPart[field + 1];
+                    long price = Money.parseStored(itemPart[field + 2]);
+                    String description = itemPart[field + 3];
+                    boolean forSale = Boolean.parseBoolean(itemPart[field + 4]);
+                    if (id < 0 || items.containsKey(id)) {
+                        id = nextItemId;
+                    }
+
+                    // Find owner by username
+                    User owner = usersByName.get(ownerName);
+                    if (owner == null) {
+                        System.out.println("Warning: Owner not found for item: " + itemName);
+                        continue;
+                    }
+
+                    items.put(id, new Item(id, owner, itemName, price, description, forSale));
+                    nextItemId = Math.max(nextItemId, id + 1);
+                } catch (NumberFormatException e) {
+                    System.out.println("Warning: Invalid price format in item data: " + line);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading item database: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies one journal record to the maps being loaded.
+     *
+     * @param type   the record type
+     * @param fields the fields of the record
+     */
+    private void replayRecord(byte type, String[] fields) {
+        try {
+            switch (type) {
+                case USER -> {
+                    User user = usersByEmail.get(fields[0]);
+                    if (user == null) {
+                        // a snapshot taken after a coalesced email change already has the new one
+                        user = usersByEmail.get(fields[3]);
+                    }
+                    if (user == null) {
+                        user = new User(fields[1], fields[3], fields[2], Long.parseLong(fields[4]));
+                    } else {
+                        if (usersByName.get(user.getName()) == user) {
+                            usersByName.remove(user.getName());
+                        }
+                        usersByEmail.remove(fields[0]);
+                        user.restore(fields[1], fields[3], fields[2], Long.parseLong(fields[4]));
+                    }
+                    usersByEmail.put(user.getEmail(), user);
+                    usersByName.put(user.getName(), user);
+                }
+                case DELETE_USER -> {
+                    User user = usersByEmail.remove(fields[0]);
+                    if (user != null) {
+                        if (usersByName.get(user.getName()) == user) {
+                            usersByName.remove(user.getName());
+                        }
+                        items.values().removeIf(i -> i.getOwner() == user);
+                    }
+                }
+                case ITEM -> {
+                    long id = Long.parseLong(fields[0]);
+                    User owner = usersByName.get(fields[1]);
+                    items.remove(id);
+                    if (owner == null) {
+                        System.out.println("Warning: Owner not found for item: " + fields[2]);
+                        break;
+                    }
+                    items.put(id, new Item(id, owner, fields[2], Long.parseLong(fields[3]), fields[4],
+                            Boolean.parseBoolean(fields[5])));
+                }
+                case DELETE_ITEM -> items.remove(Long.parseLong(fields[0]));
+                case SALE -> {
+                    items.remove(Long.parseLong(fields[0]));
+                    setStoredBalance(fields[1], fields[2]);
+                    setStoredBalance(fields[3], fields[4]);
+                }
+                default -> System.out.println("Warning: Unknown journal record type " + (char) type);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.out.println("Warning: Invalid journal record of type " + (char) type);
+        }
+    }
+
+    /**
+     * Sets the balance of a user during replay, if the user still exists.
+     *
+     * @param email   the email of the user
+     * @param balance the balance in cents as written in the journal
+     */
+    private void setStoredBalance(String email, String balance) {
+        User user = usersByEmail.get(email);
+        if (user != null) {
+            user.setBalance(Long.parseLong(balance));
+        }
+    }
+
+    /**
+     * Replaces a file with new content: writes a temporary file in the same directory,
+     * forces it to disk and renames it over the old file.
+     *
+     * @param fileName the file to replace
+     * @param content  writes the new content
+     * @return the size of the new file
+     * @throws IOException if the file could not be written or renamed
+     */
+    static long replaceFile(String fileName, FileContent content) throws IOException {
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        long size;
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             BufferedOutputStream out = new BufferedOutputStream(file, 1 << 16)) {
+            content.writeTo(out);
+            out.flush();
+            file.getFD().sync();
+            size = file.getChannel().size();
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        // make the rename itself durable; not every platform can open a directory for this
+        try (FileChannel directory = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // the data is in place, only the rename might not survive a power loss
+        }
+        return size;
+    }
+
+    /**
+     * Writes the content of a file replaced by replaceFile.
+     */
+    @FunctionalInterface
+    interface FileContent {
+        void writeTo(OutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+
+/**
+ * Encodes and decodes the length-prefixed frames used by the NioServer.
+ * A frame is a 4 byte big-endian payload length followed by the payload.
+ * The payload is a serialized Object[]: a request holds the command followed by its
+ * arguments, a response holds every object the command answered with.
+ */
+public final class FrameCodec {
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes the values into a complete frame, header included.
+     *
+     * @param values the objects to put in the frame
+     * @return the frame bytes
+     * @throws IOException if a value cannot be serialized or the frame is too large
+     */
+    public static byte[] encode(Object[] values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[HEADER_SIZE]); // length is filled in below
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(values);
+        }
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - HEADER_SIZE;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + length + " bytes");
+        }
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * Decodes a frame payload, without its header, back into its values.
+     *
+     * @param payload the payload bytes
+     * @return the values in the frame
+     * @throws IOException if the payload is not a valid frame
+     */
+    public static Object[] decode(byte[] payload) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            Object values = in.readObject();
+            if (!(values instanceof Object[])) {
+                throw new IOException("Frame payload is not an object array");
+            }
+            return (Object[]) values;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class in frame: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks a payload length read from a frame header.
+     *
+     * @param length the length from the header
+     * @throws IOException if the length is negative or larger than MAX_FRAME_SIZE
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * Writes one frame to a blocking stream.
+     *
+     * @param out the stream to write to
+     * @param values the objects to put in the frame
+     * @throws IOException if the frame cannot be written
+     */
+    public static void writeFrame(OutputStream out, Object[] values) throws IOException {
+        out.write(encode(values));
+        out.flush();
+    }
+
+    /**
+     * Reads one frame from a blocking stream.
+     *
+     * @param in the stream to read from
+     * @return the values in the frame
+     * @throws IOException if the stream ends or the frame is invalid
+     */
+    public static Object[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(payload);
+    }
+}
@@ -2,14 +2,16 @@ import java.io.Serializable;
 
 public class Item implements ItemInterface, Serializable {
 
+    private final long id; // assigned by the Database, never reused
     private User owner;
     private String itemName;
-    private double price;
+    private long price; // in cents
     private String description;
-    private boolean forSale;
+    private volatile boolean forSale; // changed under the owner's UserLocks stripe
 
 
-    public Item(User owner, String itemName, double price,String description, boolean forSale) {
+    public Item(long id, User owner, String itemName, long price,String description, boolean forSale) {
+        this.id = id;
         this.owner = owner;
         this.itemName = itemName;
         this.price = price;
@@ -17,6 +19,10 @@ public class Item implements ItemInterface, Serializable {
         this.description = description;
     }
     
+    public long getId() {
+        return id;
+    }
+
     public User getOwner() {
         return owner;
     }
@@ -25,7 +31,12 @@ public class Item implements ItemInterface, Serializable {
         return itemName;
     }
 
-    public double getPrice() {
+    /**
+     * Returns the price in cents.
+     *
+     * @return the price in cents
+     */
+    public long getPrice() {
         return price;
     }
 
@@ -41,7 +52,7 @@ public class Item implements ItemInterface, Serializable {
         this.itemName = itemName;
     }
 
-    public void setPrice(double price) {
+    public void setPrice(long price) {
         this.price = price;
     }
 
@@ -50,7 +61,7 @@ public class Item implements ItemInterface, Serializable {
     }
 
     public String toFileString() {
-        return owner.getName() + "," + itemName + "," + price + "," + description + "," + forSale;
+        return id + "," + owner.getName() + "," + itemName + "," + price + "," + description + "," + forSale;
     }
 
     public String getDescription() {
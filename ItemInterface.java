@@ -1,12 +1,13 @@
 public interface ItemInterface {
 
+    public long getId();
     public User getOwner();
     public String getItemName();
-    public double getPrice();
+    public long getPrice();
     public boolean isForSale();
     public void setOwner(User owner);
     public void setItemName(String name);
-    public void setPrice(double price);
+    public void setPrice(long price);
     public void setForSale(boolean forSale);
 
 }
@@ -0,0 +1,71 @@
+import java.io.Serializable;
+
+/**
+ * The part of an Item that buyers see when browsing or searching.
+ * Unlike Item it only carries the seller's name, never the seller's User object.
+ */
+public class ItemListing implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    private final String itemName;
+    private final long price;
+    private final String description;
+    private final String sellerName;
+    private final boolean forSale;
+
+    /**
+     * Constructs a listing from its fields.
+     *
+     * @param id the item id
+     * @param itemName the item name
+     * @param price the item price in cents
+     * @param description the item description
+     * @param sellerName the username of the seller
+     * @param forSale whether the item can still be bought
+     */
+    public ItemListing(long id, String itemName, long price, String description, String sellerName,
+                       boolean forSale) {
+        this.id = id;
+        this.itemName = itemName;
+        this.price = price;
+        this.description = description;
+        this.sellerName = sellerName;
+        this.forSale = forSale;
+    }
+
+    /**
+     * Creates the listing for an item.
+     *
+     * @param item the item
+     * @return the listing of the item
+     */
+    public static ItemListing of(Item item) {
+        return new ItemListing(item.getId(), item.getItemName(), item.getPrice(), item.getDescription(),
+                item.getOwner().getName(), item.isForSale());
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getItemName() {
+        return itemName;
+    }
+
+    public long getPrice() {
+        return price;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getSellerName() {
+        return sellerName;
+    }
+
+    public boolean isForSale() {
+        return forSale;
+    }
+}
@@ -0,0 +1,266 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * An inverted index over item names used by Database.getItemsFromName.
+ *
+ * Every name is split into its trigrams (all runs of three characters), and each trigram
+ * points to a sorted posting list of the ids of the items whose name contains it. An item
+ * name can only contain the search term if it contains every trigram of the term, so the
+ * candidates are the intersection of those posting lists, which is then checked with
+ * String.contains. Terms shorter than three characters have no trigrams and are answered
+ * with a scan.
+ *
+ * The search also returns for-sale items whose whole name appears inside the search term.
+ * Those are found by looking up every substring of the term in a map of exact names.
+ *
+ * Not thread safe, the Database changes it under its write lock and searches it under
+ * its read lock.
+ */
+public class ItemNameIndex {
+    // longer terms are too expensive to split into every substring, they are scanned instead
+    private static final int MAX_SUBSTRING_LOOKUP_LENGTH = 64;
+
+    // ids resolved by every search, a hash map because the database's own map is sorted
+    private final HashMap<Long, Item> items = new HashMap<>();
+    private final HashMap<Long, PostingList> trigrams = new HashMap<>();
+    private final HashMap<String, PostingList> exactNames = new HashMap<>();
+
+    /**
+     * Adds an item to the index.
+     *
+     * @param item the item to add
+     */
+    public void add(Item item) {
+        String name = item.getItemName();
+        for (long trigram : trigramsOf(name)) {
+            trigrams.computeIfAbsent(trigram, k -> new PostingList()).add(item.getId());
+        }
+        exactNames.computeIfAbsent(name, k -> new PostingList()).add(item.getId());
+        items.put(item.getId(), item);
+    }
+
+    /**
+     * Removes an item from the index. The item must still have the name it was added with.
+     *
+     * @param item the item to remove
+     */
+    public void remove(Item item) {
+        String name = item.getItemName();
+        for (long trigram : trigramsOf(name)) {
+            PostingList list = trigrams.get(trigram);
+            if (list != null && list.remove(item.getId()) && list.size == 0) {
+                trigrams.remove(trigram);
+            }
+        }
+        PostingList list = exactNames.get(name);
+        if (list != null && list.remove(item.getId()) && list.size == 0) {
+            exactNames.remove(name);
+        }
+        items.remove(item.getId());
+    }
+
+    /**
+     * Removes every item from the index.
+     */
+    public void clear() {
+        trigrams.clear();
+        exactNames.clear();
+        items.clear();
+    }
+
+    /**
+     * Finds the items whose name contains the term, and the for-sale items whose name
+     * is contained in the term, ordered by id.
+     *
+     * @param term the search term
+     * @return the matching items
+     */
+    public ArrayList<Item> search(String term) {
+        if (term.length() < 3 || term.length() > MAX_SUBSTRING_LOOKUP_LENGTH) {
+            return scan(term);
+        }
+        // names containing the term, intersecting the shortest posting lists first
+        long[] termTrigrams = trigramsOf(term);
+        PostingList[] lists = new PostingList[termTrigrams.length];
+        long[] candidates = new long[0];
+        boolean allPresent = true;
+        for (int i = 0; i < termTrigrams.length; i++) {
+            lists[i] = trigrams.get(termTrigrams[i]);
+            if (lists[i] == null) {
+                allPresent = false;
+                break;
+            }
+        }
+        if (allPresent) {
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+            candidates = lists[0].toArray();
+            for (int i = 1; i < lists.length && candidates.length > 0; i++) {
+                candidates = lists[i].intersect(candidates);
+            }
+        }
+        int matches = 0;
+        for (long id : candidates) {
+            if (items.get(id).getItemName().contains(term)) {
+                candidates[matches++] = id;
+            }
+        }
+
+        // for-sale items whose name is a part of the term
+        TreeSet<Long> partOfTerm = new TreeSet<>();
+        for (int start = 0; start < term.length(); start++) {
+            for (int end = start + 1; end <= term.length(); end++) {
+                PostingList list = exactNames.get(term.substring(start, end));
+                if (list == null) {
+                    continue;
+                }
+                for (int i = 0; i < list.size; i++) {
+                    if (items.get(list.ids[i]).isForSale()) {
+                        partOfTerm.add(list.ids[i]);
+                    }
+                }
+            }
+        }
+
+        // merge both sorted id lists, dropping ids found by both
+        ArrayList<Item> found = new ArrayList<>(matches + partOfTerm.size());
+        Iterator<Long> extra = partOfTerm.iterator();
+        Long next = extra.hasNext() ? extra.next() : null;
+        for (int i = 0; i < matches; i++) {
+            while (next != null && next <= candidates[i]) {
+                if (next < candidates[i]) {
+                    found.add(items.get(next));
+                }
+                next = extra.hasNext() ? extra.next() : null;
+            }
+            found.add(items.get(candidates[i]));
+        }
+        while (next != null) {
+            found.add(items.get(next));
+            next = extra.hasNext() ? extra.next() : null;
+        }
+        return found;
+    }
+
+    /**
+     * Answers a search by checking every item, for terms the index cannot help with.
+     *
+     * @param term the search term
+     * @return the matching items in id order
+     */
+    private ArrayList<Item> scan(String term) {
+        ArrayList<Item> found = new ArrayList<>();
+        for (Item item : items.values()) {
+            // check if search words contain item names or item name that have the searched
+            // word in there.
+            if (item.getItemName().contains(term) || (term.contains(item.getItemName()) && item.isForSale())) {
+                found.add(item);
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+        return found;
+    }
+
+    /**
+     * Returns the distinct trigrams of a string, each packed into a long.
+     *
+     * @param s the string
+     * @return the trigrams
+     */
+    private static long[] trigramsOf(String s) {
+        if (s.length() < 3) {
+            return new long[0];
+        }
+        // sort and drop repeats in place, a hash set of boxed longs made adding slow
+        long[] all = new long[s.length() - 2];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+        }
+        Arrays.sort(all);
+        int n = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (n == 0 || all[n - 1] != all[i]) {
+                all[n++] = all[i];
+            }
+        }
+        return n == all.length ? all : Arrays.copyOf(all, n);
+    }
+
+    /**
+     * A sorted list of item ids backed by a growable array. Ids are handed out in
+     * increasing order, so adding is almost always an append.
+     */
+    private static final class PostingList {
+        private long[] ids = new long[4];
+        private int size;
+
+        void add(long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            if (size == 0 || ids[size - 1] < id) {
+                ids[size++] = id;
+                return;
+            }
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+
+        boolean remove(long id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at < 0) {
+                return false;
+            }
+            System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+            size--;
+            return true;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(ids, size);
+        }
+
+        /**
+         * Returns the ids that are both in this list and in the sorted array.
+         *
+         * @param other a sorted array of ids
+         * @return the common ids, sorted
+         */
+        long[] intersect(long[] other) {
+            long[] result = new long[Math.min(size, other.length)];
+            int n = 0;
+            if (other.length * 16 < size) {
+                // much shorter, look each id up instead of walking both
+                for (long id : other) {
+                    if (Arrays.binarySearch(ids, 0, size, id) >= 0) {
+                        result[n++] = id;
+                    }
+                }
+            } else {
+                int i = 0;
+                int j = 0;
+                while (i < size && j < other.length) {
+                    if (ids[i] < other[j]) {
+                        i++;
+                    } else if (ids[i] > other[j]) {
+                        j++;
+                    } else {
+                        result[n++] = ids[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.ArrayList;
+
+/**
+ * One page of listings received from the server, with the cursor to ask for the next page.
+ */
+public class ItemPage {
+    private final ArrayList<ItemListing> listings;
+    private final String nextCursor;
+
+    /**
+     * Constructs a page.
+     *
+     * @param listings the listings of this page
+     * @param nextCursor the cursor of the next page, or null if this is the last page
+     */
+    public ItemPage(ArrayList<ItemListing> listings, String nextCursor) {
+        this.listings = listings;
+        this.nextCursor = nextCursor;
+    }
+
+    public ArrayList<ItemListing> getListings() {
+        return listings;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
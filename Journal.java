@@ -0,0 +1,493 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only write-ahead journal of changes to the database.
+ *
+ * Every change is appended as one record: a type byte, a field count, the fields as UTF-8
+ * bytes after their length and the CRC32C of all of that. Replay stops at the first record
+ * that is cut short or fails its checksum: everything before it is known good, and what
+ * follows is dropped and reported.
+ *
+ * Appending only copies the record into a memory buffer; a single committer thread writes
+ * whatever has piled up and forces it to disk with one fsync, so clients that change data
+ * at the same time share the cost of a sync (group commit). Callers wait for their record
+ * with awaitDurable.
+ *
+ * The journal is split into segment files named after the journal file and the position of
+ * their first byte, for example database.journal.0 and database.journal.4194304. Positions
+ * are byte offsets since the journal was created and never go back. A new segment is started
+ * once the current one is longer than its size limit, so dropping the records a snapshot
+ * already holds is just deleting the segments before it, nothing is copied.
+ *
+ * The files are only written on the first append, so a journal that is only replayed never
+ * touches them.
+ */
+public class Journal implements Closeable {
+    public static final long SEGMENT_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * Receives the records of the journal during a replay.
+     */
+    public interface RecordHandler {
+        void apply(byte type, String[] fields);
+    }
+
+    private final File file;
+    private final long segmentBytes;
+
+    // guards everything below except the file fields
+    private final Object monitor = new Object();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    // a record is encoded here first, to checksum it before it joins the pending ones
+    private final RecordBuffer record = new RecordBuffer();
+    private final DataOutputStream recordData = new DataOutputStream(record);
+    private final DataOutputStream pendingData = new DataOutputStream(pending);
+    private final CRC32C checksum = new CRC32C();
+    private long appended;
+    private long durable;
+    private long commits;
+    private IOException failure;
+    private boolean closed;
+    private boolean replayed;
+    private Thread committer;
+
+    // guards the files, held by the committer while writing and by truncateBefore
+    private final Object fileMonitor = new Object();
+    // the segments on disk keyed by the position of their first byte
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private FileOutputStream out;
+    private long segmentStart;
+    // set when the current segment is full or dropped, the next write starts a new one
+    private boolean startNewSegment;
+    private boolean opened;
+
+    /**
+     * Creates a journal whose segments are named after a file. Nothing is read or written yet.
+     *
+     * @param file the journal file name, the segments add their position to it
+     */
+    public Journal(File file) {
+        this(file, SEGMENT_BYTES);
+    }
+
+    /**
+     * Creates a journal with a custom segment size.
+     *
+     * @param file         the journal file name, the segments add their position to it
+     * @param segmentBytes the size after which a new segment is started
+     */
+    public Journal(File file, long segmentBytes) {
+        this.file = file.getAbsoluteFile();
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Reads every complete record on disk. The first record cut short by a crash or failing
+     * its checksum ends the journal: it and everything after it are reported, ignored and
+     * dropped from the files before the next append.
+     * Must be called before the first append; calling it again later only reads the records.
+     *
+     * @param handler receives the records in the order they were appended
+     * @return the number of records read
+     * @throws IOException if a segment cannot be read
+     */
+    public int replay(RecordHandler handler) throws IOException {
+        return replay(0, handler);
+    }
+
+    /**
+     * Reads every complete record on disk from a position on, like replay. Records before
+     * the position, such as those a snapshot already holds, are read but not handed on.
+     *
+     * @param from    the position of the first record to hand on
+     * @param handler receives the records in the order they were appended
+     * @return the number of records handed on
+     * @throws IOException if a segment cannot be read
+     */
+    public int replay(long from, RecordHandler handler) throws IOException {
+        synchronized (fileMonitor) {
+            boolean first;
+            synchronized (monitor) {
+                first = !replayed;
+            }
+            if (first) {
+                findSegments();
+            }
+            int records = 0;
+            long end = segments.isEmpty() ? 0 : segments.firstKey();
+            long dropped = 0;
+            String reason = null;
+            CRC32C crc = new CRC32C();
+            for (Map.Entry<Long, File> segment : segments.entrySet()) {
+                if (reason != null) {
+                    dropped += segment.getValue().length();
+                    continue;
+                }
+                if (segment.getKey() != end) {
+                    reason = "segment " + segment.getValue().getName() + " does not follow the previous one";
+                    dropped += segment.getValue().length();
+                    continue;
+                }
+                byte[] content = Files.readAllBytes(segment.getValue().toPath());
+                ByteArrayInputStream bytes = new ByteArrayInputStream(content);
+                DataInputStream in = new DataInputStream(bytes);
+                int good = 0;
+                while (bytes.available() > 0) {
+                    long position = segment.getKey() + good;
+                    int type;
+                    String[] fields;
+                    try {
+                        type = in.readUnsignedByte();
+                        fields = new String[in.readUnsignedByte()];
+                        for (int i = 0; i < fields.length; i++) {
+                            int length = in.readInt();
+                            if (length < 0 || length > bytes.available()) {
+                                throw new EOFException();
+                            }
+                            byte[] field = new byte[length];
+                            in.readFully(field);
+                            fields[i] = new String(field, StandardCharsets.UTF_8);
+                        }
+                        crc.reset();
+                        crc.update(content, good, content.length - bytes.available() - good);
+                        if (in.readInt() != (int) crc.getValue()) {
+                            reason = "a record at position " + position + " fails its checksum";
+                            break;
+                        }
+                    } catch (EOFException e) {
+                        reason = "a record at position " + position + " is cut short";
+                        break;
+                    }
+                    if (position >= from) {
+                        handler.apply((byte) type, fields);
+                        records++;
+                    }
+                    good = content.length - bytes.available();
+                }
+                end = segment.getKey() + good;
+                dropped += content.length - good;
+            }
+            if (reason != null) {
+                // the damaged tail is cut off by the first append, see openSegment
+                System.out.printf("Warning: %s, dropping the last %,d bytes of the journal%n", reason, dropped);
+            }
+            if (first) {
+                synchronized (monitor) {
+                    appended = end;
+                    durable = end;
+                    replayed = true;
+                }
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Appends a record. It is not on disk before awaitDurable returns for its position.
+     *
+     * @param type   the record type
+     * @param fields the fields of the record, at most 255
+     * @return the position just after the record
+     * @throws UncheckedIOException if an earlier write failed, after which nothing more
+     *                              reaches the disk
+     */
+    public long append(byte type, String... fields) {
+        synchronized (monitor) {
+            if (closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Journal could not be written: " + failure.getMessage(), failure);
+            }
+            if (!replayed) {
+                throw new IllegalStateException("Journal must be replayed before appending");
+            }
+            record.reset();
+            try {
+                recordData.writeByte(type);
+                recordData.writeByte(fields.length);
+                for (String field : fields) {
+                    byte[] encoded = field.getBytes(StandardCharsets.UTF_8);
+                    recordData.writeInt(encoded.length);
+                    recordData.write(encoded);
+                }
+                checksum.reset();
+                checksum.update(record.bytes(), 0, record.size());
+                record.writeTo(pending);
+                pendingData.writeInt((int) checksum.getValue());
+            } catch (IOException e) {
+                // a ByteArrayOutputStream does not throw
+                throw new UncheckedIOException(e);
+            }
+            appended += record.size() + 4;
+            if (committer == null) {
+                committer = new Thread(this::commitLoop, "journal-committer");
+                committer.setDaemon(true);
+                committer.start();
+            }
+            monitor.notifyAll();
+            return appended;
+        }
+    }
+
+    /**
+     * Returns the position just after the last appended record.
+     *
+     * @return the position
+     */
+    public long position() {
+        synchronized (monitor) {
+            return appended;
+        }
+    }
+
+    /**
+     * Waits until every record before a position is on disk.
+     *
+     * @param position a position returned by append
+     * @throws IOException if the journal could not be written
+     */
+    public void awaitDurable(long position) throws IOException {
+        synchronized (monitor) {
+            while (durable < position && failure == null) {
+                try {
+                    monitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+            if (durable < position) {
+                throw new IOException("Journal write failed", failure);
+            }
+        }
+    }
+
+    /**
+     * Returns how many times the committer has synced a batch of records to disk.
+     *
+     * @return the number of group commits
+     */
+    public long getCommitCount() {
+        synchronized (monitor) {
+            return commits;
+        }
+    }
+
+    /**
+     * Returns how many bytes of records a restart would replay: everything from the start
+     * of the oldest segment, including records not on disk yet.
+     *
+     * @return the journal backlog in bytes
+     */
+    public long getBacklogBytes() {
+        synchronized (fileMonitor) {
+            synchronized (monitor) {
+                long first = segments.isEmpty() ? durable : Math.min(segments.firstKey(), durable);
+                return appended - first;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of segment files on disk.
+     *
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        synchronized (fileMonitor) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * Drops the records before a position, once a snapshot holds their changes. Every
+     * segment that ends at or before the position is deleted. If that covers the segment
+     * being written, it is closed first and the next record starts a new one.
+     *
+     * @param position a position taken before the snapshot was read
+     * @throws IOException if a segment could not be deleted
+     */
+    public void truncateBefore(long position) throws IOException {
+        awaitDurable(position);
+        synchronized (fileMonitor) {
+            if (out != null && position >= segmentStart + out.getChannel().size()) {
+                out.close();
+                out = null;
+                startNewSegment = true;
+            }
+            ArrayList<Long> starts = new ArrayList<>(segments.keySet());
+            for (int i = 0; i < starts.size(); i++) {
+                long start = starts.get(i);
+                File segment = segments.get(start);
+                long end = i + 1 < starts.size() ? starts.get(i + 1) : start + segment.length();
+                if ((out != null && start == segmentStart) || end > position) {
+                    break;
+                }
+                if (!segment.delete() && segment.exists()) {
+                    throw new IOException("Could not delete " + segment.getName());
+                }
+                segments.remove(start);
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining records and stops the committer.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (monitor) {
+            closed = true;
+            monitor.notifyAll();
+            thread = committer;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (fileMonitor) {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * The committer thread: takes every pending record, writes them with one write and
+     * one fsync, then wakes up the callers waiting for them.
+     */
+    private void commitLoop() {
+        while (true) {
+            byte[] batch;
+            long start;
+            long end;
+            synchronized (monitor) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        monitor.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.size() == 0) {
+                    return;
+                }
+                batch = pending.toByteArray();
+                pending.reset();
+                start = durable;
+                end = appended;
+            }
+            try {
+                synchronized (fileMonitor) {
+                    openSegment(start);
+                    out.write(batch);
+                    out.getFD().sync();
+                    if (end - segmentStart >= segmentBytes) {
+                        // the next batch starts a new segment, so a record never spans two
+                        out.close();
+                        out = null;
+                        startNewSegment = true;
+                    }
+                }
+                synchronized (monitor) {
+                    durable = end;
+                    commits++;
+                    monitor.notifyAll();
+                }
+            } catch (IOException e) {
+                System.out.println("Error writing journal: " + e.getMessage());
+                synchronized (monitor) {
+                    failure = e;
+                    monitor.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Makes sure a segment is open to append at a position. The first time, any damaged
+     * record found by replay is cut off the last good segment, which is reopened unless it
+     * is full, and segments after it are deleted. The caller must hold fileMonitor.
+     *
+     * @param position the position of the next byte written
+     */
+    private void openSegment(long position) throws IOException {
+        if (out != null) {
+            return;
+        }
+        if (!opened) {
+            opened = true;
+            for (File unused : segments.tailMap(position, true).values()) {
+                unused.delete();
+            }
+            segments.tailMap(position, true).clear();
+            Map.Entry<Long, File> last = segments.lastEntry();
+            if (last != null && last.getValue().length() > position - last.getKey()) {
+                // cut the damaged tail even if the segment is full, or the next replay would
+                // stop there again and drop the segments after it
+                try (RandomAccessFile raf = new RandomAccessFile(last.getValue(), "rw")) {
+                    raf.setLength(position - last.getKey());
+                }
+            }
+            if (last != null && position - last.getKey() < segmentBytes) {
+                segmentStart = last.getKey();
+                out = new FileOutputStream(last.getValue(), true);
+                return;
+            }
+            startNewSegment = true;
+        }
+        if (!startNewSegment) {
+            out = new FileOutputStream(segments.get(segmentStart), true);
+            return;
+        }
+        File segment = new File(file.getParentFile(), file.getName() + "." + position);
+        segments.put(position, segment);
+        segmentStart = position;
+        startNewSegment = false;
+        out = new FileOutputStream(segment, false);
+    }
+
+    /**
+     * Lists the segment files on disk. The caller must hold fileMonitor.
+     */
+    private void findSegments() {
+        segments.clear();
+        File[] files = file.getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        String prefix = file.getName() + ".";
+        for (File f : files) {
+            if (!f.getName().startsWith(prefix)) {
+                continue;
+            }
+            try {
+                segments.put(Long.parseLong(f.getName().substring(prefix.length())), f);
+            } catch (NumberFormatException e) {
+                // not a segment, like a temporary file
+            }
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream whose bytes can be checksummed without copying them.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,997 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Micro benchmarks for the hot paths of the marketplace server.
+ * Run with "java MarketplaceBenchmark [scenario]", without a scenario every benchmark runs.
+ * Every scenario works on its own files in a temporary directory, never on the real data.
+ */
+public class MarketplaceBenchmark {
+    private static final PrintStream OUT = System.out;
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "all";
+        if (scenario.equals("all") || scenario.equals("login")) {
+            benchmarkLogin();
+        }
+        if (scenario.equals("all") || scenario.equals("search")) {
+            benchmarkSearch();
+        }
+        if (scenario.equals("all") || scenario.equals("contention")) {
+            benchmarkContention();
+        }
+        if (scenario.equals("all") || scenario.equals("journal")) {
+            benchmarkJournal();
+        }
+        if (scenario.equals("all") || scenario.equals("startup")) {
+            benchmarkStartup(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 5_000_000);
+        }
+        if (scenario.equals("all") || scenario.equals("storage")) {
+            benchmarkStorage(args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+        }
+        if (scenario.equals("all") || scenario.equals("coalesce")) {
+            benchmarkCoalesce();
+        }
+        if (scenario.equals("all") || scenario.equals("messages")) {
+            benchmarkMessages(args.length > 1 ? Integer.parseInt(args[1]) : 20_000);
+        }
+        if (scenario.equals("all") || scenario.equals("sync")) {
+            benchmarkSync(args.length > 1 ? Integer.parseInt(args[1]) : 500,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 200);
+        }
+        if (scenario.equals("all") || scenario.equals("concurrent")) {
+            benchmarkConcurrentMessages(args.length > 1 ? Integer.parseInt(args[1]) : 10_000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 20);
+        }
+        if (scenario.equals("all") || scenario.equals("cache")) {
+            benchmarkConversationCache(args.length > 1 ? Integer.parseInt(args[1]) : 2_000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 64);
+        }
+        if (scenario.equals("all") || scenario.equals("directory")) {
+            benchmarkDirectory(args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+        }
+        if (scenario.equals("all") || scenario.equals("recovery")) {
+            benchmarkRecovery(args.length > 1 ? Integer.parseInt(args[1]) : 256,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 10_000);
+        }
+    }
+
+    /**
+     * Measures login and logout by username as the number of users grows.
+     * With the username index the latency should stay flat.
+     */
+    private static void benchmarkLogin() throws Exception {
+        OUT.println("== login by username ==");
+        for (int users : new int[] {1_000, 10_000, 100_000, 1_000_000}) {
+            File directory = Files.createTempDirectory("benchmark").toFile();
+            File userFile = new File(directory, "allUser.txt");
+            File itemFile = new File(directory, "MarketInventory.txt");
+            try (BufferedWriter bfw = new BufferedWriter(new FileWriter(userFile))) {
+                for (int i = 0; i < users; i++) {
+                    bfw.write("user" + i + ",Password1,user" + i + "@bench.com,10000");
+                    bfw.newLine();
+                }
+            }
+            Database database = quietly(() -> new Database(userFile.getPath(), itemFile.getPath()));
+
+            Random random = new Random(42);
+            int warmup = 20_000;
+            int logins = 100_000;
+            long elapsed = quietly(() -> {
+                long start = 0;
+                for (int i = 0; i < warmup + logins; i++) {
+                    if (i == warmup) {
+                        start = System.nanoTime();
+                    }
+                    String name = "user" + random.nextInt(users);
+                    database.login(name, "Password1");
+                    database.logOut(database.findByUsername(name));
+                }
+                return System.nanoTime() - start;
+            });
+            OUT.printf("%,10d users: %,8.0f ns per login%n", users, (double) elapsed / logins);
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Compares the item name index with the old full scan on 1M listings,
+     * and checks that both return the same items.
+     */
+    private static void benchmarkSearch() throws Exception {
+        OUT.println("== item search, 1,000,000 listings ==");
+        String[] brands = {"apple", "samsung", "dell", "hp", "lenovo", "sony", "asus", "acer", "lg", "canon"};
+        String[] products = {"laptop", "phone", "tablet", "monitor", "camera", "headphones", "keyboard",
+            "mouse", "charger", "desk lamp", "textbook", "bike", "chair", "backpack", "calculator"};
+        int listings = 1_000_000;
+        File directory = Files.createTempDirectory("benchmark").toFile();
+        File userFile = new File(directory, "allUser.txt");
+        File itemFile = new File(directory, "MarketInventory.txt");
+        Random random = new Random(42);
+        try (BufferedWriter users = new BufferedWriter(new FileWriter(userFile));
+             BufferedWriter items = new BufferedWriter(new FileWriter(itemFile))) {
+            for (int i = 0; i < 1000; i++) {
+                users.write("seller" + i + ",Password1,seller" + i + "@bench.com,10000");
+                users.newLine();
+            }
+            for (int i = 1; i <= listings; i++) {
+                String name = brands[random.nextInt(brands.length)] + " " + products[random.nextInt(products.length)]
+                        + " " + random.nextInt(10_000);
+                items.write(i + ",seller" + random.nextInt(1000) + "," + name + ",1000,used," + (i % 10 != 0));
+                items.newLine();
+            }
+        }
+        Database database = quietly(() -> new Database(userFile.getPath(), itemFile.getPath()));
+
+        String[] terms = {"laptop", "sony camera", "dell monitor 42", "apple phone 123 still sealed", "zebra", "1234"};
+        for (String term : terms) {
+            ArrayList<Item> expected = null;
+            long scanTime = 0;
+            long indexTime = 0;
+            int rounds = 5;
+            ArrayList<Item> found = null;
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                expected = scanSearch(database, term);
+                scanTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                found = database.getItemsFromName(term);
+                indexTime += System.nanoTime() - start;
+            }
+            OUT.printf("%-30s %,8d hits  scan %,9.2f ms  index %,9.2f ms%s%n", '"' + term + '"', found.size(),
+                    scanTime / 1e6 / rounds, indexTime / 1e6 / rounds, found.equals(expected) ? "" : "  MISMATCH");
+        }
+        deleteDirectory(directory);
+    }
+
+    /**
+     * Runs 64 clients against one database for a few seconds in each lock mode and reports
+     * the throughput and the latency of single operations. Each client loops over a read-heavy mix: lookups by username and email,
+     * name searches, login and logout of its own account and the odd new item, while another
+     * thread saves everything to disk ten times a second like a very busy autosave.
+     */
+    private static void benchmarkContention() throws Exception {
+        int clients = 64;
+        int users = 10_000;
+        long millis = 3_000;
+        OUT.printf("== contention, %d clients, %,d users, %,d ms per mode, %d cores ==%n", clients, users, millis,
+                Runtime.getRuntime().availableProcessors());
+        String[] terms = {"laptop", "phone", "desk lamp", "camera 12", "bike"};
+        for (Database.LockMode mode : Database.LockMode.values()) {
+            File directory = Files.createTempDirectory("benchmark").toFile();
+            File userFile = new File(directory, "allUser.txt");
+            File itemFile = new File(directory, "MarketInventory.txt");
+            Random random = new Random(42);
+            try (BufferedWriter userWriter = new BufferedWriter(new FileWriter(userFile));
+                 BufferedWriter itemWriter = new BufferedWriter(new FileWriter(itemFile))) {
+                for (int i = 0; i < users; i++) {
+                    userWriter.write("user" + i + ",Password1,user" + i + "@bench.com,10000");
+                    userWriter.newLine();
+                }
+                for (int i = 1; i <= 20_000; i++) {
+                    itemWriter.write(i + ",user" + random.nextInt(users) + "," + terms[i % terms.length] + " "
+                            + random.nextInt(100) + ",1000,used,true");
+                    itemWriter.newLine();
+                }
+            }
+            Database database = quietly(() -> new Database(userFile.getPath(), itemFile.getPath(), mode));
+
+            AtomicBoolean running = new AtomicBoolean(true);
+            LongAdder operations = new LongAdder();
+            LongAdder saves = new LongAdder();
+            CountDownLatch start = new CountDownLatch(1);
+            ArrayList<Thread> threads = new ArrayList<>();
+            // the latest operation latencies of each client
+            long[][] latencies = new long[clients][1 << 14];
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                threads.add(new Thread(() -> {
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    String own = "user" + client;
+                    long[] samples = latencies[client];
+                    awaitQuietly(start);
+                    for (int n = 0; running.get(); n++) {
+                        int pick = r.nextInt(100);
+                        long begin = System.nanoTime();
+                        try {
+                            if (pick < 50) {
+                                database.findByUsername("user" + r.nextInt(users));
+                            } else if (pick < 70) {
+                                database.findByEmail("user" + r.nextInt(users) + "@bench.com");
+                            } else if (pick < 90) {
+                                database.getItemsFromName(terms[r.nextInt(terms.length)]);
+                            } else if (pick < 99) {
+                                database.login(own, "Password1");
+                                database.logOut(database.findByUsername(own));
+                            } else {
+                                database.createItem(database.findByUsername(own), "bench item", 500, "new");
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                        samples[n & (samples.length - 1)] = System.nanoTime() - begin;
+                        operations.increment();
+                    }
+                }));
+            }
+            threads.add(new Thread(() -> {
+                awaitQuietly(start);
+                while (running.get()) {
+                    database.writeToFile();
+                    saves.increment();
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }));
+
+            long elapsed = quietly(() -> {
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                long begin = System.nanoTime();
+                start.countDown();
+                Thread.sleep(millis);
+                running.set(false);
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                return System.nanoTime() - begin;
+            });
+            long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).filter(t -> t > 0).sorted().toArray();
+            OUT.printf("%-8s %,10.0f ops/s  p50 %,8.1f us  p99 %,9.1f us  max %,8.1f ms  %,3d saves%n", mode,
+                    operations.sum() / (elapsed / 1e9), all[all.length / 2] / 1e3, all[all.length * 99 / 100] / 1e3,
+                    all[all.length - 1] / 1e6, saves.sum());
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Compares saving a balance change by rewriting both files, as every handler used to,
+     * with recording it in the journal, for growing databases and numbers of clients.
+     * The journal cost should not depend on the size of the database, and concurrent
+     * clients should share syncs.
+     */
+    private static void benchmarkJournal() throws Exception {
+        OUT.println("== saving a balance change ==");
+        for (int users : new int[] {1_000, 100_000}) {
+            File directory = Files.createTempDirectory("benchmark").toFile();
+            File userFile = new File(directory, "allUser.txt");
+            File itemFile = new File(directory, "MarketInventory.txt");
+            try (BufferedWriter userWriter = new BufferedWriter(new FileWriter(userFile));
+                 BufferedWriter itemWriter = new BufferedWriter(new FileWriter(itemFile))) {
+                for (int i = 0; i < users; i++) {
+                    userWriter.write("user" + i + ",Password1,user" + i + "@bench.com,10000");
+                    userWriter.newLine();
+                    itemWriter.write((i + 1) + ",user" + i + ",item " + i + ",1000,used,true");
+                    itemWriter.newLine();
+                }
+            }
+            Database database = quietly(() -> new Database(userFile.getPath(), itemFile.getPath()));
+
+            int snapshots = 20;
+            long snapshotTime = quietly(() -> {
+                long start = System.nanoTime();
+                for (int i = 0; i < snapshots; i++) {
+                    database.addBalance(database.findByUsername("user" + i), 1);
+                    database.writeToFile();
+                }
+                return System.nanoTime() - start;
+            });
+            OUT.printf("%,8d users  full rewrite           %,9.1f us per change  writers blocked %,7.1f us%n",
+                    users, snapshotTime / 1e3 / snapshots, database.getLastSnapshotPauseNanos() / 1e3);
+
+            for (int clients : new int[] {1, 16, 64}) {
+                int changes = 200;
+                long commitsBefore = database.getStorageSyncCount();
+                CountDownLatch start = new CountDownLatch(1);
+                ArrayList<Thread> threads = new ArrayList<>();
+                for (int c = 0; c < clients; c++) {
+                    User user = database.findByUsername("user" + c);
+                    threads.add(new Thread(() -> {
+                        awaitQuietly(start);
+                        for (int i = 0; i < changes; i++) {
+                            database.addBalance(user, 1);
+                        }
+                    }));
+                }
+                long elapsed = quietly(() -> {
+                    for (Thread thread : threads) {
+                        thread.start();
+                    }
+                    long begin = System.nanoTime();
+                    start.countDown();
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    return System.nanoTime() - begin;
+                });
+                long total = (long) clients * changes;
+                OUT.printf("%,8d users  journal, %2d clients   %,9.1f us per change  %,6d changes in %,6d syncs%n",
+                        users, clients, elapsed / 1e3 / total, total, database.getStorageSyncCount() - commitsBefore);
+            }
+            database.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Measures startup: importing the legacy text files, then loading the binary snapshot
+     * written from them. Run with a large heap, for example
+     * "java -Xmx4g MarketplaceBenchmark startup 1000000 5000000".
+     *
+     * @param users the number of users
+     * @param items the number of items
+     */
+    private static void benchmarkStartup(int users, int items) throws Exception {
+        OUT.printf("== startup, %,d users, %,d items, %d cores ==%n", users, items,
+                Runtime.getRuntime().availableProcessors());
+        String[] products = {"laptop", "phone", "tablet", "monitor", "camera", "headphones", "keyboard"};
+        File directory = Files.createTempDirectory("benchmark").toFile();
+        File userFile = new File(directory, "allUser.txt");
+        File itemFile = new File(directory, "MarketInventory.txt");
+        Random random = new Random(42);
+        try (BufferedWriter userWriter = new BufferedWriter(new FileWriter(userFile));
+             BufferedWriter itemWriter = new BufferedWriter(new FileWriter(itemFile))) {
+            for (int i = 0; i < users; i++) {
+                userWriter.write("user" + i + ",Password1,user" + i + "@bench.com,10000");
+                userWriter.newLine();
+            }
+            for (int i = 1; i <= items; i++) {
+                itemWriter.write(i + ",user" + random.nextInt(users) + "," + products[i % products.length] + " "
+                        + random.nextInt(10_000) + "," + (100 + random.nextInt(100_000)) + ",used," + (i % 10 != 0));
+                itemWriter.newLine();
+            }
+        }
+        long textBytes = userFile.length() + itemFile.length();
+
+        OUT.printf("text files     %,13d bytes%n", textBytes);
+        startDatabase("text import", userFile, itemFile, true);
+        long loadTime = startDatabase("snapshot load", userFile, itemFile, false);
+        long decodeTime = quietly(() -> {
+            long start = System.nanoTime();
+            SnapshotFile.read(new File(directory, "database.snapshot"));
+            return System.nanoTime() - start;
+        });
+        OUT.printf("of which decoding the snapshot %,.0f ms, the rest of the %,.0f ms builds the maps and indexes%n",
+                decodeTime / 1e6, loadTime / 1e6);
+        deleteDirectory(directory);
+    }
+
+    /**
+     * Compares the storage backends on the same data: the first start, which imports the
+     * text files, the cost of a change for one and for many clients, a snapshot, and a
+     * restart from what the backend wrote.
+     *
+     * @param users the number of users, each with one item
+     */
+    private static void benchmarkStorage(int users) throws Exception {
+        OUT.printf("== storage backends, %,d users and items ==%n", users);
+        for (String backend : new String[] {"file", "pages", "memory"}) {
+            File directory = Files.createTempDirectory("benchmark").toFile();
+            File userFile = new File(directory, "allUser.txt");
+            File itemFile = new File(directory, "MarketInventory.txt");
+            try (BufferedWriter userWriter = new BufferedWriter(new FileWriter(userFile));
+                 BufferedWriter itemWriter = new BufferedWriter(new FileWriter(itemFile))) {
+                for (int i = 0; i < users; i++) {
+                    userWriter.write("user" + i + ",Password1,user" + i + "@bench.com,10000");
+                    userWriter.newLine();
+                    itemWriter.write((i + 1) + ",user" + i + ",item " + i + ",1000,used,true");
+                    itemWriter.newLine();
+                }
+            }
+            long start = System.nanoTime();
+            Database database = quietly(() -> new Database(
+                    Storage.open(backend, userFile.getPath(), itemFile.getPath()), Database.LockMode.STAMPED));
+            long importTime = System.nanoTime() - start;
+
+            long single = quietly(() -> {
+                User user = database.findByUsername("user0");
+                long begin = System.nanoTime();
+                for (int i = 0; i < 200; i++) {
+                    database.addBalance(user, 1);
+                }
+                return (System.nanoTime() - begin) / 200;
+            });
+            int clients = 16;
+            int changes = 200;
+            long syncsBefore = database.getStorageSyncCount();
+            CountDownLatch latch = new CountDownLatch(1);
+            ArrayList<Thread> threads = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                User user = database.findByUsername("user" + c);
+                threads.add(new Thread(() -> {
+                    awaitQuietly(latch);
+                    for (int i = 0; i < changes; i++) {
+                        database.addBalance(user, 1);
+                    }
+                }));
+            }
+            long concurrent = quietly(() -> {
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                long begin = System.nanoTime();
+                latch.countDown();
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                return (System.nanoTime() - begin) / ((long) clients * changes);
+            });
+            long syncs = database.getStorageSyncCount() - syncsBefore;
+            quietly(database::writeToFile);
+            long snapshotTime = database.getLastSnapshotNanos();
+            quietly(() -> {
+                database.close();
+                return null;
+            });
+
+            System.gc();
+            start = System.nanoTime();
+            Database restarted = quietly(() -> new Database(
+                    Storage.open(backend, userFile.getPath(), itemFile.getPath()), Database.LockMode.STAMPED));
+            long restartTime = System.nanoTime() - start;
+            OUT.printf("%-7s first start %,7.0f ms  change %,7.1f us  16 clients %,6.1f us (%,5d syncs)"
+                            + "  snapshot %,6.0f ms  restart %,6.0f ms, %,d users%n",
+                    backend, importTime / 1e6, single / 1e3, concurrent / 1e3, syncs, snapshotTime / 1e6,
+                    restartTime / 1e6, restarted.allUserList.size());
+            restarted.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Compares password changes written with SYNC durability, where every change waits for
+     * a sync, with COALESCED durability, where a user changing many times within the
+     * latency bound is written once, for one and for many clients.
+     */
+    private static void benchmarkCoalesce() throws Exception {
+        OUT.println("== profile edits, sync and coalesced ==");
+        File directory = Files.createTempDirectory("benchmark").toFile();
+        File userFile = new File(directory, "allUser.txt");
+        File itemFile = new File(directory, "MarketInventory.txt");
+        try (BufferedWriter userWriter = new BufferedWriter(new FileWriter(userFile))) {
+            for (int i = 0; i < 10_000; i++) {
+                userWriter.write("user" + i + ",Password1,user" + i + "@bench.com,10000");
+                userWriter.newLine();
+            }
+        }
+        new FileWriter(itemFile).close();
+        Database database = quietly(() -> new Database(userFile.getPath(), itemFile.getPath()));
+        for (Database.Durability durability : Database.Durability.values()) {
+            for (int clients : new int[] {1, 16}) {
+                int changes = 2_000;
+                long syncsBefore = database.getStorageSyncCount();
+                long flushesBefore = database.getCoalescedFlushCount();
+                long writesBefore = database.getCoalescedWriteCount();
+                CountDownLatch start = new CountDownLatch(1);
+                ArrayList<Thread> threads = new ArrayList<>();
+                for (int c = 0; c < clients; c++) {
+                    User user = database.findByUsername("user" + c);
+                    threads.add(new Thread(() -> {
+                        awaitQuietly(start);
+                        try {
+                            for (int i = 0; i < changes; i++) {
+                                database.changePassword(user, "Password" + i, durability);
+                            }
+                        } catch (InvalidAccountOperationException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }));
+                }
+                long elapsed = quietly(() -> {
+                    for (Thread thread : threads) {
+                        thread.start();
+                    }
+                    long begin = System.nanoTime();
+                    start.countDown();
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    return System.nanoTime() - begin;
+                });
+                // let the last coalesced batch be written
+                Thread.sleep(2 * Database.DEFAULT_COALESCE_MILLIS);
+                long total = (long) clients * changes;
+                OUT.printf("%-9s %2d clients  %,8.1f us per change  %,6d changes in %,5d syncs, "
+                                + "%,4d flushes writing %,5d users%n",
+                        durability, clients, elapsed / 1e3 / total, total,
+                        database.getStorageSyncCount() - syncsBefore,
+                        database.getCoalescedFlushCount() - flushesBefore,
+                        database.getCoalescedWriteCount() - writesBefore);
+            }
+        }
+        database.close();
+        deleteDirectory(directory);
+    }
+
+    /**
+     * Compares one message file per conversation, as MessageDatabase kept them before, with
+     * the segmented message log: sending messages to many conversations, reading a
+     * conversation's history, and the number of files each needs.
+     *
+     * @param conversations the number of conversations
+     */
+    private static void benchmarkMessages(int conversations) throws Exception {
+        OUT.printf("== messages, %,d conversations of 20 messages ==%n", conversations);
+        String line = new Message("alice", "bob", "is the bike still for sale? I can pick it up today")
+                .toFileString();
+        int perConversation = 20;
+        long sends = (long) conversations * perConversation;
+
+        File files = Files.createTempDirectory("benchmark").toFile();
+        long start = System.nanoTime();
+        for (int i = 0; i < perConversation; i++) {
+            for (int c = 0; c < conversations; c++) {
+                MessageFile.append(new File(files, "user" + c + "-user" + (c + 1)), line);
+            }
+        }
+        long fileSend = System.nanoTime() - start;
+        long fileRead = timeHistories(conversations, c -> MessageFile.read(new File(files, "user" + c + "-user" + (c + 1))));
+        OUT.printf("one file each  send %,6.1f us  history %,6.1f us  %,7d files%n",
+                fileSend / 1e3 / sends, fileRead / 1e3, files.list().length);
+        deleteDirectory(files);
+
+        File directory = Files.createTempDirectory("benchmark").toFile();
+        MessageLog log = new MessageLog(directory);
+        log.open();
+        start = System.nanoTime();
+        for (int i = 0; i < perConversation; i++) {
+            for (int c = 0; c < conversations; c++) {
+                log.append("user" + c + "-user" + (c + 1), line);
+            }
+        }
+        long logSend = System.nanoTime() - start;
+        long logRead = timeHistories(conversations, c -> log.read("user" + c + "-user" + (c + 1)));
+        log.close();
+        int logFiles = directory.list().length;
+        start = System.nanoTime();
+        MessageLog reopened = new MessageLog(directory);
+        quietly(() -> {
+            reopened.open();
+            return null;
+        });
+        long reopen = System.nanoTime() - start;
+        reopened.close();
+        OUT.printf("message log    send %,6.1f us  history %,6.1f us  %,7d files, reopened in %,.1f ms%n",
+                logSend / 1e3 / sends, logRead / 1e3, logFiles, reopen / 1e6);
+        deleteDirectory(directory);
+    }
+
+    /**
+     * Sends messages in many conversations at once from 64 clients, each taking turns over
+     * its share of the conversations, first with one lock around every append, as the
+     * synchronized sendMessage did, then with appends running in parallel and sharing
+     * writes. Afterwards every conversation must hold its messages in the order they were
+     * sent.
+     */
+    private static void benchmarkConcurrentMessages(int conversations, int perConversation) throws Exception {
+        OUT.printf("== concurrent messages, %,d conversations of %d messages ==%n", conversations, perConversation);
+        String line = new Message("alice", "bob", "is the bike still for sale? I can pick it up today")
+                .toFileString();
+        long sends = (long) conversations * perConversation;
+        int clients = 64;
+        for (boolean global : new boolean[] {true, false}) {
+            File directory = Files.createTempDirectory("benchmark").toFile();
+            MessageLog log = new MessageLog(directory);
+            log.open();
+            Object lock = new Object();
+            CountDownLatch start = new CountDownLatch(1);
+            ArrayList<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < clients; t++) {
+                int client = t;
+                threads.add(new Thread(() -> {
+                    awaitQuietly(start);
+                    try {
+                        for (int i = 0; i < perConversation; i++) {
+                            for (int c = client; c < conversations; c += clients) {
+                                String conversation = "user" + c + "-user" + (c + 1);
+                                if (global) {
+                                    synchronized (lock) {
+                                        log.append(conversation, i + " " + line);
+                                    }
+                                } else {
+                                    log.append(conversation, i + " " + line);
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - begin;
+            for (int c = 0; c < conversations; c++) {
+                ArrayList<String> messages = log.read("user" + c + "-user" + (c + 1));
+                for (int i = 0; i < perConversation; i++) {
+                    if (messages.size() != perConversation || !messages.get(i).startsWith(i + " ")) {
+                        throw new IllegalStateException("conversation " + c + " lost its order");
+                    }
+                }
+            }
+            OUT.printf("%-12s %,10.0f sends/s  %,7.2f us per send  %,9d writes%n", global ? "global lock" : "parallel",
+                    sends / (elapsed / 1e9), elapsed / 1e3 / sends, log.getWriteCount());
+            log.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Compares refreshing the messages of a heavy user by reading every conversation whole,
+     * as getMessageHistory does, with syncing only what was sent since the last refresh,
+     * and times scrolling back one page in the middle of a long conversation.
+     */
+    private static void benchmarkSync(int partners, int perConversation) throws Exception {
+        OUT.printf("== message refresh, one user with %,d conversations of %,d messages ==%n",
+                partners, perConversation);
+        String line = new Message("alice", "bob", "is the bike still for sale? I can pick it up today")
+                .toFileString();
+        File directory = Files.createTempDirectory("benchmark").toFile();
+        MessageLog log = new MessageLog(directory);
+        log.open();
+        for (int i = 0; i < perConversation; i++) {
+            for (int p = 0; p < partners; p++) {
+                log.append("alice-user" + p, line);
+            }
+        }
+        int rounds = 20;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int p = 0; p < partners; p++) {
+                log.read("alice-user" + p);
+            }
+        }
+        long full = (System.nanoTime() - start) / rounds;
+
+        Random random = new Random(42);
+        long synced = 0;
+        for (int r = 0; r < rounds; r++) {
+            long since = log.position();
+            // a few conversations got a message since the last refresh
+            for (int i = 0; i < 5; i++) {
+                log.append("alice-user" + random.nextInt(partners), line);
+            }
+            long until = log.position();
+            start = System.nanoTime();
+            int received = 0;
+            for (int p = 0; p < partners; p++) {
+                received += log.readBetween("alice-user" + p, since, until, 50).messages().size();
+            }
+            synced += System.nanoTime() - start;
+            if (received != 5) {
+                throw new IllegalStateException("wrong sync");
+            }
+        }
+        synced /= rounds;
+
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            MessageLog.Slice page = log.read("alice-user" + r, perConversation / 2 - 50, perConversation / 2);
+            if (page.messages().size() != Math.min(50, perConversation / 2)) {
+                throw new IllegalStateException("wrong page");
+            }
+        }
+        long paged = (System.nanoTime() - start) / rounds;
+        log.close();
+        OUT.printf("full history %,9.2f ms  sync of 5 new messages %,7.3f ms  older page of 50 %,7.3f ms%n",
+                full / 1e6, synced / 1e6, paged / 1e6);
+        deleteDirectory(directory);
+    }
+
+    /**
+     * Compares reading the histories of a popular seller's conversations from the message
+     * log and formatting every message, as getMessageHistory did, with serving them from
+     * the conversation cache, while buyers keep sending. Most reads go to a fifth of the
+     * conversations, the ones the seller is chatting in.
+     */
+    private static void benchmarkConversationCache(int partners, int budgetMegabytes) throws Exception {
+        int perConversation = 200;
+        OUT.printf("== conversation cache, %,d conversations of %d messages, %d MB budget ==%n",
+                partners, perConversation, budgetMegabytes);
+        String line = new Message("alice", "bob", "is the bike still for sale? I can pick it up today")
+                .toFileString();
+        File directory = Files.createTempDirectory("benchmark").toFile();
+        MessageLog log = new MessageLog(directory);
+        log.open();
+        for (int i = 0; i < perConversation; i++) {
+            for (int p = 0; p < partners; p++) {
+                log.append("alice-user" + p, line);
+            }
+        }
+        ConversationCache cache = new ConversationCache(budgetMegabytes * 1024L * 1024,
+                ConversationCache.DEFAULT_TAIL_MESSAGES);
+        int reads = 20_000;
+        long uncached = 0;
+        long cached = 0;
+        for (boolean useCache : new boolean[] {false, true}) {
+            Random random = new Random(42);
+            long start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                String conversation = "alice-user" + (random.nextInt(5) < 4
+                        ? random.nextInt(partners / 5) : random.nextInt(partners));
+                if (i % 10 == 0) {
+                    int seq = log.append(conversation, line);
+                    cache.appended(conversation, seq, displayedLine(line));
+                }
+                if (!useCache) {
+                    ArrayList<String> history = new ArrayList<>();
+                    for (String stored : log.read(conversation)) {
+                        history.add(displayedLine(stored));
+                    }
+                    continue;
+                }
+                ConversationCache.Slice tail = cache.get(conversation, 1);
+                if (tail == null) {
+                    int count = log.count(conversation);
+                    MessageLog.Slice slice = log.read(conversation, 0, count);
+                    ArrayList<String> history = new ArrayList<>();
+                    for (String stored : slice.messages()) {
+                        history.add(displayedLine(stored));
+                    }
+                    cache.put(conversation, slice.firstSeq(), history);
+                } else if (tail.firstSeq() != 1 || tail.messages().size() != log.count(conversation)) {
+                    throw new IllegalStateException("cached history of " + conversation + " is stale");
+                }
+            }
+            long elapsed = (System.nanoTime() - start) / reads;
+            if (useCache) {
+                cached = elapsed;
+            } else {
+                uncached = elapsed;
+            }
+        }
+        log.close();
+        OUT.printf("log and format %,7.1f us per history  cached %,7.1f us  %.0f%% hits  %,d evictions  %,.1f MB cached%n",
+                uncached / 1e3, cached / 1e3, 100.0 * cache.getHitCount() / (cache.getHitCount() + cache.getMissCount()),
+                cache.getEvictionCount(), cache.getBytes() / (1024.0 * 1024));
+        deleteDirectory(directory);
+    }
+
+    /**
+     * Formats a stored message for display the way MessageDatabase does.
+     */
+    private static String displayedLine(String stored) {
+        String[] parts = stored.split(";");
+        return parts[1] + ": " + parts[3] + " (" + parts[0] + ")";
+    }
+
+    /**
+     * Compares finding the conversation of a send and recording the partners with the list
+     * scans MessageDatabase used to do, with the conversation directory, for a busy seller
+     * who talks to many buyers.
+     */
+    private static void benchmarkDirectory(int buyers) {
+        OUT.printf("== conversation lookup per send, one seller with %,d buyers ==%n", buyers);
+        ArrayList<String> fileNameList = new ArrayList<>();
+        HashMap<String, ArrayList<String>> userMessageList = new HashMap<>();
+        ConversationDirectory directory = new ConversationDirectory();
+        for (int i = 0; i < buyers; i++) {
+            fileNameList.add("buyer" + i + "-seller");
+            userMessageList.computeIfAbsent("seller", u -> new ArrayList<>()).add("buyer" + i);
+            userMessageList.computeIfAbsent("buyer" + i, u -> new ArrayList<>()).add("seller");
+            directory.load("buyer" + i + "-seller");
+        }
+        Random random = new Random(42);
+        int sends = 2_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < sends; i++) {
+            String buyer = "buyer" + random.nextInt(buyers);
+            String conversation = fileNameList.contains("seller-" + buyer) ? "seller-" + buyer : buyer + "-seller";
+            if (!fileNameList.contains(conversation) || !userMessageList.get("seller").contains(buyer)
+                    || !userMessageList.get(buyer).contains("seller")) {
+                throw new IllegalStateException("wrong conversation");
+            }
+        }
+        long scans = (System.nanoTime() - start) / sends;
+        int lookups = 1_000_000;
+        long indexed = 0;
+        // the first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                String buyer = "buyer" + random.nextInt(buyers);
+                if (!directory.add("seller", buyer).equals(buyer + "-seller")) {
+                    throw new IllegalStateException("wrong conversation");
+                }
+            }
+            indexed = (System.nanoTime() - start) / lookups;
+        }
+        OUT.printf("list scans %,10d ns  directory %,6d ns per send%n", scans, indexed);
+    }
+
+    /**
+     * Reads the history of random conversations and returns the average time per read.
+     */
+    private static long timeHistories(int conversations, HistoryReader reader) throws Exception {
+        Random random = new Random(42);
+        int reads = 2_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            if (reader.read(random.nextInt(conversations)).size() != 20) {
+                throw new IllegalStateException("wrong history");
+            }
+        }
+        return (System.nanoTime() - start) / reads;
+    }
+
+    /**
+     * Reads the history of one conversation of the benchmark.
+     */
+    @FunctionalInterface
+    private interface HistoryReader {
+        List<String> read(int conversation) throws IOException;
+    }
+
+    /**
+     * Measures crash recovery: a directory of message files, some with a torn end, and a
+     * journal as long as the snapshot scheduler lets it grow, with a torn last record.
+     * Message recovery only reads the end of each file, so its time should follow the
+     * number of files and stay flat as they grow; the journal is read whole but bounded.
+     *
+     * @param megabytes the total size of the message files
+     * @param files     the number of conversations
+     */
+    private static void benchmarkRecovery(int megabytes, int files) throws Exception {
+        OUT.printf("== crash recovery, %,d MB of messages in %,d conversations ==%n", megabytes, files);
+        File directory = Files.createTempDirectory("benchmark").toFile();
+        File messages = new File(directory, "messages");
+        messages.mkdir();
+        String line = new Message("alice", "bob", "is the bike still for sale? I can pick it up today")
+                .toFileString();
+        long perFile = (long) megabytes * 1024 * 1024 / files / (line.length() + 11);
+        Random random = new Random(42);
+        int torn = 0;
+        for (int f = 0; f < files; f++) {
+            File file = new File(messages, "user" + f + "-user" + (f + 1));
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+                for (long i = 0; i < perFile; i++) {
+                    writer.write(MessageFile.encode(line));
+                    writer.newLine();
+                }
+                if (random.nextInt(100) == 0) {
+                    // half a line, as a crash in the middle of an append leaves it
+                    writer.write(MessageFile.encode(line).substring(0, 30));
+                    torn++;
+                }
+            }
+        }
+        System.gc();
+        MessageFile.Recovery recovery = quietly(() -> MessageFile.recoverDirectory(messages));
+        OUT.printf("messages  %,7d files  %,8.1f ms  repaired %,d of %,d torn, cut %,d bytes%n",
+                recovery.files(), recovery.nanos() / 1e6, recovery.repaired(), torn, recovery.droppedBytes());
+
+        File journalFile = new File(directory, "database.journal");
+        Journal journal = new Journal(journalFile);
+        journal.replay((type, fields) -> { });
+        long position = 0;
+        while (position < 16L * 1024 * 1024) {
+            position = journal.append((byte) 'U', "user@bench.com", "user", "Password1", "user@bench.com", "10000");
+        }
+        journal.close();
+        File[] segments = directory.listFiles((dir, name) -> name.startsWith("database.journal."));
+        File last = segments[0];
+        for (File segment : segments) {
+            last = Long.parseLong(segment.getName().substring("database.journal.".length()))
+                    > Long.parseLong(last.getName().substring("database.journal.".length())) ? segment : last;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(last, "rw")) {
+            raf.setLength(raf.length() - 7);
+        }
+        long[] records = new long[1];
+        long elapsed = quietly(() -> {
+            long begin = System.nanoTime();
+            Journal replayed = new Journal(journalFile);
+            replayed.replay((type, fields) -> records[0]++);
+            replayed.close();
+            return System.nanoTime() - begin;
+        });
+        OUT.printf("journal   %,7d records  %,6.1f ms  %,d MB replayed, torn record dropped%n",
+                records[0], elapsed / 1e6, position / (1024 * 1024));
+        deleteDirectory(directory);
+    }
+
+    /**
+     * Creates a database, the way a server starts, and closes it again.
+     *
+     * @param label    the name of the measurement
+     * @param userFile the user file
+     * @param itemFile the item file
+     * @param save     whether to write a snapshot before closing, reporting its cost
+     * @return the time the constructor took to load everything
+     */
+    private static long startDatabase(String label, File userFile, File itemFile, boolean save) throws Exception {
+        System.gc();
+        long start = System.nanoTime();
+        Database database = quietly(() -> new Database(userFile.getPath(), itemFile.getPath()));
+        long elapsed = System.nanoTime() - start;
+        OUT.printf("%-14s %,10.0f ms%n", label, elapsed / 1e6);
+        if (save) {
+            quietly(database::writeToFile);
+            OUT.printf("snapshot write %,10.0f ms  %,13d bytes%n", database.getLastSnapshotNanos() / 1e6,
+                    database.getLastSnapshotBytes());
+        }
+        database.close();
+        return elapsed;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The search as it was before the name index, for comparison.
+     *
+     * @param database the database to search
+     * @param name the search term
+     * @return the matching items
+     */
+    private static ArrayList<Item> scanSearch(Database database, String name) {
+        ArrayList<Item> found = new ArrayList<>();
+        for (Item item : database.allItemList.values()) {
+            if ((item.getItemName().contains(name) || name.contains(item.getItemName())
+                    && item.isForSale())) {
+                found.add(item);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Runs the task with System.out silenced, the database logs every login and logout.
+     *
+     * @param task the task to run
+     * @return the result of the task
+     */
+    private static <T> T quietly(Callable<T> task) throws Exception {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            return task.call();
+        } finally {
+            System.setOut(OUT);
+        }
+    }
+
+    /**
+     * Deletes a benchmark directory and everything in it.
+     *
+     * @param directory the directory to delete
+     */
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
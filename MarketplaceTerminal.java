@@ -42,6 +42,7 @@ public class MarketplaceTerminal {
 
         // Save all data before exiting
         database.writeToFile();
+        database.close();
         try {
             messageDatabase.saveFile();
         } catch (Exception e) {
@@ -86,7 +87,7 @@ public class MarketplaceTerminal {
      */
     private void showMainMenu() {
         System.out.println("\n===== MAIN MENU =====");
-        System.out.println("Welcome, " + currentUser.getName() + "! Balance: $" + String.format("%.2f", currentUser.getBalance()));
+        System.out.println("Welcome, " + currentUser.getName() + "! Balance: $" + Money.format(currentUser.getBalance()));
         System.out.println("1. Browse items for sale");
         System.out.println("2. Search for items");
         System.out.println("3. Post an item for sale");
@@ -169,7 +170,7 @@ public class MarketplaceTerminal {
         String password = scanner.nextLine().trim();
 
         System.out.print("Enter initial account balance: $");
-        double balance = getDoubleInput();
+        long balance = getMoneyInput();
 
         try {
             database.createUser(username, email, password, balance);
@@ -197,7 +198,7 @@ public class MarketplaceTerminal {
         System.out.println("\n===== BROWSE ITEMS FOR SALE =====");
 
         ArrayList<Item> allItems = new ArrayList<>();
-        for (Item item : database.allItemList) {
+        for (Item item : database.getAllItems()) {
             if (item.isForSale() && !item.getOwner().equals(currentUser)) {
                 allItems.add(item);
             }
@@ -285,7 +286,7 @@ public class MarketplaceTerminal {
         String description = scanner.nextLine().trim();
 
         System.out.print("Enter price ($): ");
-        double price = getDoubleInput();
+        long price = getMoneyInput();
 
         try {
             boolean success = database.createItem(currentUser, itemName, price, description);
@@ -341,10 +342,7 @@ public class MarketplaceTerminal {
         System.out.println("\n===== MESSAGES =====");
 
         // Get all users this user has messaged with
-        ArrayList<String> contacts = new ArrayList<>();
-        if (messageDatabase.userMessageList.containsKey(currentUser.getName())) {
-            contacts = messageDatabase.userMessageList.get(currentUser.getName());
-        }
+        ArrayList<String> contacts = messageDatabase.getPartners(currentUser.getName());
 
         if (contacts.isEmpty()) {
             System.out.println("You don't have any message history.");
@@ -454,19 +452,18 @@ public class MarketplaceTerminal {
      */
     private void addBalance() {
         System.out.println("\n===== ADD BALANCE =====");
-        System.out.println("Current balance: $" + String.format("%.2f", currentUser.getBalance()));
+        System.out.println("Current balance: $" + Money.format(currentUser.getBalance()));
         System.out.print("Enter amount to add: $");
 
-        double amount = getDoubleInput();
+        long amount = getMoneyInput();
 
         if (amount <= 0) {
             System.out.println("Invalid amount. Please enter a positive value.");
             return;
         }
 
-        currentUser.addBalance(amount);
-        System.out.println("Balance updated. New balance: $" + String.format("%.2f", currentUser.getBalance()));
-        database.writeToFile();
+        database.addBalance(currentUser, amount);
+        System.out.println("Balance updated. New balance: $" + Money.format(currentUser.getBalance()));
     }
 
     /**
@@ -480,9 +477,8 @@ public class MarketplaceTerminal {
         String newUsername = scanner.nextLine().trim();
 
         try {
-            currentUser.setName(newUsername);
+            database.changeUsername(currentUser, newUsername);
             System.out.println("Username updated successfully.");
-            database.writeToFile();
         } catch (InvalidAccountOperationException e) {
             System.out.println("Failed to update username: " + e.getMessage());
         }
@@ -506,9 +502,8 @@ public class MarketplaceTerminal {
         String newPassword = scanner.nextLine().trim();
 
         try {
-            currentUser.setPassword(newPassword);
+            database.changePassword(currentUser, newPassword);
             System.out.println("Password updated successfully.");
-            database.writeToFile();
         } catch (InvalidAccountOperationException e) {
             System.out.println("Failed to update password: " + e.getMessage());
         }
@@ -528,7 +523,6 @@ public class MarketplaceTerminal {
             database.deleteUser(currentUser);
             System.out.println("Account deleted successfully.");
             currentUser = null;
-            database.writeToFile();
         } else {
             System.out.println("Account deletion cancelled.");
         }
@@ -561,7 +555,7 @@ public class MarketplaceTerminal {
         }
 
         System.out.println("\nYou are about to purchase:");
-        System.out.println(selectedItem.getItemName() + " - $" + String.format("%.2f", selectedItem.getPrice()));
+        System.out.println(selectedItem.getItemName() + " - $" + Money.format(selectedItem.getPrice()));
         System.out.println("Description: " + selectedItem.getDescription());
         System.out.println("From: " + selectedItem.getOwner().getName());
 
@@ -571,10 +565,6 @@ public class MarketplaceTerminal {
         if (confirm.equals("y") || confirm.equals("yes")) {
             String transactionResult = database.transaction(currentUser, selectedItem.getOwner(), selectedItem);
             System.out.println(transactionResult);
-
-            if (transactionResult.contains("successfully")) {
-                database.writeToFile();
-            }
         } else {
             System.out.println("Purchase cancelled.");
         }
@@ -634,11 +624,11 @@ public class MarketplaceTerminal {
 
         for (int i = 0; i < items.size(); i++) {
             Item item = items.get(i);
-            System.out.printf("%-5d %-25s %-25s $%-9.2f %-30s\n",
+            System.out.printf("%-5d %-25s %-25s $%-9s %-30s\n",
                     (i + 1),
                     truncate(item.getItemName(), 24),
                     truncate(item.getOwner().getName(), 24),
-                    item.getPrice(),
+                    Money.format(item.getPrice()),
                     truncate(item.getDescription(), 29));
         }
 
@@ -677,15 +667,15 @@ public class MarketplaceTerminal {
     }
 
     /**
-     * Gets a double input from the user with error handling.
+     * Gets an amount of money in dollars from the user with error handling.
      *
-     * @return the double entered by the user
+     * @return the amount entered by the user in cents
      */
-    private double getDoubleInput() {
+    private long getMoneyInput() {
         while (true) {
             try {
                 String input = scanner.nextLine().trim();
-                return Double.parseDouble(input);
+                return Money.parse(input);
             } catch (NumberFormatException e) {
                 System.out.print("Please enter a valid number: ");
             }
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * A backend that keeps nothing: changes are gone when the process exits. It can start from
+ * the data of another backend, which is only read. Changes cost nothing to persist, which
+ * makes it the baseline when the other backends are benchmarked, and keeps tests away from
+ * the files of a real server.
+ */
+public class MemoryStorage implements Storage {
+    private final Storage seed;
+
+    /**
+     * Creates a backend that starts empty.
+     */
+    public MemoryStorage() {
+        this(null);
+    }
+
+    /**
+     * Creates a backend that starts with the data of another one.
+     *
+     * @param seed the backend to load once, or null to start empty
+     */
+    public MemoryStorage(Storage seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public StoredData load() throws IOException {
+        if (seed == null) {
+            return new StoredData(new User[0], new Item[0], 1);
+        }
+        try (Storage source = seed) {
+            return source.load();
+        }
+    }
+
+    @Override
+    public long persistUser(String oldEmail, User user) {
+        return 0;
+    }
+
+    @Override
+    public long persistItem(Item item) {
+        return 0;
+    }
+
+    @Override
+    public long deleteUser(User user, Collection<Item> items) {
+        return 0;
+    }
+
+    @Override
+    public long deleteItem(Item item) {
+        return 0;
+    }
+
+    @Override
+    public long recordSale(Item item, User buyer, User seller) {
+        return 0;
+    }
+
+    @Override
+    public void awaitDurable(long token) {
+    }
+
+    @Override
+    public long snapshot(Copier copy) {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,45 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Consecutive messages of one conversation, as sent by the syncMessages and
+ * getConversationPage commands. The messages of a conversation are numbered from 1 in the
+ * order they were sent, so a client can tell whether a batch continues what it already has.
+ */
+public class MessageBatch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String partner;
+    private final int firstSeq;
+    private final ArrayList<String> messages;
+
+    /**
+     * Constructs a batch.
+     *
+     * @param partner the other user of the conversation
+     * @param firstSeq the sequence number of the first message, or of the message that would
+     *                 follow the batch if it is empty
+     * @param messages the messages, formatted for display, oldest first
+     */
+    public MessageBatch(String partner, int firstSeq, ArrayList<String> messages) {
+        this.partner = partner;
+        this.firstSeq = firstSeq;
+        this.messages = messages;
+    }
+
+    public String getPartner() {
+        return partner;
+    }
+
+    public int getFirstSeq() {
+        return firstSeq;
+    }
+
+    public int getLastSeq() {
+        return firstSeq + messages.size() - 1;
+    }
+
+    public ArrayList<String> getMessages() {
+        return messages;
+    }
+}
@@ -1,43 +1,74 @@
 import java.io.*;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 /**
  * Manages the storage and retrieval of messages between users in the marketplace system.
- * This class handles the persistence of message history to files and provides methods
- * for sending messages and retrieving conversation history between users.
+ * This class keeps the message history of every conversation in one segmented message log
+ * and provides methods for sending messages and retrieving conversation history between users.
  */
 public class MessageDatabase {
-    public ArrayList<String> fileNameList;
+    /**
+     * Notified of every message sent, once it is in the message log.
+     */
+    @FunctionalInterface
+    public interface MessageListener {
+        /**
+         * Called while the message's conversation is locked, in the order the messages of a
+         * conversation were sent, so it must not block. Messages of different conversations
+         * may be reported at the same time from different threads.
+         *
+         * @param sender   the user who sent the message
+         * @param receiver the user it was sent to
+         * @param seq      the sequence number of the message in the conversation
+         * @param message  the message, formatted for display
+         */
+        void messageSent(String sender, String receiver, int seq, String message);
+    }
 
-    //using username as id
-    public HashMap<String, ArrayList<String>> userMessageList;
+    // the conversations, each named after its two user IDs joined by "-", and every user's partners
+    private final ConversationDirectory directory = new ConversationDirectory();
 
     public Database database; //we may need this later
 
+    // the conversations before the message log, only read to import them into it
     private final String fileNameForFileNameList = "fileNameList.txt";
 
+    private static final String DIRECTORY_PATH = "Message and photos database";
+
+    private final MessageLog log = new MessageLog(new File(DIRECTORY_PATH));
+
+    private final CopyOnWriteArrayList<MessageListener> listeners = new CopyOnWriteArrayList<>();
+
+    // the newest messages of recently read conversations, formatted for display
+    private final ConversationCache cache = new ConversationCache();
+
+    // striped like UserLocks, keyed by conversation name, so sends to different conversations
+    // run in parallel while a conversation's messages keep the order they were sent in
+    private final ReentrantLock[] conversationLocks = new ReentrantLock[UserLocks.DEFAULT_STRIPES];
+
+    {
+        for (int i = 0; i < conversationLocks.length; i++) {
+            conversationLocks[i] = new ReentrantLock();
+        }
+    }
+
     /**
      * Constructs a new MessageDatabase instance.
-     * Initializes data structures and loads existing message history from files.
+     * Opens the message log and loads the list of conversations from its index.
+     * The first time, the message files of the conversations are imported into the log.
      * Creates empty data structures if files don't exist or cannot be read.
      */
     public MessageDatabase() {
-        fileNameList = new ArrayList<>();
-        userMessageList = new HashMap<>();
-        try (BufferedReader bfr = new BufferedReader(new FileReader(fileNameForFileNameList))) {
-            String line;
-            while ((line = bfr.readLine()) != null) {
-                fileNameList.add(line);
-                String[] parts = line.split("-");
-                if (!userMessageList.containsKey(parts[0])) {
-                    userMessageList.put(parts[0], new ArrayList<>());
-                }
-                if (!userMessageList.containsKey(parts[1])) {
-                    userMessageList.put(parts[1], new ArrayList<>());
-                }
-
-                userMessageList.get(parts[0]).add(parts[1]);
-                userMessageList.get(parts[1]).add(parts[0]);
+        try {
+            log.open();
+            if (log.isEmpty()) {
+                importMessageFiles();
+            }
+            for (String conversation : log.conversations()) {
+                directory.load(conversation);
             }
         } catch (IOException e) {
             System.out.println("IO Exception");
@@ -48,83 +79,141 @@ public class MessageDatabase {
     }
 
     /**
-     * Saves the list of message file names to the file system.
+     * Imports the message files written before the message log, one per conversation.
+     * Their torn ends are cut off first, and conversations the file name list missed are
+     * found in the directory. The files are left in place.
+     */
+    private void importMessageFiles() throws IOException {
+        LinkedHashSet<String> conversations = new LinkedHashSet<>();
+        try (BufferedReader bfr = new BufferedReader(new FileReader(fileNameForFileNameList))) {
+            String line;
+            while ((line = bfr.readLine()) != null) {
+                conversations.add(line);
+            }
+        } catch (FileNotFoundException e) {
+            // no conversation was ever saved
+        }
+        String[] names = new File(DIRECTORY_PATH).list((dir, name) -> name.contains("-") && !name.endsWith(".tmp"));
+        if (names != null) {
+            conversations.addAll(Arrays.asList(names));
+        }
+        MessageFile.Recovery recovery = MessageFile.recoverDirectory(new File(DIRECTORY_PATH));
+        int messages = 0;
+        for (String conversation : conversations) {
+            File file = new File(DIRECTORY_PATH, conversation);
+            if (!file.exists()) {
+                continue;
+            }
+            for (String message : MessageFile.read(file)) {
+                log.append(conversation, message);
+                messages++;
+            }
+        }
+        if (messages > 0) {
+            log.checkpoint();
+            System.out.printf("Imported %,d messages of %,d conversations into the message log, "
+                    + "repaired %d files%n", messages, log.conversations().size(), recovery.repaired());
+        }
+    }
+
+    /**
+     * Returns the users a user has a conversation with.
+     *
+     * @param user the user
+     * @return the partners, empty if the user has no conversation
+     */
+    public ArrayList<String> getPartners(String user) {
+        return directory.partners(user);
+    }
+
+    /**
+     * Adds a listener to be notified of every message sent from now on.
+     *
+     * @param listener the listener
+     */
+    public void addMessageListener(MessageListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Sets how much memory the cache of recently read conversations may take.
+     *
+     * @param bytes the budget in bytes, 0 to cache nothing
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public void setCacheBytes(long bytes) {
+        cache.setBudgetBytes(bytes);
+    }
+
+    /**
+     * Returns the cache of recently read conversations, for its metrics.
+     *
+     * @return the conversation cache
+     */
+    public ConversationCache getMessageCache() {
+        return cache;
+    }
+
+    /**
+     * Saves the messages to the file system: forces the message log to disk and writes its
+     * index, so the next start does not have to scan the log.
      *
      * @throws IOException if an I/O error occurs during file writing
      */
     public void saveFile() throws IOException {
-        try (BufferedWriter bfw = new BufferedWriter(new FileWriter(fileNameForFileNameList))) {
-            for (String fileName: fileNameList) {
-                bfw.write(fileName);
-                bfw.newLine();
-            }
-        }
+        log.checkpoint();
     }
 
     /**
-     * Finds or creates a file for storing messages between two users.
-     * Checks for existing files in both possible name combinations (userId1-userId2 or userId2-userId1).
-     * Creates a new file if no existing conversation is found.
+     * Finds the conversation between two users in the conversation directory, whichever
+     * of them sent first. A new conversation is named after the two user IDs in sorted order.
      *
      * @param userId1 the ID of the first user in the conversation
      * @param userId2 the ID of the second user in the conversation
-     * @return the File object representing the message history between the users
-     */
-    public synchronized File findMessageFile(String userId1, String userId2) {
-        String directoryPath = "Message and photos database";
-        File directory = new File(directoryPath);
-        if (!directory.exists()) {
-            directory.mkdirs();  // Create directory if it doesn't exist
-        }
-        String fileName = userId1 + "-" + userId2;
-        String fileName2 = userId2 + "-" + userId1;
-        File file = new File(directoryPath, fileName2);
-        if (!file.exists()) {
-            file = new File(directoryPath, fileName);
-            if (!fileNameList.contains(fileName)) {
-                fileNameList.add(fileName);
-            }
-        }
-        return file;
+     * @return the name of the conversation between the users
+     */
+    public String findConversation(String userId1, String userId2) {
+        return directory.find(userId1, userId2);
     }
 
     /**
-     * Sends a message from one user to another and stores it in the appropriate file.
-     * Creates the message with a timestamp and adds both users to each other's message lists
-     * if they aren't already present. This method is synchronized to prevent concurrent access issues.
+     * Sends a message from one user to another and appends it to their conversation in the
+     * message log.
+     * Creates the message with a timestamp and adds the conversation to the directory if it
+     * is new, adds it to the conversation's cached tail, then notifies the message listeners.
+     * Only the message log is written, nothing else on disk is looked up or created.
+     * Only the conversation's lock is held, so messages to different conversations are sent
+     * in parallel and written to the message log together.
      *
      * @param sendUserId the ID of the user sending the message
      * @param receiveUserId the ID of the user receiving the message
      * @param messageContent the content of the message being sent
      * @return true if the message was sent successfully, false otherwise
      */
-    public synchronized boolean sendMessage(String sendUserId, String receiveUserId, String messageContent) {
+    public boolean sendMessage(String sendUserId, String receiveUserId, String messageContent) {
         //check the messageContent
         if (messageContent == null) {
             return false;
         }
-        // Initialize user message lists if they don't exist
-        if (!userMessageList.containsKey(sendUserId)) {
-            userMessageList.put(sendUserId, new ArrayList<>());
-        }
-        if (!userMessageList.containsKey(receiveUserId)) {
-            userMessageList.put(receiveUserId, new ArrayList<>());
-        }
         Message message = new Message(sendUserId, receiveUserId, messageContent);
-        File file = findMessageFile(sendUserId, receiveUserId);
-        // write to the file
-        try (PrintWriter pw = new PrintWriter(new FileOutputStream(file, true))) {
-            pw.println(message.toFileString());
-            pw.flush();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        //add senderId to the message list of userId and vice versa
-        if (!userMessageList.get(sendUserId).contains(receiveUserId)) {
-            userMessageList.get(sendUserId).add(receiveUserId);
-        }
-        if (!userMessageList.get(receiveUserId).contains(sendUserId)) {
-            userMessageList.get(receiveUserId).add(sendUserId);
+        String conversation = directory.add(sendUserId, receiveUserId);
+        ReentrantLock lock = lockOf(conversation);
+        lock.lock();
+        try {
+            int seq;
+            try {
+                seq = log.append(conversation, message.toFileString());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            // formatted from the stored form, exactly like the history shows it
+            String displayed = displayedMessage(fromFileString(message.toFileString()));
+            cache.appended(conversation, seq, displayed);
+            for (MessageListener listener : listeners) {
+                listener.messageSent(sendUserId, receiveUserId, seq, displayed);
+            }
+        } finally {
+            lock.unlock();
         }
         return true;
     }
@@ -132,32 +221,172 @@ public class MessageDatabase {
 
     /**
      * Retrieves the message history between two users.
-     * Reads all messages from the appropriate file and formats them for display.
+     * The newest messages of their conversation come from the conversation cache, only the
+     * older ones are read from the message log and formatted for display.
      *
      * @param user1 the ID of the first user in the conversation
      * @param user2 the ID of the second user in the conversation
      * @return an ArrayList of formatted message strings in chronological order
      */
     public ArrayList<String> getMessageHistory(String user1, String user2) {
-        File f = findMessageFile(user1, user2);
+        String conversation = findConversation(user1, user2);
         ArrayList<String> historyMessage = new ArrayList<>();
-        try (BufferedReader bfr = new BufferedReader(new FileReader(f))) {
-            String line = bfr.readLine();
-            while (line != null) {
-                Message message = fromFileString(line);
-                historyMessage.add(displayedMessage(message));
-                line = bfr.readLine();
-            }
+        try {
+            historyMessage.addAll(newest(conversation, 1).messages());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         return historyMessage;
     }
+    /**
+     * Returns the sync position: where the message log ends now. Passing it to the next
+     * syncMessages returns exactly the messages sent after this call.
+     *
+     * @return the current sync position
+     */
+    public long syncPosition() {
+        return log.position();
+    }
+
+    /**
+     * Returns the messages of a user's conversations sent between two sync positions, so a
+     * client that keeps the position of its last sync only receives what is new. Only the
+     * conversations with new messages are read, so the cost depends on the new traffic and
+     * not on the size of the history.
+     *
+     * @param user  the user
+     * @param since the sync position of the previous sync, 0 for everything
+     * @param until the sync position returned to the client with this sync
+     * @param limit the most messages returned per conversation, the newest are kept
+     * @return a batch for every conversation with new messages
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    public ArrayList<MessageBatch> syncMessages(String user, long since, long until, int limit) {
+        int pageSize = PagedItems.pageSize(limit);
+        ArrayList<String> partners = directory.partners(user);
+        if (since > until) {
+            // the log lost its torn end since the client synced, start over
+            since = 0;
+        }
+        ArrayList<MessageBatch> batches = new ArrayList<>();
+        try {
+            for (String partner : partners) {
+                MessageLog.Slice slice = log.readBetween(findConversation(user, partner), since, until, pageSize);
+                if (!slice.messages().isEmpty()) {
+                    batches.add(new MessageBatch(partner, slice.firstSeq(), displayed(slice.messages())));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return batches;
+    }
+
+    /**
+     * Returns one page of a conversation for scrolling back through it: the messages just
+     * before a sequence number. Messages are numbered from 1 in the order they were sent.
+     * The newest page is served from the conversation cache, older pages from the log.
+     *
+     * @param user      the user
+     * @param partner   the other user of the conversation
+     * @param beforeSeq the sequence number after the page, 0 for the newest messages
+     * @param limit     the most messages in the page
+     * @return the page, empty when the start of the conversation was reached
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    public MessageBatch getConversationPage(String user, String partner, int beforeSeq, int limit) {
+        int pageSize = PagedItems.pageSize(limit);
+        String conversation = findConversation(user, partner);
+        try {
+            if (beforeSeq <= 0) {
+                ConversationCache.Slice tail = newest(conversation, log.count(conversation) - pageSize + 1);
+                // messages sent since the count was taken push the oldest out of the page
+                ArrayList<String> messages = tail.messages();
+                int extra = Math.max(0, messages.size() - pageSize);
+                return new MessageBatch(partner, tail.firstSeq() + extra,
+                        new ArrayList<>(messages.subList(extra, messages.size())));
+            }
+            int upTo = beforeSeq - 1;
+            MessageLog.Slice slice = log.read(conversation, Math.max(0, upTo - pageSize), upTo);
+            return new MessageBatch(partner, slice.firstSeq(), displayed(slice.messages()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the newest messages of a conversation from a sequence number on, formatted for
+     * display. Its cached tail is used, loaded on a miss, and only messages older than the
+     * tail are read from the message log.
+     *
+     * @param conversation the conversation
+     * @param fromSeq      the sequence number of the first message wanted
+     * @return the messages from fromSeq, or from 1 if it is not positive, to the newest
+     */
+    private ConversationCache.Slice newest(String conversation, int fromSeq) throws IOException {
+        ConversationCache.Slice tail = cache.get(conversation, fromSeq);
+        if (tail == null) {
+            tail = loadTail(conversation, fromSeq);
+        }
+        int first = Math.max(1, fromSeq);
+        if (tail.firstSeq() <= first) {
+            return tail;
+        }
+        // messages never change once written, so the older part may be read after the tail
+        ArrayList<String> messages = displayed(log.read(conversation, first - 1, tail.firstSeq() - 1).messages());
+        messages.addAll(tail.messages());
+        return new ConversationCache.Slice(first, messages);
+    }
+
+    /**
+     * Reads the tail of a conversation from the message log into the cache. The
+     * conversation's lock is held, so no message is sent between reading and caching it.
+     *
+     * @param conversation the conversation
+     * @param fromSeq      the sequence number of the first message wanted
+     * @return the messages of the tail from fromSeq
+     */
+    private ConversationCache.Slice loadTail(String conversation, int fromSeq) throws IOException {
+        ReentrantLock lock = lockOf(conversation);
+        lock.lock();
+        try {
+            int count = log.count(conversation);
+            MessageLog.Slice slice = log.read(conversation, Math.max(0, count - cache.getTailMessages()), count);
+            ArrayList<String> messages = displayed(slice.messages());
+            if (count > 0) {
+                cache.put(conversation, slice.firstSeq(), messages);
+            }
+            int from = Math.min(Math.max(0, fromSeq - slice.firstSeq()), messages.size());
+            return new ConversationCache.Slice(slice.firstSeq() + from,
+                    new ArrayList<>(messages.subList(from, messages.size())));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock lockOf(String conversation) {
+        return conversationLocks[conversation.hashCode() & (conversationLocks.length - 1)];
+    }
+
+    /**
+     * Formats messages read from the message log for display.
+     *
+     * @param lines the messages as stored
+     * @return the formatted messages
+     */
+    private ArrayList<String> displayed(ArrayList<String> lines) {
+        ArrayList<String> messages = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            messages.add(displayedMessage(fromFileString(line)));
+        }
+        return messages;
+    }
+
     /**
      * Creates a Message object from its file string representation.
      * Parses the components of the stored message string and constructs a new Message object.
      *
-     * @param fileString the string representation of a message from the file "fileName.txt"
+     * @param fileString the string representation of a message from the message log
      * @return a Message object with the parsed properties
      */
     public Message fromFileString(String fileString) {
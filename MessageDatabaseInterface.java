@@ -5,12 +5,20 @@ public interface MessageDatabaseInterface {
 
     void saveFile() throws IOException;
 
-    File findMessageFile(String userId1, String userId2);
+    String findConversation(String userId1, String userId2);
+
+    ArrayList<String> getPartners(String user);
 
     boolean sendMessage(String sendUserId, String receiveUserId, String messageContent);
 
     ArrayList<String> getMessageHistory(String user1, String user2);
 
+    long syncPosition();
+
+    ArrayList<MessageBatch> syncMessages(String user, long since, long until, int limit);
+
+    MessageBatch getConversationPage(String user, String partner, int beforeSeq, int limit);
+
     Message fromFileString(String fileString);
 
     String displayedMessage(Message message);
@@ -0,0 +1,210 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32C;
+
+/**
+ * The per-conversation message files: one message per line, appended as messages are sent.
+ *
+ * Each line is written as "#", the CRC32C of the message as eight hex digits, ";" and the
+ * message, so a line torn by a crash or damaged on disk is recognized instead of being read
+ * as a wrong message. Lines written before the checksum was added do not start with "#"
+ * and are read as they are.
+ *
+ * Messages are only ever appended, so a crash can only damage the end of a file. Recovery
+ * reads each file backwards from its end until it finds a complete line with a good
+ * checksum and cuts off what follows; its cost depends on the number of files, not on how
+ * many messages they hold. A damaged line in the middle is skipped when the file is read.
+ */
+public final class MessageFile {
+    // how much of the end of a file recovery reads at first, doubled while no good line is found
+    private static final int TAIL_BYTES = 8 * 1024;
+    private static final int CHECKSUM_LENGTH = 1 + 8 + 1;
+
+    /**
+     * What recovering a directory of message files found.
+     *
+     * @param files        the number of files checked
+     * @param repaired     the number of files whose end was cut off
+     * @param droppedBytes the number of bytes cut off
+     * @param nanos        how long the recovery took
+     */
+    public record Recovery(int files, int repaired, long droppedBytes, long nanos) {
+    }
+
+    private MessageFile() {
+    }
+
+    /**
+     * Appends a message to a file, creating the file if needed.
+     *
+     * @param file    the conversation file
+     * @param message the message as a single line
+     * @throws IOException if the file cannot be written
+     */
+    public static void append(File file, String message) throws IOException {
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write((encode(message) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Reads the messages of a file, skipping damaged lines.
+     *
+     * @param file the conversation file
+     * @return the messages in the order they were appended
+     * @throws IOException if the file cannot be read
+     */
+    public static ArrayList<String> read(File file) throws IOException {
+        ArrayList<String> messages = new ArrayList<>();
+        int damaged = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String message = decode(line);
+                if (message == null) {
+                    damaged++;
+                } else {
+                    messages.add(message);
+                }
+            }
+        }
+        if (damaged > 0) {
+            System.out.println("Warning: skipped " + damaged + " damaged messages in " + file.getName());
+        }
+        return messages;
+    }
+
+    /**
+     * Cuts a torn or damaged end off a file, keeping everything up to the last complete
+     * line with a good checksum.
+     *
+     * @param file the conversation file
+     * @return the number of bytes cut off
+     * @throws IOException if the file cannot be read or truncated
+     */
+    public static long recover(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            long window = TAIL_BYTES;
+            while (true) {
+                long start = Math.max(0, length - window);
+                byte[] tail = new byte[(int) (length - start)];
+                raf.seek(start);
+                raf.readFully(tail);
+                long good = lastGoodEnd(tail, start);
+                if (good >= 0 || start == 0) {
+                    good = Math.max(good, 0);
+                    if (good < length) {
+                        raf.setLength(good);
+                    }
+                    return length - good;
+                }
+                window *= 2;
+            }
+        }
+    }
+
+    /**
+     * Recovers every file in a directory of message files.
+     *
+     * @param directory the directory, it may not exist
+     * @return what was found
+     */
+    public static Recovery recoverDirectory(File directory) {
+        long start = System.nanoTime();
+        File[] files = directory.listFiles(File::isFile);
+        int repaired = 0;
+        long dropped = 0;
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    long cut = recover(file);
+                    if (cut > 0) {
+                        System.out.printf("Warning: cut %,d damaged bytes off the end of messages %s%n",
+                                cut, file.getName());
+                        repaired++;
+                        dropped += cut;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error recovering messages " + file.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+        return new Recovery(files == null ? 0 : files.length, repaired, dropped, System.nanoTime() - start);
+    }
+
+    /**
+     * Finds the end of the last complete good line in the end of a file.
+     *
+     * @param tail  the last bytes of the file
+     * @param start the position of the first of them in the file
+     * @return the position just after the newline of that line, or -1 if the bytes hold no
+     *         good line that is known to start within them
+     */
+    private static long lastGoodEnd(byte[] tail, long start) {
+        // a last line without a newline was torn by a crash
+        int end = lastNewline(tail, tail.length - 1);
+        while (end >= 0) {
+            int begin = lastNewline(tail, end - 1) + 1;
+            if (begin == 0 && start > 0) {
+                // the line may start before the bytes read
+                return -1;
+            }
+            String line = new String(tail, begin, end - begin, StandardCharsets.UTF_8);
+            if (decode(line) != null) {
+                return start + end + 1;
+            }
+            end = begin - 1;
+        }
+        return start == 0 ? 0 : -1;
+    }
+
+    private static int lastNewline(byte[] bytes, int from) {
+        for (int i = from; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Puts the checksum in front of a message.
+     *
+     * @param message the message
+     * @return the line to write
+     */
+    static String encode(String message) {
+        return String.format("#%08x;%s", checksum(message), message);
+    }
+
+    /**
+     * Checks the checksum of a line.
+     *
+     * @param line a line of a message file, without its newline
+     * @return the message, or null if the line is damaged
+     */
+    static String decode(String line) {
+        if (!line.startsWith("#")) {
+            // a run of zeros is what a crash leaves where a line was not written yet
+            return line.indexOf('\0') < 0 ? line : null;
+        }
+        if (line.length() < CHECKSUM_LENGTH || line.charAt(CHECKSUM_LENGTH - 1) != ';') {
+            return null;
+        }
+        String message = line.substring(CHECKSUM_LENGTH);
+        try {
+            return Integer.parseUnsignedInt(line, 1, CHECKSUM_LENGTH - 1, 16) == checksum(message) ? message : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int checksum(String message) {
+        CRC32C crc = new CRC32C();
+        crc.update(message.getBytes(StandardCharsets.UTF_8));
+        return (int) crc.getValue();
+    }
+}
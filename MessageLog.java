@@ -0,0 +1,811 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The messages of every conversation in one append-only log.
+ *
+ * The log is split into large segment files named "messages." and the position of their
+ * first byte, like the journal, so millions of conversations need a handful of files and
+ * file handles instead of one each. A record is its payload length, the CRC32C of the
+ * payload and the payload: the position of the previous record of the same conversation,
+ * the conversation and the message. A record never spans two segments.
+ *
+ * The index maps each conversation to the position of its last record and its number of
+ * messages; reading a conversation follows the chain of previous positions with positioned
+ * reads, without touching any other conversation. The messages of a conversation are
+ * numbered from 1 in the order they were appended, and the index also remembers where every
+ * MARK_STRIDE-th message is, so a page of old messages is found without walking the chain
+ * from the newest one. Positions only grow, so a position also serves as a sync cursor: the
+ * records appended after it are exactly those at or past it. The index is written to "messages.index"
+ * when a segment is full and on checkpoint, together with the log position it covers, so a
+ * restart only scans the records after it. A record cut short or failing its checksum ends
+ * the log: it and everything after it are reported and cut off.
+ *
+ * Appending only reserves the record's position and links it to the conversation under the
+ * monitor. The records are then written by one appender at a time: whoever finds no write
+ * in progress writes every record reserved so far with one positioned write, so senders in
+ * different conversations share a write instead of queueing for the monitor across it. A
+ * record becomes visible to readers, and append returns, only once it and every record
+ * before it are written, so readers never see a partly written message.
+ */
+public class MessageLog implements Closeable {
+    public static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "messages.";
+    private static final String INDEX_NAME = "messages.index";
+    private static final int INDEX_MAGIC = 0x5346544D; // "SFTM"
+    private static final int INDEX_VERSION = 2;
+    private static final int MARK_STRIDE = 64;
+    private static final int RECORD_HEADER_BYTES = 4 + 4;
+    private static final int READ_AHEAD_BYTES = 512;
+    // the previous position and the lengths of the two strings
+    private static final int MIN_PAYLOAD_BYTES = 8 + 4 + 4;
+
+    /**
+     * Some consecutive messages of a conversation.
+     *
+     * @param firstSeq the sequence number of the first message, or of the message that would
+     *                 follow the range if it is empty
+     * @param messages the messages in the order they were appended
+     */
+    public record Slice(int firstSeq, ArrayList<String> messages) {
+        /**
+         * Returns the sequence number of the last message.
+         *
+         * @return the sequence number, one less than firstSeq if the slice is empty
+         */
+        public int lastSeq() {
+            return firstSeq + messages.size() - 1;
+        }
+    }
+
+    /**
+     * A record whose position is reserved but that is not written yet.
+     *
+     * @param position     the position of the record
+     * @param segment      the position of the segment it goes to
+     * @param bytes        the encoded record
+     * @param conversation the conversation it belongs to
+     */
+    private record PendingRecord(long position, long segment, byte[] bytes, Conversation conversation) {
+    }
+
+    /**
+     * Where a conversation ends in the log.
+     */
+    private static final class Conversation {
+        // the last written record and the number of written messages, what readers see
+        long last = -1;
+        int count;
+        // the last reserved record and the number of reserved messages, what appends link to
+        long tail = -1;
+        int reserved;
+        // marks[k] is the position of message (k + 1) * MARK_STRIDE; entries are never changed
+        long[] marks = new long[0];
+
+        /**
+         * Notes a record appended to the conversation. The caller must hold monitor.
+         */
+        void appended(long position) {
+            last = position;
+            count++;
+            if (count % MARK_STRIDE == 0) {
+                int mark = count / MARK_STRIDE - 1;
+                if (mark == marks.length) {
+                    marks = Arrays.copyOf(marks, Math.max(4, mark * 2));
+                }
+                marks[mark] = position;
+            }
+        }
+    }
+
+    private final File directory;
+    private final long segmentBytes;
+
+    // guards everything below; reads only hold it to look up the index
+    private final Object monitor = new Object();
+    private final HashMap<String, Conversation> index = new HashMap<>();
+    // the segments keyed by the position of their first byte, the last one is appended to
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+    // the end of the written records; the records up to reserved may still be waiting
+    private long end;
+    private long reserved;
+    // the segment the next reserved record goes to
+    private long reservedSegment;
+    private ArrayList<PendingRecord> pending = new ArrayList<>();
+    private boolean writing;
+    private long writes;
+    private IOException failure;
+    private boolean opened;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordData = new DataOutputStream(record);
+
+    /**
+     * Creates a log in a directory. Nothing is read or written before open.
+     *
+     * @param directory the directory of the segments and the index
+     */
+    public MessageLog(File directory) {
+        this(directory, SEGMENT_BYTES);
+    }
+
+    /**
+     * Creates a log with a custom segment size.
+     *
+     * @param directory    the directory of the segments and the index
+     * @param segmentBytes the size after which a new segment is started
+     */
+    public MessageLog(File directory, long segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Opens the segments, reads the index and scans the records written after it.
+     *
+     * @throws IOException if the log cannot be read or repaired
+     */
+    public void open() throws IOException {
+        synchronized (monitor) {
+            if (opened) {
+                return;
+            }
+            opened = true;
+            long start = System.nanoTime();
+            directory.mkdirs();
+            File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+                    && !name.equals(INDEX_NAME) && !name.endsWith(".tmp"));
+            if (files != null) {
+                for (File file : files) {
+                    try {
+                        long position = Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length()));
+                        segments.put(position, FileChannel.open(file.toPath(),
+                                StandardOpenOption.READ, StandardOpenOption.WRITE));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+            long from = readIndex();
+            int records = scan(from);
+            reserved = end;
+            reservedSegment = segments.isEmpty() ? end : segments.lastKey();
+            for (Conversation entry : index.values()) {
+                entry.tail = entry.last;
+                entry.reserved = entry.count;
+            }
+            if (!segments.isEmpty()) {
+                System.out.printf("Opened message log: %,d conversations, scanned %,d records in %.1f ms%n",
+                        index.size(), records, (System.nanoTime() - start) / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the log holds no message at all.
+     *
+     * @return true if nothing was ever appended
+     */
+    public boolean isEmpty() {
+        synchronized (monitor) {
+            return reserved == 0;
+        }
+    }
+
+    /**
+     * Returns the position just after the last written record. Every record before it is
+     * visible to readers.
+     *
+     * @return the end of the written log
+     */
+    public long position() {
+        synchronized (monitor) {
+            return end;
+        }
+    }
+
+    /**
+     * Returns whether a conversation has any message.
+     *
+     * @param conversation the conversation
+     * @return true if it has messages
+     */
+    public boolean contains(String conversation) {
+        synchronized (monitor) {
+            Conversation entry = index.get(conversation);
+            return entry != null && entry.count > 0;
+        }
+    }
+
+    /**
+     * Returns every conversation with messages.
+     *
+     * @return the conversations, in no particular order
+     */
+    public Set<String> conversations() {
+        synchronized (monitor) {
+            Set<String> conversations = new HashSet<>();
+            for (Map.Entry<String, Conversation> entry : index.entrySet()) {
+                if (entry.getValue().count > 0) {
+                    conversations.add(entry.getKey());
+                }
+            }
+            return conversations;
+        }
+    }
+
+    /**
+     * Returns how many writes the appends were written with, each holding one or more
+     * records.
+     *
+     * @return the number of writes
+     */
+    public long getWriteCount() {
+        synchronized (monitor) {
+            return writes;
+        }
+    }
+
+    /**
+     * Returns the number of messages of a conversation.
+     *
+     * @param conversation the conversation
+     * @return the number of messages, 0 for an unknown conversation
+     */
+    public int count(String conversation) {
+        synchronized (monitor) {
+            Conversation entry = index.get(conversation);
+            return entry == null ? 0 : entry.count;
+        }
+    }
+
+    /**
+     * Appends a message to a conversation and returns once it is written to its segment,
+     * together with whatever other appends were waiting. It is not forced to disk;
+     * checkpoint does that. Appends to one conversation get their sequence numbers in the
+     * order they reserve their records, so a caller that needs them in its own order must
+     * not append to the same conversation from two threads at once.
+     *
+     * @param conversation the conversation
+     * @param message      the message
+     * @return the sequence number of the message in the conversation
+     * @throws IOException if the log cannot be written
+     */
+    public int append(String conversation, String message) throws IOException {
+        long recordEnd;
+        int seq;
+        synchronized (monitor) {
+            if (!opened) {
+                throw new IllegalStateException("Message log must be opened before appending");
+            }
+            if (failure != null) {
+                throw new IOException("Message log could not be written: " + failure.getMessage(), failure);
+            }
+            Conversation entry = index.computeIfAbsent(conversation, c -> new Conversation());
+            byte[] bytes = encode(entry.tail, conversation, message);
+            if (reserved > reservedSegment && reserved - reservedSegment + bytes.length > segmentBytes) {
+                reservedSegment = reserved;
+            }
+            pending.add(new PendingRecord(reserved, reservedSegment, bytes, entry));
+            entry.tail = reserved;
+            seq = ++entry.reserved;
+            reserved += bytes.length;
+            recordEnd = reserved;
+        }
+        awaitWritten(recordEnd);
+        return seq;
+    }
+
+    /**
+     * Waits until the log is written up to a position. If no other appender is writing, the
+     * caller writes every pending record itself.
+     *
+     * @param position the position
+     * @throws IOException if the records could not be written
+     */
+    private void awaitWritten(long position) throws IOException {
+        while (true) {
+            ArrayList<PendingRecord> batch;
+            synchronized (monitor) {
+                while (end < position && writing && failure == null) {
+                    try {
+                        monitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the message log");
+                    }
+                }
+                if (failure != null) {
+                    throw new IOException("Message log could not be written: " + failure.getMessage(), failure);
+                }
+                if (end >= position) {
+                    return;
+                }
+                writing = true;
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            try {
+                write(batch);
+            } catch (IOException e) {
+                synchronized (monitor) {
+                    // the records after the failed ones would follow a hole, so the log stops
+                    failure = e;
+                }
+                throw e;
+            } finally {
+                synchronized (monitor) {
+                    writing = false;
+                    monitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes pending records with one positioned write per segment they go to, and makes
+     * them visible. Only called by the appender that set writing.
+     *
+     * @param batch the records, in position order
+     */
+    private void write(ArrayList<PendingRecord> batch) throws IOException {
+        int from = 0;
+        while (from < batch.size()) {
+            long segment = batch.get(from).segment();
+            int to = from;
+            int length = 0;
+            while (to < batch.size() && batch.get(to).segment() == segment) {
+                length += batch.get(to).bytes().length;
+                to++;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            for (int i = from; i < to; i++) {
+                buffer.put(batch.get(i).bytes());
+            }
+            buffer.flip();
+            FileChannel channel = channelOf(segment);
+            long at = batch.get(from).position() - segment;
+            while (buffer.hasRemaining()) {
+                at += channel.write(buffer, at);
+            }
+            synchronized (monitor) {
+                for (int i = from; i < to; i++) {
+                    batch.get(i).conversation().appended(batch.get(i).position());
+                }
+                end = batch.get(to - 1).position() + batch.get(to - 1).bytes().length;
+                writes++;
+                monitor.notifyAll();
+            }
+            from = to;
+        }
+    }
+
+    /**
+     * Returns the channel of a segment, creating the segment when the first record is
+     * written to it. Every record before it is written by then, so the index written here
+     * covers every full segment and a restart scans at most one segment.
+     *
+     * @param start the position of the segment
+     * @return its channel
+     */
+    private FileChannel channelOf(long start) throws IOException {
+        synchronized (monitor) {
+            FileChannel channel = segments.get(start);
+            if (channel != null) {
+                return channel;
+            }
+            Map.Entry<Long, FileChannel> previous = segments.lastEntry();
+            if (previous != null) {
+                previous.getValue().force(false);
+                writeIndex();
+            }
+            File file = new File(directory, SEGMENT_PREFIX + start);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.put(start, channel);
+            return channel;
+        }
+    }
+
+    /**
+     * Reads the messages of a conversation.
+     *
+     * @param conversation the conversation
+     * @return the messages in the order they were appended, empty for an unknown conversation
+     * @throws IOException if the log cannot be read or a record is damaged
+     */
+    public ArrayList<String> read(String conversation) throws IOException {
+        return read(conversation, 0, Integer.MAX_VALUE).messages();
+    }
+
+    /**
+     * Reads the messages of a conversation with sequence numbers in a range. The walk
+     * starts at the mark closest after the range, so its cost depends on the size of the
+     * range and not on how many messages follow it.
+     *
+     * @param conversation the conversation
+     * @param after        the sequence number before the first message to read
+     * @param upTo         the sequence number of the last message to read
+     * @return the messages with sequence numbers after "after" and up to "upTo"
+     * @throws IOException if the log cannot be read or a record is damaged
+     */
+    public Slice read(String conversation, int after, int upTo) throws IOException {
+        long position;
+        int seq;
+        synchronized (monitor) {
+            Conversation entry = index.get(conversation);
+            if (entry == null) {
+                return new Slice(1, new ArrayList<>());
+            }
+            position = entry.last;
+            seq = entry.count;
+            if (upTo > 0 && upTo < seq) {
+                // the first mark at or after the range
+                int mark = (upTo + MARK_STRIDE - 1) / MARK_STRIDE - 1;
+                if ((mark + 1) * MARK_STRIDE < seq) {
+                    position = entry.marks[mark];
+                    seq = (mark + 1) * MARK_STRIDE;
+                }
+            }
+        }
+        return collect(position, seq, after, upTo, 0, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads the newest messages of a conversation appended between two log positions.
+     * Nothing is read if the conversation has no record at or past the first one.
+     *
+     * @param conversation the conversation
+     * @param since        the first position to read, usually the position of an earlier sync
+     * @param until        the position to stop at, usually the current position
+     * @param limit        the most messages to read, the newest are kept
+     * @return the messages appended between the positions
+     * @throws IOException if the log cannot be read or a record is damaged
+     */
+    public Slice readBetween(String conversation, long since, long until, int limit) throws IOException {
+        long position;
+        int seq;
+        synchronized (monitor) {
+            Conversation entry = index.get(conversation);
+            if (entry == null) {
+                return new Slice(1, new ArrayList<>());
+            }
+            position = entry.last;
+            seq = entry.count;
+        }
+        if (position < since) {
+            return new Slice(seq + 1, new ArrayList<>());
+        }
+        return collect(position, seq, 0, Integer.MAX_VALUE, since, until, limit);
+    }
+
+    /**
+     * Walks the chain of a conversation back from a record and collects the messages in
+     * a range of sequence numbers and positions. The records are immutable once appended,
+     * so they are read without the monitor.
+     *
+     * @param position the record to start at
+     * @param seq      its sequence number
+     * @param after    the walk stops at this sequence number
+     * @param upTo     newer messages are skipped
+     * @param since    the walk stops before this position
+     * @param until    records at or past this position are skipped
+     * @param limit    the walk stops after this many messages
+     * @return the collected messages
+     */
+    private Slice collect(long position, int seq, int after, int upTo, long since, long until, int limit)
+            throws IOException {
+        ArrayList<String> messages = new ArrayList<>(Math.min(Math.max(0, Math.min(seq, upTo) - after), 1024));
+        int first = Math.min(seq, upTo) + 1;
+        while (Math.min(seq, upTo) > after && position >= since && position >= 0 && messages.size() < limit) {
+            ByteBuffer payload = readRecord(position);
+            long previous = payload.getLong();
+            if (seq <= upTo && position < until) {
+                readString(payload);
+                messages.add(readString(payload));
+                first = seq;
+            }
+            position = previous;
+            seq--;
+        }
+        Collections.reverse(messages);
+        return new Slice(first, messages);
+    }
+
+    /**
+     * Forces every segment to disk and writes the index, so a restart does not have to scan
+     * the records appended so far.
+     *
+     * @throws IOException if the log or the index cannot be written
+     */
+    public void checkpoint() throws IOException {
+        long position;
+        synchronized (monitor) {
+            position = reserved;
+        }
+        awaitWritten(position);
+        synchronized (monitor) {
+            Map.Entry<Long, FileChannel> segment = segments.lastEntry();
+            if (segment != null) {
+                segment.getValue().force(false);
+            }
+            writeIndex();
+        }
+    }
+
+    /**
+     * Writes a checkpoint and closes the segments.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (monitor) {
+            if (!opened) {
+                return;
+            }
+            checkpoint();
+            for (FileChannel channel : segments.values()) {
+                channel.close();
+            }
+            segments.clear();
+            opened = false;
+        }
+    }
+
+    /**
+     * Reads and checks the record at a position.
+     *
+     * @param position the position of the record
+     * @return its payload
+     * @throws IOException if the record cannot be read or is damaged
+     */
+    private ByteBuffer readRecord(long position) throws IOException {
+        FileChannel channel;
+        long at;
+        synchronized (monitor) {
+            Map.Entry<Long, FileChannel> segment = segments.floorEntry(position);
+            if (segment == null) {
+                throw new IOException("No message log segment holds position " + position);
+            }
+            channel = segment.getValue();
+            at = position - segment.getKey();
+        }
+        // most records are short, read the header and the payload in one go
+        ByteBuffer buffer = ByteBuffer.allocate(READ_AHEAD_BYTES);
+        while (buffer.position() < RECORD_HEADER_BYTES) {
+            if (channel.read(buffer, at + buffer.position()) < 0) {
+                throw new IOException("Message log is truncated");
+            }
+        }
+        int length = buffer.getInt(0);
+        int checksum = buffer.getInt(4);
+        ByteBuffer payload;
+        if (RECORD_HEADER_BYTES + length <= buffer.position()) {
+            payload = buffer.flip().position(RECORD_HEADER_BYTES).limit(RECORD_HEADER_BYTES + length).slice();
+        } else {
+            payload = readFully(channel, at + RECORD_HEADER_BYTES, length);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Message record at position " + position + " is damaged");
+        }
+        return payload;
+    }
+
+    /**
+     * Encodes a record. The caller must hold monitor.
+     */
+    private byte[] encode(long previous, String conversation, String message) throws IOException {
+        record.reset();
+        recordData.writeInt(0);
+        recordData.writeInt(0);
+        recordData.writeLong(previous);
+        writeString(recordData, conversation);
+        writeString(recordData, message);
+        byte[] bytes = record.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, RECORD_HEADER_BYTES, bytes.length - RECORD_HEADER_BYTES);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(0, bytes.length - RECORD_HEADER_BYTES);
+        buffer.putInt(4, (int) crc.getValue());
+        return bytes;
+    }
+
+    /**
+     * Scans the records from a position to the end of the log into the index, and cuts off
+     * a damaged end. The caller must hold monitor.
+     *
+     * @param from the position the index covers
+     * @return the number of records scanned
+     */
+    private int scan(long from) throws IOException {
+        int records = 0;
+        end = from;
+        String reason = null;
+        CRC32C crc = new CRC32C();
+        for (Map.Entry<Long, FileChannel> segment : segments.entrySet()) {
+            long start = segment.getKey();
+            long size = segment.getValue().size();
+            if (reason != null || start + size <= from) {
+                continue;
+            }
+            if (start > end) {
+                reason = "segment " + SEGMENT_PREFIX + start + " does not follow the previous one";
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(directory, SEGMENT_PREFIX + start)), 1 << 16))) {
+                in.skipNBytes(end - start);
+                while (reason == null && end - start < size) {
+                    long position = end;
+                    try {
+                        int length = in.readInt();
+                        int checksum = in.readInt();
+                        if (length < 0 || length > size - (position - start) - RECORD_HEADER_BYTES) {
+                            reason = "a message record at position " + position + " is cut short";
+                            break;
+                        }
+                        if (length < MIN_PAYLOAD_BYTES) {
+                            // zeros where a record was never written have a matching checksum
+                            reason = "a message record at position " + position + " is malformed";
+                            break;
+                        }
+                        byte[] payload = in.readNBytes(length);
+                        crc.reset();
+                        crc.update(payload);
+                        if ((int) crc.getValue() != checksum) {
+                            reason = "a message record at position " + position + " fails its checksum";
+                            break;
+                        }
+                        ByteBuffer buffer = ByteBuffer.wrap(payload);
+                        buffer.getLong();
+                        String conversation = readString(buffer);
+                        Conversation entry = index.get(conversation);
+                        if (entry == null) {
+                            entry = new Conversation();
+                            index.put(conversation, entry);
+                        }
+                        entry.appended(position);
+                        end = position + RECORD_HEADER_BYTES + length;
+                        records++;
+                    } catch (EOFException e) {
+                        reason = "a message record at position " + position + " is cut short";
+                    }
+                }
+            }
+        }
+        if (reason != null) {
+            long dropped = 0;
+            for (Long start : new ArrayList<>(segments.tailMap(end, false).keySet())) {
+                FileChannel channel = segments.remove(start);
+                dropped += channel.size();
+                channel.close();
+                new File(directory, SEGMENT_PREFIX + start).delete();
+            }
+            Map.Entry<Long, FileChannel> last = segments.floorEntry(end);
+            if (last != null) {
+                dropped += last.getValue().size() - (end - last.getKey());
+                last.getValue().truncate(end - last.getKey());
+            }
+            System.out.printf("Warning: %s, dropping the last %,d bytes of the message log%n", reason, dropped);
+        }
+        return records;
+    }
+
+    /**
+     * Reads the index written by writeIndex. The caller must hold monitor.
+     *
+     * @return the log position the index covers, 0 if there is no usable index
+     */
+    private long readIndex() {
+        File file = new File(directory, INDEX_NAME);
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            byte[] content = Files.readAllBytes(file.toPath());
+            CRC32C crc = new CRC32C();
+            crc.update(content, 0, Math.max(0, content.length - 4));
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            if (content.length < 4 + 4 + 8 + 4 + 4 || buffer.getInt() != INDEX_MAGIC
+                    || buffer.getInt() != INDEX_VERSION || buffer.getInt(content.length - 4) != (int) crc.getValue()) {
+                throw new IOException("the index is damaged");
+            }
+            long position = buffer.getLong();
+            int conversations = buffer.getInt();
+            for (int i = 0; i < conversations; i++) {
+                String conversation = readString(buffer);
+                Conversation entry = new Conversation();
+                entry.last = buffer.getLong();
+                entry.count = buffer.getInt();
+                entry.marks = new long[entry.count / MARK_STRIDE];
+                for (int mark = 0; mark < entry.marks.length; mark++) {
+                    entry.marks[mark] = buffer.getLong();
+                }
+                index.put(conversation, entry);
+            }
+            return position;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Warning: cannot read " + INDEX_NAME + " (" + e.getMessage()
+                    + "), scanning the whole message log");
+            index.clear();
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the index and the position it covers, replacing the old one in one step.
+     * The caller must hold monitor and must have forced the segments to disk.
+     */
+    private void writeIndex() throws IOException {
+        FileStorage.replaceFile(new File(directory, INDEX_NAME).getPath(), out -> {
+            CRC32C crc = new CRC32C();
+            DataOutputStream data = new DataOutputStream(new CheckedOutputStream(out, crc));
+            data.writeInt(INDEX_MAGIC);
+            data.writeInt(INDEX_VERSION);
+            data.writeLong(end);
+            // conversations whose first message is still waiting have nothing written yet
+            int written = 0;
+            for (Conversation conversation : index.values()) {
+                if (conversation.count > 0) {
+                    written++;
+                }
+            }
+            data.writeInt(written);
+            for (Map.Entry<String, Conversation> entry : index.entrySet()) {
+                Conversation conversation = entry.getValue();
+                if (conversation.count == 0) {
+                    continue;
+                }
+                writeString(data, entry.getKey());
+                data.writeLong(conversation.last);
+                data.writeInt(conversation.count);
+                for (int mark = 0; mark < conversation.count / MARK_STRIDE; mark++) {
+                    data.writeLong(conversation.marks[mark]);
+                }
+            }
+            data.flush();
+            new DataOutputStream(out).writeInt((int) crc.getValue());
+        });
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Malformed string in the message log");
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Message log is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+}
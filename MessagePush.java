@@ -0,0 +1,51 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A message the server pushes to its recipient as soon as it was sent, without being asked.
+ * It arrives between the responses to the recipient's own commands, so the client's reader
+ * thread hands it to the message listeners instead of treating it as a response.
+ */
+public class MessagePush implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String sender;
+    private final int seq;
+    private final String message;
+
+    /**
+     * Constructs a push.
+     *
+     * @param sender the user who sent the message, the recipient's partner in the conversation
+     * @param seq the sequence number of the message in the conversation
+     * @param message the message, formatted for display
+     */
+    public MessagePush(String sender, int seq, String message) {
+        this.sender = sender;
+        this.seq = seq;
+        this.message = message;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the message as a batch of one, to merge it with batches of the same conversation.
+     *
+     * @return the batch
+     */
+    public MessageBatch toBatch() {
+        ArrayList<String> messages = new ArrayList<>(1);
+        messages.add(message);
+        return new MessageBatch(sender, seq, messages);
+    }
+}
@@ -0,0 +1,69 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Helpers for amounts of money, which are kept as a long number of cents everywhere
+ * so balances and prices add up and compare exactly.
+ *
+ * The data files store cents as a plain integer. Files written before that stored dollars
+ * as a double, which Double.toString always writes with a '.' or an exponent, so the two
+ * formats can be told apart when loading.
+ */
+public final class Money {
+    private Money() {
+    }
+
+    /**
+     * Converts dollars to cents, rounding to the nearest cent.
+     *
+     * @param dollars the amount in dollars
+     * @return the amount in cents
+     * @throws NumberFormatException if the amount is not a finite number
+     */
+    public static long fromDollars(double dollars) {
+        if (Double.isNaN(dollars) || Double.isInfinite(dollars)) {
+            throw new NumberFormatException("Invalid amount: " + dollars);
+        }
+        return Math.round(dollars * 100);
+    }
+
+    /**
+     * Parses an amount in dollars typed by a user, such as "12" or "12.5".
+     *
+     * @param text the amount in dollars
+     * @return the amount in cents
+     * @throws NumberFormatException if the text is not a number or has more than two decimals
+     */
+    public static long parse(String text) {
+        try {
+            return new BigDecimal(text.trim()).movePointRight(2).setScale(0, RoundingMode.UNNECESSARY)
+                    .longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Invalid amount: " + text);
+        }
+    }
+
+    /**
+     * Parses an amount read from a data file, in cents or in legacy dollars.
+     *
+     * @param field the field of the file
+     * @return the amount in cents
+     * @throws NumberFormatException if the field is not a number
+     */
+    public static long parseStored(String field) {
+        if (field.indexOf('.') >= 0 || field.indexOf('E') >= 0 || field.indexOf('e') >= 0) {
+            return fromDollars(Double.parseDouble(field));
+        }
+        return Long.parseLong(field.trim());
+    }
+
+    /**
+     * Formats an amount for display, such as "12.50".
+     *
+     * @param cents the amount in cents
+     * @return the amount in dollars with two decimals
+     */
+    public static String format(long cents) {
+        return BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+}
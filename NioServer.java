@@ -0,0 +1,547 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * A second server engine next to Server. Connections are served by a few selector
+ * (reactor) threads using non-blocking SocketChannels and the frames described in
+ * FrameCodec, so no thread ever waits on a single client. Commands still run through
+ * ClientHandler.processCommand on worker threads, one frame at a time per connection.
+ *
+ * Each connection may have at most maxPendingFrames frames queued (requests waiting to be
+ * handled plus responses waiting to be sent). When a client stops reading its responses the
+ * server stops reading its requests, instead of buffering without limit.
+ * Pushes to a client that stopped reading are dropped instead.
+ *
+ */
+public class NioServer {
+    public static final int DEFAULT_PORT = 4243;
+    public static final int DEFAULT_MAX_PENDING_FRAMES = 32;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Database database;
+    private final MessageDatabase messageDatabase;
+    private final Reactor[] reactors;
+    private final ExecutorService workers;
+    private final int maxPendingFrames;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+
+    /**
+     * Constructs a new NioServer on an already bound server channel.
+     * Initializes the databases and sets up auto-save functionality.
+     *
+     * @param serverChannel the bound server channel to accept connections on
+     * @param reactorCount the number of selector threads
+     * @param maxPendingFrames the limit of queued frames per connection
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioServer(ServerSocketChannel serverChannel, int reactorCount, int maxPendingFrames) throws IOException {
+        this(serverChannel, reactorCount, maxPendingFrames, new Database());
+    }
+
+    /**
+     * Constructs a new NioServer on an already bound server channel and loaded database.
+     * Initializes the message database and sets up auto-save functionality.
+     *
+     * @param serverChannel the bound server channel to accept connections on
+     * @param reactorCount the number of selector threads
+     * @param maxPendingFrames the limit of queued frames per connection
+     * @param database the database the clients work on
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioServer(ServerSocketChannel serverChannel, int reactorCount, int maxPendingFrames,
+                     Database database) throws IOException {
+        if (reactorCount <= 0 || maxPendingFrames <= 0) {
+            throw new IllegalArgumentException("Reactor count and pending frame limit must be positive");
+        }
+        this.serverChannel = serverChannel;
+        this.database = database;
+        this.messageDatabase = new MessageDatabase();
+        // messages are pushed to recipients who are logged in
+        messageDatabase.addMessageListener(ClientHandler.sessions::messageSent);
+        this.maxPendingFrames = maxPendingFrames;
+        this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("nio-worker-", 0).factory());
+        this.reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor(Selector.open());
+        }
+        this.running = true;
+        database.setupAutoSave();
+    }
+
+    /**
+     * Starts the reactor threads and accepts connections on the calling thread
+     * until the server is closed. New connections are spread over the reactors round robin.
+     */
+    public void startServer() {
+        // Add shutdown hook to save data when server exits; added here rather than in the
+        // constructor so the hook never sees a partly constructed server
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Server shutting down, saving data...");
+            closeServer();
+        }));
+        for (int i = 0; i < reactors.length; i++) {
+            Thread thread = new Thread(reactors[i], "nio-reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        System.out.println("NIO server started with " + reactors.length + " reactor threads");
+        int next = 0;
+        try {
+            while (running) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("A new client has connected");
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("Server error: " + e.getMessage());
+                e.printStackTrace();
+            } else {
+                System.out.println("Server closed");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of open connections.
+     *
+     * @return the connection count
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the message database the server was started with.
+     *
+     * @return the message database
+     */
+    public MessageDatabase getMessageDatabase() {
+        return messageDatabase;
+    }
+
+    /**
+     * Saves all data, closes every connection and stops the reactor and worker threads.
+     * Called when the server is shutting down either manually or by the JVM shutdown hook.
+     */
+    public void closeServer() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            //save data before shutdown
+            database.writeToFile();
+            database.close();
+            messageDatabase.saveFile();
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A selector thread that does all reads and writes for the connections registered with it.
+     * Other threads hand it work through its task queue.
+     */
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Runs the task on this reactor's thread.
+         *
+         * @param task the task to run
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Registers a newly accepted channel with this reactor.
+         *
+         * @param channel the accepted channel
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connections.add(connection);
+                } catch (IOException e) {
+                    System.out.println("Could not register client: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // already failing, nothing else to release
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Reactor error: " + e.getMessage());
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * One client connection. The socket is only read and written by its reactor thread,
+     * commands are run by a worker thread. Both queues are guarded by the connection's monitor.
+     */
+    private class Connection {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final ClientHandler handler;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ArrayDeque<byte[]> inbound = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private boolean processing;
+        private boolean closed;
+
+        Connection(Reactor reactor, SocketChannel channel) {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.handler = new ClientHandler(database, messageDatabase);
+            handler.setPushSink(this::push);
+        }
+
+        /**
+         * Queues an object the server pushes without being asked, in a frame of its own.
+         * Called from any thread; when the pending frame limit is reached the push is
+         * dropped rather than queued, the client catches up with syncMessages.
+         *
+         * @param notification the object to push
+         */
+        void push(Object notification) {
+            try {
+                byte[] frame = FrameCodec.encode(new Object[] {notification});
+                synchronized (this) {
+                    if (closed || outbound.size() >= maxPendingFrames) {
+                        return;
+                    }
+                    outbound.add(ByteBuffer.wrap(frame));
+                }
+                reactor.execute(this::write);
+            } catch (IOException e) {
+                System.out.println("Could not push to client: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Reads what is available and queues the complete frames the pending frame limit
+         * allows. Reactor thread only.
+         */
+        void read() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    System.out.println("Client disconnected");
+                    close();
+                    return;
+                }
+                decodeFrames();
+                updateInterest();
+            } catch (IOException e) {
+                System.out.println("Client disconnected: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Queues the frames left in the read buffer once the pending frame limit allows
+         * more, then updates the interest. Reactor thread only.
+         */
+        void resume() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                decodeFrames();
+                updateInterest();
+            } catch (IOException e) {
+                System.out.println("Client disconnected: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Queues complete frames from the read buffer until the pending frame limit is
+         * reached; the rest stays in the buffer for resume. Reactor thread only.
+         */
+        private void decodeFrames() throws IOException {
+            readBuffer.flip();
+            while (readBuffer.remaining() >= FrameCodec.HEADER_SIZE) {
+                synchronized (this) {
+                    if (pendingFrames() >= maxPendingFrames) {
+                        break;
+                    }
+                }
+                int length = readBuffer.getInt(readBuffer.position());
+                FrameCodec.checkLength(length);
+                if (readBuffer.remaining() < FrameCodec.HEADER_SIZE + length) {
+                    if (FrameCodec.HEADER_SIZE + length > readBuffer.capacity()) {
+                        ByteBuffer larger = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + length);
+                        larger.put(readBuffer);
+                        larger.flip();
+                        readBuffer = larger;
+                    }
+                    break;
+                }
+                readBuffer.position(readBuffer.position() + FrameCodec.HEADER_SIZE);
+                byte[] payload = new byte[length];
+                readBuffer.get(payload);
+                frameReceived(payload);
+            }
+            readBuffer.compact();
+            if (readBuffer.position() == 0 && readBuffer.capacity() > READ_BUFFER_SIZE) {
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE); // drop the buffer grown for a large frame
+            }
+        }
+
+        /**
+         * Writes queued responses until the socket would block. Reactor thread only.
+         */
+        void write() {
+            try {
+                synchronized (this) {
+                    while (!outbound.isEmpty()) {
+                        ByteBuffer buffer = outbound.peek();
+                        channel.write(buffer);
+                        if (buffer.hasRemaining()) {
+                            break;
+                        }
+                        outbound.poll();
+                    }
+                }
+                // a written response frees room for a frame still in the read buffer
+                resume();
+            } catch (IOException e) {
+                System.out.println("Client disconnected: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Returns how many frames count against the limit: requests waiting or being
+         * handled and responses not yet written. The caller must hold this connection's
+         * monitor.
+         */
+        private int pendingFrames() {
+            return inbound.size() + outbound.size() + (processing ? 1 : 0);
+        }
+
+        /**
+         * Reads only while the pending frame limit allows it, and writes only when there is
+         * something to send. Reactor thread only.
+         */
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            synchronized (this) {
+                if (pendingFrames() < maxPendingFrames) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if (!outbound.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Queues a request and starts a worker if none is running for this connection.
+         *
+         * @param payload the frame payload
+         */
+        private void frameReceived(byte[] payload) {
+            synchronized (this) {
+                inbound.add(payload);
+                if (processing) {
+                    return;
+                }
+                processing = true;
+            }
+            workers.execute(this::drain);
+        }
+
+        /**
+         * Handles queued requests in order on a worker thread until the queue is empty.
+         */
+        private void drain() {
+            while (true) {
+                byte[] payload;
+                boolean done;
+                synchronized (this) {
+                    payload = inbound.poll();
+                    done = payload == null || closed;
+                    if (done) {
+                        processing = false;
+                    }
+                }
+                if (done) {
+                    // the request no longer counts against the limit, reading may resume
+                    reactor.execute(this::resume);
+                    return;
+                }
+                try {
+                    ArrayList<Object> responses = handler.handleFrame(FrameCodec.decode(payload));
+                    byte[] frame = FrameCodec.encode(responses.toArray());
+                    synchronized (this) {
+                        outbound.add(ByteBuffer.wrap(frame));
+                    }
+                    reactor.execute(this::write);
+                } catch (IOException e) {
+                    System.out.println("Bad frame from client: " + e.getMessage());
+                    reactor.execute(this::close);
+                    synchronized (this) {
+                        processing = false;
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Closes the channel and logs out the user of this connection.
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                inbound.clear();
+                outbound.clear();
+            }
+            connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (ClosedChannelException ignored) {
+                // already closed
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            handler.close();
+        }
+    }
+
+    /**
+     * Starts the NIO server.
+     * Accepts "--port=N", "--reactors=N", "--max-pending=N", "--storage=file|pages|memory",
+     * "--coalesce-ms=N", how long profile edits may wait before they are written, and
+     * "--message-cache-mb=N", how much memory recently read conversations may take.
+     *
+     * @param args the command line arguments
+     * @throws IOException if the server channel cannot be opened
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int reactorCount = Math.min(4, Runtime.getRuntime().availableProcessors());
+        int maxPending = DEFAULT_MAX_PENDING_FRAMES;
+        String storage = "file";
+        long coalesceMillis = Database.DEFAULT_COALESCE_MILLIS;
+        long cacheBytes = ConversationCache.DEFAULT_BUDGET_BYTES;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--reactors=")) {
+                reactorCount = Integer.parseInt(arg.substring("--reactors=".length()));
+            } else if (arg.startsWith("--max-pending=")) {
+                maxPending = Integer.parseInt(arg.substring("--max-pending=".length()));
+            } else if (arg.startsWith("--storage=")) {
+                storage = arg.substring("--storage=".length());
+            } else if (arg.startsWith("--coalesce-ms=")) {
+                coalesceMillis = Long.parseLong(arg.substring("--coalesce-ms=".length()));
+            } else if (arg.startsWith("--message-cache-mb=")) {
+                cacheBytes = Long.parseLong(arg.substring("--message-cache-mb=".length())) * 1024 * 1024;
+            }
+        }
+        Database database = new Database(Storage.open(storage, "allUser.txt", "MarketInventory.txt"),
+                Database.LockMode.STAMPED);
+        database.setCoalesceMillis(coalesceMillis);
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        NioServer server = new NioServer(serverChannel, reactorCount, maxPending, database);
+        server.getMessageDatabase().setCacheBytes(cacheBytes);
+        server.startServer();
+    }
+}
@@ -0,0 +1,767 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * The page-file backend: an embedded key-value store of users and items in one file.
+ *
+ * The file is made of PAGE_BYTES pages. The first page is the header: the magic bytes
+ * "SFTP", the format version, the page size and the next item id. Records follow, and one
+ * that fits in a page never crosses into the next one. A record is a status byte, a type
+ * byte, its key, the length of its payload, the payload and the CRC32C of everything but
+ * the status byte. Users are keyed by an internal number that never changes, so renaming a
+ * user rewrites one record; items are keyed by their id and refer to their owner's key.
+ *
+ * Every change appends the new version of what it changed, or a tombstone for a delete,
+ * and an index in memory points each key at its latest record. Once the new version is on
+ * disk the status byte of the old one is overwritten to mark it dead; if that mark is lost
+ * in a crash the later record still wins when the file is read. A change that writes
+ * several records, like a sale, marks all but the last one as continued, and a change that
+ * is cut short by a crash is dropped as a whole.
+ *
+ * Appends only go to the operating system; awaitDurable forces the file once for everything
+ * appended so far, so clients waiting at the same time share one sync. A snapshot compacts
+ * the file: it writes the live records to a new file and renames it over the old one.
+ */
+public class PageFileStorage implements Storage {
+    public static final int PAGE_BYTES = 4096;
+    private static final int MAGIC = 0x53465450; // "SFTP"
+    private static final int VERSION = 1;
+    // status, type, key and payload length in front of the payload, the checksum after it
+    private static final int RECORD_OVERHEAD = 1 + 1 + 8 + 4 + 4;
+    private static final int PAYLOAD_OFFSET = 1 + 1 + 8 + 4;
+
+    // record status, the first byte of a record
+    private static final byte PADDING = 0;   // the rest of the page is empty
+    private static final byte LIVE = 'L';    // the last record of a change
+    private static final byte MORE = 'M';    // more records of the same change follow
+    private static final byte DEAD = 'D';    // a later record replaced this one
+
+    // record types
+    private static final byte USER = 'U';         // name, password, email, balance
+    private static final byte DELETE_USER = 'u';  // no payload
+    private static final byte ITEM = 'I';         // owner key, name, price, description, forSale
+    private static final byte DELETE_ITEM = 'i';  // no payload
+
+    /**
+     * Where a record is in the file.
+     */
+    private record Location(long offset, int size) {
+    }
+
+    private final File file;
+    // where the data comes from the first time, before the page file exists
+    private final Storage importFrom;
+
+    // guards everything below except the force fields
+    private final Object monitor = new Object();
+    private FileChannel channel;
+    private Pages pages;
+    private Index index = new Index();
+    private final IdentityHashMap<User, Long> userKeys = new IdentityHashMap<>();
+    private long nextUserKey = 1;
+    // the number of bytes ever appended, the tokens handed out by the persist methods
+    private long appended;
+    private IOException failure;
+
+    // guards forcing the file, taken before monitor when both are needed
+    private final Object forceMonitor = new Object();
+    private volatile long forced;
+    private volatile long syncs;
+    // serializes snapshots with each other
+    private final Object snapshotMonitor = new Object();
+
+    /**
+     * Creates a page-file backend. Nothing is read before load.
+     *
+     * @param file       the page file
+     * @param importFrom the backend whose data is copied into a new page file, or null to
+     *                   start empty
+     */
+    public PageFileStorage(File file, Storage importFrom) {
+        this.file = file.getAbsoluteFile();
+        this.importFrom = importFrom;
+    }
+
+    /**
+     * Reads every live record. A change cut short by a crash at the end of the file is
+     * ignored and cut off. If the page file does not exist yet it is created, with the data
+     * of the import backend.
+     *
+     * @return the users and items
+     * @throws IOException if the file cannot be read or is not a page file
+     */
+    @Override
+    public StoredData load() throws IOException {
+        long start = System.nanoTime();
+        synchronized (monitor) {
+            if (!file.exists()) {
+                StoredData data = new StoredData(new User[0], new Item[0], 1);
+                if (importFrom != null) {
+                    data = importFrom.load();
+                    importFrom.close();
+                }
+                for (User user : data.users()) {
+                    userKeys.put(user, nextUserKey++);
+                }
+                channel = writeFile(data, index);
+                pages = new Pages(channel, channel.size());
+                System.out.printf("Created %s with %,d users and %,d items in %.1f ms%n",
+                        file.getName(), data.users().length, data.items().length,
+                        (System.nanoTime() - start) / 1e6);
+                return data;
+            }
+
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(20);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < 20 || header.getInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a page file");
+            }
+            int version = header.getInt();
+            if (version != VERSION || header.getInt() != PAGE_BYTES) {
+                throw new IOException("Unsupported page file version " + version);
+            }
+            long nextItemId = header.getLong();
+
+            HashMap<Long, User> users = new HashMap<>();
+            // items are decoded last, the live record of their owner may come after them
+            TreeMap<Long, Record> items = new TreeMap<>();
+            ArrayList<Record> change = new ArrayList<>();
+            long end = PAGE_BYTES;
+            int records = 0;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+                in.skipNBytes(PAGE_BYTES);
+                RecordReader reader = new RecordReader(in, PAGE_BYTES);
+                for (Record record = reader.next(); record != null; record = reader.next()) {
+                    if (record.type == USER || record.type == DELETE_USER) {
+                        nextUserKey = Math.max(nextUserKey, record.key + 1);
+                    } else {
+                        nextItemId = Math.max(nextItemId, record.key + 1);
+                    }
+                    if (record.status == DEAD) {
+                        continue;
+                    }
+                    change.add(record);
+                    if (record.status == MORE) {
+                        continue;
+                    }
+                    for (Record r : change) {
+                        index.apply(r);
+                        switch (r.type) {
+                            case USER -> {
+                                DataInputStream payload = r.payload();
+                                String name = readString(payload);
+                                String password = readString(payload);
+                                String email = readString(payload);
+                                long balance = payload.readLong();
+                                User user = users.get(r.key);
+                                if (user == null) {
+                                    users.put(r.key, new User(name, email, password, balance));
+                                } else {
+                                    user.restore(name, email, password, balance);
+                                }
+                            }
+                            case DELETE_USER -> users.remove(r.key);
+                            case ITEM -> items.put(r.key, r);
+                            case DELETE_ITEM -> items.remove(r.key);
+                            default -> System.out.println("Warning: Unknown page file record type " + (char) r.type);
+                        }
+                        records++;
+                    }
+                    change.clear();
+                    end = reader.position;
+                }
+            }
+            if (!change.isEmpty()) {
+                System.out.println("Warning: ignoring an unfinished change at the end of " + file.getName());
+            }
+            if (channel.size() > end) {
+                channel.truncate(end);
+            }
+            pages = new Pages(channel, end);
+
+            ArrayList<Item> itemList = new ArrayList<>(items.size());
+            for (Record r : items.values()) {
+                DataInputStream payload = r.payload();
+                User owner = users.get(payload.readLong());
+                // items of a deleted user are deleted with it
+                if (owner != null) {
+                    itemList.add(new Item(r.key, owner, readString(payload), payload.readLong(),
+                            readString(payload), payload.readBoolean()));
+                }
+            }
+            for (Map.Entry<Long, User> user : users.entrySet()) {
+                userKeys.put(user.getValue(), user.getKey());
+            }
+            System.out.printf("Read %s in %.1f ms, %,d records, %,d dead bytes%n", file.getName(),
+                    (System.nanoTime() - start) / 1e6, records, getBacklogBytes());
+            return new StoredData(users.values().toArray(new User[0]), itemList.toArray(new Item[0]), nextItemId);
+        }
+    }
+
+    @Override
+    public long persistUser(String oldEmail, User user) {
+        synchronized (monitor) {
+            return append(userRecord(LIVE, keyOf(user), user));
+        }
+    }
+
+    @Override
+    public long persistItem(Item item) {
+        synchronized (monitor) {
+            return append(itemRecord(LIVE, keyOf(item.getOwner()), item));
+        }
+    }
+
+    /**
+     * Writes a tombstone for every item of the user and then for the user, as one change.
+     */
+    @Override
+    public long deleteUser(User user, Collection<Item> items) {
+        synchronized (monitor) {
+            Long key = userKeys.remove(user);
+            ArrayList<byte[]> records = new ArrayList<>();
+            for (Item item : items) {
+                records.add(encode(MORE, DELETE_ITEM, item.getId(), new byte[0]));
+            }
+            if (key != null) {
+                records.add(encode(MORE, DELETE_USER, key, new byte[0]));
+            }
+            if (records.isEmpty()) {
+                return appended;
+            }
+            // the status is not part of the checksum
+            records.getLast()[0] = LIVE;
+            return append(records.toArray(new byte[0][]));
+        }
+    }
+
+    @Override
+    public long deleteItem(Item item) {
+        synchronized (monitor) {
+            return append(encode(LIVE, DELETE_ITEM, item.getId(), new byte[0]));
+        }
+    }
+
+    /**
+     * Writes a tombstone for the item and both users as one change.
+     */
+    @Override
+    public long recordSale(Item item, User buyer, User seller) {
+        synchronized (monitor) {
+            return append(encode(MORE, DELETE_ITEM, item.getId(), new byte[0]),
+                    userRecord(MORE, keyOf(buyer), buyer),
+                    userRecord(LIVE, keyOf(seller), seller));
+        }
+    }
+
+    /**
+     * Forces the file to disk unless another caller already did since the change was
+     * appended. Old versions replaced by the forced records are marked dead afterwards.
+     */
+    @Override
+    public void awaitDurable(long token) throws IOException {
+        if (token <= forced) {
+            return;
+        }
+        synchronized (forceMonitor) {
+            if (token <= forced) {
+                return;
+            }
+            long upTo;
+            ArrayList<Long> dead;
+            FileChannel current;
+            synchronized (monitor) {
+                if (failure != null) {
+                    throw new IOException("Page file write failed", failure);
+                }
+                upTo = appended;
+                dead = index.takeDead();
+                current = channel;
+            }
+            current.force(false);
+            forced = upTo;
+            syncs++;
+            markDead(current, dead);
+        }
+    }
+
+    /**
+     * Compacts the file. The copy is written to a new file without blocking changes; the
+     * records appended meanwhile are then copied after it with changes blocked, and the new
+     * file is renamed over the old one.
+     */
+    @Override
+    public long snapshot(Copier copy) throws IOException {
+        synchronized (snapshotMonitor) {
+            long[] marked = new long[1];
+            boolean installed = false;
+            StoredData data = copy.copy(() -> {
+                synchronized (monitor) {
+                    marked[0] = pages.tail;
+                }
+            });
+            long mark = marked[0];
+            ArrayList<User> users = new ArrayList<>();
+            ArrayList<Long> keys = new ArrayList<>();
+            synchronized (monitor) {
+                for (User user : data.users()) {
+                    Long key = userKeys.get(user);
+                    // a user without a key was deleted after the copy
+                    if (key != null) {
+                        users.add(user);
+                        keys.add(key);
+                    }
+                }
+            }
+            File temp = new File(file.getPath() + ".tmp");
+            Index compacted = new Index();
+            FileChannel next = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                Pages nextPages = writeHeader(next, data.nextItemId());
+                IdentityHashMap<User, Long> owners = new IdentityHashMap<>();
+                for (int i = 0; i < users.size(); i++) {
+                    nextPages.add(compacted, userRecord(LIVE, keys.get(i), users.get(i)));
+                    owners.put(users.get(i), keys.get(i));
+                }
+                for (Item item : data.items()) {
+                    Long owner = owners.get(item.getOwner());
+                    if (owner != null) {
+                        nextPages.add(compacted, itemRecord(LIVE, owner, item));
+                    }
+                }
+                nextPages.flush();
+
+                synchronized (forceMonitor) {
+                    synchronized (monitor) {
+                        if (failure != null) {
+                            throw new IOException("Page file write failed", failure);
+                        }
+                        // the changes made since the mark, in the order they were made
+                        try (InputStream in = inputStream(channel, mark)) {
+                            RecordReader reader = new RecordReader(in, mark);
+                            for (Record record = reader.next(); record != null; record = reader.next()) {
+                                if (record.status != DEAD) {
+                                    nextPages.add(compacted, record.bytes);
+                                }
+                            }
+                        }
+                        nextPages.flush();
+                        next.force(false);
+                        moveOver(temp);
+                        channel.close();
+                        channel = next;
+                        installed = true;
+                        pages = nextPages;
+                        index = compacted;
+                        markDead(next, compacted.takeDead());
+                        forced = appended;
+                        return next.size();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!installed) {
+                    next.close();
+                    temp.delete();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes of the file that hold no live record: old versions, tombstones and
+     * the empty ends of pages. A snapshot drops them.
+     */
+    @Override
+    public long getBacklogBytes() {
+        synchronized (monitor) {
+            return pages == null ? 0 : pages.tail - PAGE_BYTES - index.liveBytes;
+        }
+    }
+
+    @Override
+    public long getSyncCount() {
+        return syncs;
+    }
+
+    /**
+     * Forces the last changes to disk and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        long last;
+        synchronized (monitor) {
+            if (channel == null) {
+                return;
+            }
+            last = appended;
+        }
+        awaitDurable(last);
+        synchronized (monitor) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Appends the records of one change after the last one. The caller must hold monitor.
+     *
+     * @param records the encoded records, all but the last marked MORE
+     * @return the token of the change
+     */
+    private long append(byte[]... records) {
+        if (failure != null) {
+            return appended + 1;
+        }
+        long before = pages.tail;
+        try {
+            for (byte[] record : records) {
+                pages.add(index, record);
+            }
+            pages.flush();
+        } catch (IOException e) {
+            System.out.println("Error writing page file: " + e.getMessage());
+            failure = e;
+            return appended + 1;
+        }
+        appended += pages.tail - before;
+        return appended;
+    }
+
+    /**
+     * Returns the key of a user, giving it a new one if it has none. The caller must hold
+     * monitor.
+     */
+    private long keyOf(User user) {
+        Long key = userKeys.get(user);
+        if (key == null) {
+            key = nextUserKey++;
+            userKeys.put(user, key);
+        }
+        return key;
+    }
+
+    /**
+     * Writes a new page file with everything in it and renames it into place.
+     *
+     * @param data  the users and items, every user must have a key
+     * @param into  receives the locations of the records
+     * @return the new file, open
+     */
+    private FileChannel writeFile(StoredData data, Index into) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileChannel next = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Pages nextPages = writeHeader(next, data.nextItemId());
+        for (User user : data.users()) {
+            nextPages.add(into, userRecord(LIVE, userKeys.get(user), user));
+        }
+        for (Item item : data.items()) {
+            Long owner = userKeys.get(item.getOwner());
+            if (owner != null) {
+                nextPages.add(into, itemRecord(LIVE, owner, item));
+            }
+        }
+        nextPages.flush();
+        next.force(false);
+        moveOver(temp);
+        return next;
+    }
+
+    /**
+     * Writes the header page of a new file.
+     *
+     * @return the pages of the file, positioned after the header
+     */
+    private static Pages writeHeader(FileChannel channel, long nextItemId) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PAGE_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(PAGE_BYTES).putLong(nextItemId);
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        return new Pages(channel, PAGE_BYTES);
+    }
+
+    /**
+     * Renames a new file over the page file and makes the rename durable where possible.
+     */
+    private void moveOver(File temp) throws IOException {
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (FileChannel directory = FileChannel.open(file.getParentFile().toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // the data is in place, only the rename might not survive a power loss
+        }
+    }
+
+    /**
+     * Overwrites the status byte of records whose replacement is on disk.
+     */
+    private static void markDead(FileChannel channel, ArrayList<Long> offsets) throws IOException {
+        ByteBuffer dead = ByteBuffer.allocate(1);
+        for (long offset : offsets) {
+            dead.clear();
+            dead.put(0, DEAD);
+            channel.write(dead, offset);
+        }
+    }
+
+    /**
+     * Reads a file from a position without moving the position of the channel, which
+     * the appends do not use either.
+     */
+    private static InputStream inputStream(FileChannel channel, long position) {
+        return new BufferedInputStream(new InputStream() {
+            private long at = position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = channel.read(ByteBuffer.wrap(b, off, len), at);
+                if (n > 0) {
+                    at += n;
+                }
+                return n;
+            }
+        }, 1 << 16);
+    }
+
+    private static byte[] userRecord(byte status, long key, User user) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeString(out, user.getName());
+            writeString(out, user.getPassword());
+            writeString(out, user.getEmail());
+            out.writeLong(user.getBalance());
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new UncheckedIOException(e);
+        }
+        return encode(status, USER, key, bytes.toByteArray());
+    }
+
+    private static byte[] itemRecord(byte status, long ownerKey, Item item) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(ownerKey);
+            writeString(out, item.getItemName());
+            out.writeLong(item.getPrice());
+            writeString(out, item.getDescription() == null ? "" : item.getDescription());
+            out.writeBoolean(item.isForSale());
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new UncheckedIOException(e);
+        }
+        return encode(status, ITEM, item.getId(), bytes.toByteArray());
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes, which unlike writeUTF has no 64 KB limit.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a record with its checksum.
+     */
+    private static byte[] encode(byte status, byte type, long key, byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length);
+        record.put(status).put(type).putLong(key).putInt(payload.length).put(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 1, record.position() - 1);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * A record read back from the file.
+     */
+    private record Record(long offset, byte status, byte type, long key, byte[] bytes) {
+        DataInputStream payload() {
+            return new DataInputStream(new ByteArrayInputStream(bytes, PAYLOAD_OFFSET, bytes.length - RECORD_OVERHEAD));
+        }
+    }
+
+    /**
+     * Reads records in file order, skipping the empty ends of pages. Stops at the end of
+     * the file or at a record that is cut short or fails its checksum.
+     */
+    private static final class RecordReader {
+        private final DataInputStream in;
+        long position;
+
+        RecordReader(InputStream in, long position) {
+            this.in = new DataInputStream(in);
+            this.position = position;
+        }
+
+        Record next() throws IOException {
+            while (true) {
+                int status = in.read();
+                if (status < 0) {
+                    return null;
+                }
+                byte[] head = new byte[PAYLOAD_OFFSET - 1];
+                byte[] bytes;
+                try {
+                    if (status == PADDING) {
+                        long skip = PAGE_BYTES - position % PAGE_BYTES - 1;
+                        in.skipNBytes(skip);
+                        position += skip + 1;
+                        continue;
+                    }
+                    in.readFully(head);
+                    int length = ByteBuffer.wrap(head, 9, 4).getInt();
+                    if (length < 0 || length > (1 << 24)) {
+                        System.out.println("Warning: invalid page file record at " + position);
+                        return null;
+                    }
+                    bytes = new byte[RECORD_OVERHEAD + length];
+                    bytes[0] = (byte) status;
+                    System.arraycopy(head, 0, bytes, 1, head.length);
+                    in.readFully(bytes, PAYLOAD_OFFSET, length + 4);
+                } catch (EOFException e) {
+                    return null;
+                }
+                if (status != DEAD) {
+                    CRC32C crc = new CRC32C();
+                    crc.update(bytes, 1, bytes.length - 5);
+                    if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+                        System.out.println("Warning: page file record at " + position + " is corrupt");
+                        return null;
+                    }
+                }
+                ByteBuffer fields = ByteBuffer.wrap(bytes);
+                Record record = new Record(position, (byte) status, fields.get(1), fields.getLong(2), bytes);
+                position += bytes.length;
+                return record;
+            }
+        }
+    }
+
+    /**
+     * Lays records out in pages at the end of a file. Records are collected in memory and
+     * written with one call by flush.
+     */
+    private static final class Pages {
+        private final FileChannel channel;
+        // where the next record goes, including the ones not flushed yet
+        long tail;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private long bufferStart;
+
+        Pages(FileChannel channel, long tail) {
+            this.channel = channel;
+            this.tail = tail;
+            this.bufferStart = tail;
+        }
+
+        /**
+         * Adds a record, starting a new page first if it would cross into the next one,
+         * and records its location in an index.
+         */
+        void add(Index index, byte[] record) throws IOException {
+            int used = (int) (tail % PAGE_BYTES);
+            if (used != 0 && used + record.length > PAGE_BYTES) {
+                buffer.write(new byte[PAGE_BYTES - used]);
+                tail += PAGE_BYTES - used;
+            }
+            buffer.write(record);
+            index.apply(new Record(tail, record[0], record[1],
+                    ByteBuffer.wrap(record).getLong(2), record));
+            tail += record.length;
+            if (buffer.size() >= 1 << 20) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes, bufferStart + bytes.position());
+            }
+            buffer.reset();
+            bufferStart = tail;
+        }
+    }
+
+    /**
+     * The location of the latest record of every live user and item.
+     */
+    private static final class Index {
+        private final HashMap<Long, Location> users = new HashMap<>();
+        private final HashMap<Long, Location> items = new HashMap<>();
+        long liveBytes;
+        // records replaced since the last force, to be marked dead once it is done
+        private ArrayList<Long> dead = new ArrayList<>();
+
+        void apply(Record record) {
+            switch (record.type) {
+                case USER -> put(users, record);
+                case DELETE_USER -> remove(users, record.key);
+                case ITEM -> put(items, record);
+                case DELETE_ITEM -> remove(items, record.key);
+                default -> {
+                }
+            }
+        }
+
+        private void put(HashMap<Long, Location> map, Record record) {
+            Location location = new Location(record.offset, record.bytes.length);
+            liveBytes += location.size();
+            remove(map, record.key);
+            map.put(record.key, location);
+        }
+
+        private void remove(HashMap<Long, Location> map, long key) {
+            Location old = map.remove(key);
+            if (old != null) {
+                liveBytes -= old.size();
+                dead.add(old.offset());
+            }
+        }
+
+        ArrayList<Long> takeDead() {
+            ArrayList<Long> taken = dead;
+            dead = new ArrayList<>();
+            return taken;
+        }
+    }
+}
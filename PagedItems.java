@@ -0,0 +1,55 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+
+/**
+ * One page of a paginated item query, with the cursor that continues it.
+ *
+ * Cursors are the position of the last item of the page, written by the index that
+ * answered the query and wrapped in base64 so clients treat them as opaque.
+ *
+ * @param items the items of this page
+ * @param nextCursor the cursor of the next page, or null if this is the last page
+ */
+public record PagedItems(ArrayList<Item> items, String nextCursor) {
+    public static final int MAX_PAGE_SIZE = 500;
+
+    /**
+     * Checks a requested page size and caps it at MAX_PAGE_SIZE.
+     *
+     * @param limit the requested page size
+     * @return the page size to use
+     * @throws IllegalArgumentException if the limit is not positive
+     */
+    public static int pageSize(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        return Math.min(limit, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Wraps a position into an opaque cursor.
+     *
+     * @param position the position of the last item returned
+     * @return the cursor
+     */
+    public static String encodeCursor(String position) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Unwraps a cursor made by encodeCursor.
+     *
+     * @param cursor the cursor
+     * @return the position it holds
+     * @throws IllegalArgumentException if the cursor is not valid base64
+     */
+    public static String decodeCursor(String cursor) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+}
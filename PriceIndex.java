@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The items currently for sale ordered by price, for range queries such as
+ * "laptops between $300 and $800, cheapest first".
+ *
+ * Items are kept in a concurrent skip list keyed by price and then id, so every key is
+ * unique and pages can continue exactly after the last item returned. The continuation
+ * cursor handed to clients is that last key, encoded so clients treat it as opaque.
+ */
+public class PriceIndex {
+    private final ConcurrentSkipListMap<PriceKey, Item> byPrice = new ConcurrentSkipListMap<>();
+
+    /**
+     * The position of an item in the index.
+     */
+    private record PriceKey(long price, long id) implements Comparable<PriceKey> {
+        @Override
+        public int compareTo(PriceKey other) {
+            int byPrice = Long.compare(price, other.price);
+            return byPrice != 0 ? byPrice : Long.compare(id, other.id);
+        }
+    }
+
+    /**
+     * Adds an item if it is for sale.
+     *
+     * @param item the item to add
+     */
+    public void add(Item item) {
+        if (item.isForSale()) {
+            byPrice.put(new PriceKey(item.getPrice(), item.getId()), item);
+        }
+    }
+
+    /**
+     * Removes an item. The item must still have the price it was added with.
+     *
+     * @param item the item to remove
+     */
+    public void remove(Item item) {
+        byPrice.remove(new PriceKey(item.getPrice(), item.getId()));
+    }
+
+    /**
+     * Removes every item from the index.
+     */
+    public void clear() {
+        byPrice.clear();
+    }
+
+    /**
+     * Returns one page of the for-sale items priced between min and max, both included.
+     *
+     * @param min the lowest price in cents
+     * @param max the highest price in cents
+     * @param descending true for the most expensive items first
+     * @param limit the page size, capped at PagedItems.MAX_PAGE_SIZE
+     * @param cursor the cursor returned with the previous page, or null for the first page
+     * @return the page
+     * @throws IllegalArgumentException if the cursor is malformed or the limit is not positive
+     */
+    public PagedItems range(long min, long max, boolean descending, int limit, String cursor) {
+        limit = PagedItems.pageSize(limit);
+        if (min > max) {
+            return new PagedItems(new ArrayList<>(), null);
+        }
+        NavigableMap<PriceKey, Item> range = byPrice.subMap(new PriceKey(min, Long.MIN_VALUE), true,
+                new PriceKey(max, Long.MAX_VALUE), true);
+        if (descending) {
+            range = range.descendingMap();
+        }
+        if (cursor != null) {
+            range = range.tailMap(decodeCursor(cursor), false);
+        }
+
+        ArrayList<Item> items = new ArrayList<>(Math.min(limit, 64));
+        PriceKey last = null;
+        boolean more = false;
+        for (Map.Entry<PriceKey, Item> entry : range.entrySet()) {
+            if (items.size() == limit) {
+                more = true;
+                break;
+            }
+            items.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return new PagedItems(items, more ? encodeCursor(last) : null);
+    }
+
+    private static String encodeCursor(PriceKey key) {
+        return PagedItems.encodeCursor(key.price() + ":" + key.id());
+    }
+
+    private static PriceKey decodeCursor(String cursor) {
+        try {
+            String raw = PagedItems.decodeCursor(cursor);
+            int colon = raw.indexOf(':');
+            return new PriceKey(Long.parseLong(raw.substring(0, colon)),
+                    Long.parseLong(raw.substring(colon + 1)));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+}
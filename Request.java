@@ -0,0 +1,41 @@
+import java.io.Serializable;
+
+/**
+ * A pipelined request: a command and its arguments tagged with an id chosen by the client.
+ * The server answers every request with a Response carrying the same id, so a client
+ * can send many requests without waiting for the answers in between.
+ */
+public class Request implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    private final String command;
+    // the arguments are the strings, numbers and objects the commands read, all serializable
+    @SuppressWarnings("serial")
+    private final Object[] arguments;
+
+    /**
+     * Constructs a request.
+     *
+     * @param id the id the response will be tagged with
+     * @param command the command, the same names processCommand accepts
+     * @param arguments the arguments in the order the command reads them
+     */
+    public Request(long id, String command, Object[] arguments) {
+        this.id = id;
+        this.command = command;
+        this.arguments = arguments;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public Object[] getArguments() {
+        return arguments;
+    }
+}
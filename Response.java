@@ -0,0 +1,33 @@
+import java.io.Serializable;
+
+/**
+ * The answer to a Request. It holds every object the command responded with,
+ * tagged with the id of the request it answers.
+ */
+public class Response implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    // the values are the strings and objects the commands respond with, all serializable
+    @SuppressWarnings("serial")
+    private final Object[] values;
+
+    /**
+     * Constructs a response.
+     *
+     * @param id the id of the request this answers
+     * @param values the objects the command responded with
+     */
+    public Response(long id, Object[] values) {
+        this.id = id;
+        this.values = values;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Object[] getValues() {
+        return values;
+    }
+}
@@ -1,9 +1,12 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -17,45 +20,116 @@ import java.util.Set;
 
 
 public class Server {
+    /**
+     * How each accepted connection is given a thread to run its ClientHandler on.
+     */
+    public enum ConnectionMode {
+        /** One virtual thread per connection, idle clients cost almost nothing. */
+        VIRTUAL,
+        /** A fixed pool of platform threads, extra connections wait for a free thread. */
+        POOLED,
+        /** The old behaviour: a new platform thread for every connection. */
+        THREAD_PER_CONNECTION
+    }
+
+    public static final int DEFAULT_POOL_SIZE = 64;
+
     ServerSocket serverSocket;
     private Database database;
     private MessageDatabase messageDatabase;
-    boolean running;
+    volatile boolean running;
+    private final ConnectionMode connectionMode;
+    private final ExecutorService connectionExecutor; // null in THREAD_PER_CONNECTION mode
+    private final AtomicInteger liveHandlers = new AtomicInteger();
+    // every accepted socket until its task ends, including those still queued for a pooled
+    // thread or setting up their streams, which no ClientHandler has registered yet
+    private final Set<Socket> acceptedSockets = ConcurrentHashMap.newKeySet();
 //    private Set<ClientHandler> clientHandlers; //to control all the clientHandler connecting to the server
 
     /**
      * Constructs a new Server with the specified server socket.
      * Initializes the databases and sets up auto-save functionality.
+     * Connections are run on virtual threads.
      *
      * @param serverSocket The server socket to accept client connections
      */
     public Server(ServerSocket serverSocket) {
+        this(serverSocket, ConnectionMode.VIRTUAL, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Constructs a new Server with the specified server socket and connection mode.
+     * Initializes the databases and sets up auto-save functionality.
+     *
+     * @param serverSocket The server socket to accept client connections
+     * @param connectionMode How client connections are given threads
+     * @param poolSize The number of platform threads, only used in POOLED mode
+     */
+    public Server(ServerSocket serverSocket, ConnectionMode connectionMode, int poolSize) {
+        this(serverSocket, connectionMode, poolSize, new Database());
+    }
+
+    /**
+     * Constructs a new Server on an already loaded database.
+     * Initializes the message database and sets up auto-save functionality.
+     *
+     * @param serverSocket The server socket to accept client connections
+     * @param connectionMode How client connections are given threads
+     * @param poolSize The number of platform threads, only used in POOLED mode
+     * @param database The database the clients work on
+     */
+    public Server(ServerSocket serverSocket, ConnectionMode connectionMode, int poolSize, Database database) {
         this.serverSocket = serverSocket;
-        this.database = new Database();
+        this.database = database;
         this.messageDatabase = new MessageDatabase();
+        // messages are pushed to recipients who are logged in
+        messageDatabase.addMessageListener(ClientHandler.sessions::messageSent);
         this.running = true;
+        this.connectionMode = connectionMode;
+        this.connectionExecutor = createExecutor(connectionMode, poolSize);
 //        this.clientHandlers = Collections.synchronizedSet(new HashSet<>());
         database.setupAutoSave();
+    }
 
-        // Add shutdown hook to save data when server exits
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("Server shutting down, saving data...");
-            closeServerSocket();
-        }));
+    /**
+     * Creates the executor that runs the client handlers for the given mode.
+     *
+     * @param mode the connection mode
+     * @param poolSize the number of threads for POOLED mode
+     * @return the executor, or null when every connection gets its own new thread
+     */
+    private static ExecutorService createExecutor(ConnectionMode mode, int poolSize) {
+        switch (mode) {
+            case VIRTUAL:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory());
+            case POOLED:
+                if (poolSize <= 0) {
+                    throw new IllegalArgumentException("Pool size must be positive");
+                }
+                return Executors.newFixedThreadPool(poolSize, Thread.ofPlatform().name("client-", 0).factory());
+            default:
+                return null;
+        }
     }
+
     /**
      * Starts the server and begins accepting client connections.
-     * Creates a new thread with each client connection to the server.
+     * Each connection is handed to the connection executor, so the accept loop
+     * never waits on a slow client while its streams are being set up.
      */
     public void startServer() {
+        // Add shutdown hook to save data when server exits; added here rather than in the
+        // constructor so the hook never sees a partly constructed server
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Server shutting down, saving data...");
+            closeServerSocket();
+        }));
+        System.out.println("Server started in " + connectionMode + " mode");
         try {
             while (running && !serverSocket.isClosed()) {
                 Socket socket = serverSocket.accept();
                 System.out.println("A new client has connected");
-                ClientHandler clientHandler = new ClientHandler(socket , database, messageDatabase);
-
-                Thread thread = new Thread(clientHandler);
-                thread.start();
+                dispatch(socket);
             }
         } catch (IOException e) {
             if (running) {
@@ -67,9 +141,81 @@ public class Server {
         }
     }
 
+    /**
+     * Runs a ClientHandler for the socket on a thread picked by the connection mode.
+     *
+     * @param socket the accepted client socket
+     */
+    private void dispatch(Socket socket) {
+        acceptedSockets.add(socket);
+        if (!running) {
+            // accepted while closeServerSocket ran, which may have missed it
+            closeSocket(socket);
+            return;
+        }
+        Runnable task = () -> {
+            liveHandlers.incrementAndGet();
+            try {
+                ClientHandler clientHandler = new ClientHandler(socket, database, messageDatabase);
+                clientHandler.run();
+            } finally {
+                acceptedSockets.remove(socket);
+                liveHandlers.decrementAndGet();
+            }
+        };
+        if (connectionExecutor == null) {
+            new Thread(task).start();
+        } else {
+            connectionExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Closes a client socket and forgets it.
+     *
+     * @param socket the socket
+     */
+    private void closeSocket(Socket socket) {
+        acceptedSockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the number of client handlers that are currently running.
+     *
+     * @return the live handler count
+     */
+    public int getLiveHandlerCount() {
+        return liveHandlers.get();
+    }
+
+    /**
+     * Returns the message database the server was started with.
+     *
+     * @return the message database
+     */
+    public MessageDatabase getMessageDatabase() {
+        return messageDatabase;
+    }
+
+    /**
+     * Returns the mode used to run client connections.
+     *
+     * @return the connection mode
+     */
+    public ConnectionMode getConnectionMode() {
+        return connectionMode;
+    }
+
     /**
      * closes the server socket
      * Called when the server is shutting down either manually or by the JVM shutdown hook.
+     * Open client connections are closed so their handlers finish, then the
+     * connection executor is shut down.
      */
     public void closeServerSocket() {
         try {
@@ -77,6 +223,7 @@ public class Server {
 
             //save data before shutdown
             database.writeToFile();
+            database.close();
             messageDatabase.saveFile();
 
             if (serverSocket != null && !serverSocket.isClosed()) {
@@ -85,11 +232,69 @@ public class Server {
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        // handlers block on reads, so close their sockets to let them exit
+        for (ClientHandler handler : ClientHandler.sessions.connections()) {
+            handler.close();
+        }
+        // sockets without a registered handler yet, so queued tasks exit at once and
+        // those shutdownNow discards do not leak
+        for (Socket socket : acceptedSockets) {
+            closeSocket(socket);
+        }
+
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdown();
+            try {
+                if (!connectionExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    connectionExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                connectionExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
+    /**
+     * Starts the server on port 4242.
+     * Accepts "--mode=virtual|pooled|thread", "--pool-size=N", "--storage=file|pages|memory",
+     * "--coalesce-ms=N", how long profile edits may wait before they are written, and
+     * "--message-cache-mb=N", how much memory recently read conversations may take.
+     *
+     * @param args the command line arguments
+     * @throws IOException if the server socket cannot be opened
+     */
     public static void main(String[] args) throws IOException {
+        ConnectionMode mode = ConnectionMode.VIRTUAL;
+        int poolSize = DEFAULT_POOL_SIZE;
+        String storage = "file";
+        long coalesceMillis = Database.DEFAULT_COALESCE_MILLIS;
+        long cacheBytes = ConversationCache.DEFAULT_BUDGET_BYTES;
+        for (String arg : args) {
+            if (arg.startsWith("--mode=")) {
+                String value = arg.substring("--mode=".length());
+                if (value.equalsIgnoreCase("thread")) {
+                    mode = ConnectionMode.THREAD_PER_CONNECTION;
+                } else {
+                    mode = ConnectionMode.valueOf(value.toUpperCase());
+                }
+            } else if (arg.startsWith("--pool-size=")) {
+                poolSize = Integer.parseInt(arg.substring("--pool-size=".length()));
+            } else if (arg.startsWith("--storage=")) {
+                storage = arg.substring("--storage=".length());
+            } else if (arg.startsWith("--coalesce-ms=")) {
+                coalesceMillis = Long.parseLong(arg.substring("--coalesce-ms=".length()));
+            } else if (arg.startsWith("--message-cache-mb=")) {
+                cacheBytes = Long.parseLong(arg.substring("--message-cache-mb=".length())) * 1024 * 1024;
+            }
+        }
+        Database database = new Database(Storage.open(storage, "allUser.txt", "MarketInventory.txt"),
+                Database.LockMode.STAMPED);
+        database.setCoalesceMillis(coalesceMillis);
         ServerSocket serverSocket = new ServerSocket(4242);
-        Server server = new Server(serverSocket);
+        Server server = new Server(serverSocket, mode, poolSize, database);
+        server.getMessageDatabase().setCacheBytes(cacheBytes);
         server.startServer();
     }
 }
@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The client connections of the server and the logged-in users they belong to.
+ *
+ * Every connection served by a ClientHandler is registered while it is open, so the server
+ * can close them when it shuts down, and a connection is registered under its user's name
+ * while the user is logged in, so a message can be pushed to its recipient. An account can
+ * only be logged in once, so there is at most one session per name. Both maps are
+ * concurrent: handlers of different connections register and look each other up without
+ * a common lock.
+ */
+public class SessionRegistry {
+    private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a new connection.
+     *
+     * @param handler the handler of the connection
+     * @return the number of open connections
+     */
+    public int connected(ClientHandler handler) {
+        connections.add(handler);
+        return connections.size();
+    }
+
+    /**
+     * Removes a closed connection and its session.
+     *
+     * @param handler the handler of the connection
+     * @param username the user logged in on it, or null
+     */
+    public void disconnected(ClientHandler handler, String username) {
+        connections.remove(handler);
+        if (username != null) {
+            sessions.remove(username, handler);
+        }
+    }
+
+    /**
+     * Registers the session of a user who logged in.
+     *
+     * @param username the user's name
+     * @param handler the handler of the user's connection
+     */
+    public void loggedIn(String username, ClientHandler handler) {
+        sessions.put(username, handler);
+    }
+
+    /**
+     * Removes the session of a user who logged out or deleted the account.
+     *
+     * @param username the user's name
+     * @param handler the handler of the user's connection
+     */
+    public void loggedOut(String username, ClientHandler handler) {
+        sessions.remove(username, handler);
+    }
+
+    /**
+     * Moves a session to the user's new name.
+     *
+     * @param oldName the name before the change
+     * @param newName the name after the change
+     * @param handler the handler of the user's connection
+     */
+    public void renamed(String oldName, String newName, ClientHandler handler) {
+        if (sessions.remove(oldName, handler)) {
+            sessions.put(newName, handler);
+        }
+    }
+
+    /**
+     * Finds the connection a user is logged in on.
+     *
+     * @param username the user's name
+     * @return the handler, or null if the user is not logged in
+     */
+    public ClientHandler find(String username) {
+        return sessions.get(username);
+    }
+
+    /**
+     * Returns the open connections.
+     *
+     * @return a copy of the handlers of the open connections
+     */
+    public ArrayList<ClientHandler> connections() {
+        return new ArrayList<>(connections);
+    }
+
+    /**
+     * Pushes a message that was just sent to its recipient if the recipient is logged in.
+     * Registered with the MessageDatabase as a MessageListener.
+     *
+     * @param sender the user who sent the message
+     * @param receiver the user it was sent to
+     * @param seq the sequence number of the message in the conversation
+     * @param message the message, formatted for display
+     */
+    public void messageSent(String sender, String receiver, int seq, String message) {
+        ClientHandler handler = sessions.get(receiver);
+        if (handler != null) {
+            handler.push(new MessagePush(sender, seq, message));
+        }
+    }
+}
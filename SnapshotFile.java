@@ -0,0 +1,358 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * The binary snapshot of the database: every user and item in one file.
+ *
+ * The file starts with a header: the magic bytes "SFTS", the format version, the next item
+ * id, the journal position the snapshot holds every change before, and the number of user
+ * and item blocks. Then come the blocks, users first. Each block
+ * holds up to BLOCK_RECORDS records and starts with its record count, its length and the
+ * CRC32C of its payload, so a block can be found without decoding the ones before it and
+ * corruption is caught before anything is loaded.
+ *
+ * A user record is the name, password and email as strings and the balance in cents. An
+ * item record is the id, the index of its owner among the users of the snapshot, the name,
+ * the price in cents, the description and the forSale flag. Strings are UTF-8 with their
+ * length in front, so commas and line breaks need no escaping, and numbers are varints.
+ *
+ * Loading maps each block into memory and decodes the blocks in parallel; items find
+ * their owner by index in the decoded users instead of looking up a name.
+ */
+public final class SnapshotFile {
+    public static final int VERSION = 1;
+    private static final int MAGIC = 0x53465453; // "SFTS"
+    private static final int BLOCK_RECORDS = 16 * 1024;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4;
+    private static final int BLOCK_HEADER_BYTES = 4 + 4 + 4;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Writes a snapshot. Items whose owner is not among the users are left out.
+     *
+     * @param out             the stream to write to, it is not closed
+     * @param users           the users
+     * @param items           the items
+     * @param nextItemId      the id the next new item gets
+     * @param journalPosition the journal position the snapshot holds every change before
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(OutputStream out, List<User> users, List<Item> items,
+                             long nextItemId, long journalPosition) throws IOException {
+        IdentityHashMap<User, Integer> indexes = new IdentityHashMap<>(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            indexes.put(users.get(i), i);
+        }
+        ArrayList<Item> written = new ArrayList<>(items.size());
+        for (Item item : items) {
+            if (indexes.containsKey(item.getOwner())) {
+                written.add(item);
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(nextItemId);
+        data.writeLong(journalPosition);
+        data.writeInt(blocks(users.size()));
+        data.writeInt(blocks(written.size()));
+        Buffer block = new Buffer();
+        for (int start = 0; start < users.size(); start += BLOCK_RECORDS) {
+            int end = Math.min(users.size(), start + BLOCK_RECORDS);
+            block.reset();
+            for (int i = start; i < end; i++) {
+                User user = users.get(i);
+                block.writeString(user.getName());
+                block.writeString(user.getPassword());
+                block.writeString(user.getEmail());
+                block.writeVarLong(user.getBalance());
+            }
+            writeBlock(data, end - start, block);
+        }
+        for (int start = 0; start < written.size(); start += BLOCK_RECORDS) {
+            int end = Math.min(written.size(), start + BLOCK_RECORDS);
+            block.reset();
+            for (int i = start; i < end; i++) {
+                Item item = written.get(i);
+                block.writeVarLong(item.getId());
+                block.writeVarLong(indexes.get(item.getOwner()));
+                block.writeString(item.getItemName());
+                block.writeVarLong(item.getPrice());
+                block.writeString(item.getDescription());
+                block.writeByte(item.isForSale() ? 1 : 0);
+            }
+            writeBlock(data, end - start, block);
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a snapshot written by write.
+     *
+     * @param file the snapshot file
+     * @return the users and items in the order they were written
+     * @throws IOException if the file cannot be read, has an unknown version or is corrupt
+     */
+    public static StoredData read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, file);
+            long nextItemId = header.getLong();
+            header.getLong();
+            int userBlocks = header.getInt();
+            int itemBlocks = header.getInt();
+
+            // find every block from the headers alone, then decode them all at once
+            long[] offsets = new long[userBlocks + itemBlocks];
+            int[] counts = new int[offsets.length];
+            long position = HEADER_BYTES;
+            for (int i = 0; i < offsets.length; i++) {
+                ByteBuffer blockHeader = readFully(channel, position, BLOCK_HEADER_BYTES);
+                counts[i] = blockHeader.getInt();
+                offsets[i] = position;
+                position += BLOCK_HEADER_BYTES + blockHeader.getInt();
+            }
+            if (position != channel.size()) {
+                throw new IOException("Snapshot has " + (channel.size() - position) + " unexpected bytes at the end");
+            }
+
+            User[][] userParts = new User[userBlocks][];
+            decodeInParallel(channel, offsets, 0, userBlocks,
+                    (i, buffer) -> userParts[i] = decodeUsers(buffer, counts[i]));
+            User[] users = concat(userParts, User[]::new);
+            Item[][] itemParts = new Item[itemBlocks][];
+            decodeInParallel(channel, offsets, userBlocks, itemBlocks,
+                    (i, buffer) -> itemParts[i] = decodeItems(buffer, counts[userBlocks + i], users));
+            Item[] items = concat(itemParts, Item[]::new);
+            return new StoredData(users, items, nextItemId);
+        }
+    }
+
+    /**
+     * Reads the journal position a snapshot holds every change before, from its header.
+     *
+     * @param file the snapshot file
+     * @return the position
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static long readJournalPosition(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return readHeader(channel, file).getLong(16);
+        }
+    }
+
+    /**
+     * Reads the header of a snapshot and checks its magic bytes and version.
+     *
+     * @param channel the snapshot file
+     * @param file    the snapshot file, for the error message
+     * @return the header, positioned after the version
+     * @throws IOException if the file cannot be read, is not a snapshot or has an unknown version
+     */
+    private static ByteBuffer readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = readFully(channel, 0, HEADER_BYTES);
+        if (header.getInt() != MAGIC) {
+            throw new IOException(file.getName() + " is not a database snapshot");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        return header;
+    }
+
+    /**
+     * Decodes one block of the snapshot.
+     */
+    @FunctionalInterface
+    private interface BlockDecoder {
+        void decode(int block, ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * Maps a range of blocks, checks their checksums and decodes them on the common pool.
+     *
+     * @param channel the snapshot file
+     * @param offsets the offsets of all blocks
+     * @param first   the first block of the range
+     * @param count   the number of blocks in the range
+     * @param decoder decodes a block, given its index within the range
+     * @throws IOException if a block cannot be read or is corrupt
+     */
+    private static void decodeInParallel(FileChannel channel, long[] offsets, int first, int count,
+                                         BlockDecoder decoder) throws IOException {
+        try {
+            IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    ByteBuffer header = readFully(channel, offsets[first + i], BLOCK_HEADER_BYTES);
+                    header.getInt();
+                    int length = header.getInt();
+                    int checksum = header.getInt();
+                    MappedByteBuffer payload = channel.map(FileChannel.MapMode.READ_ONLY,
+                            offsets[first + i] + BLOCK_HEADER_BYTES, length);
+                    CRC32C crc = new CRC32C();
+                    crc.update(payload.duplicate());
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("Snapshot block " + (first + i) + " is corrupt");
+                    }
+                    decoder.decode(i, payload);
+                    if (payload.hasRemaining()) {
+                        throw new IOException("Snapshot block " + (first + i) + " has unexpected bytes");
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static User[] decodeUsers(ByteBuffer buffer, int count) throws IOException {
+        User[] users = new User[count];
+        for (int i = 0; i < count; i++) {
+            String name = readString(buffer);
+            String password = readString(buffer);
+            String email = readString(buffer);
+            long balance = readVarLong(buffer);
+            users[i] = new User(name, email, password, balance);
+        }
+        return users;
+    }
+
+    private static Item[] decodeItems(ByteBuffer buffer, int count, User[] users) throws IOException {
+        Item[] items = new Item[count];
+        for (int i = 0; i < count; i++) {
+            long id = readVarLong(buffer);
+            long owner = readVarLong(buffer);
+            if (owner >= users.length) {
+                throw new IOException("Snapshot item " + id + " has an unknown owner");
+            }
+            String name = readString(buffer);
+            long price = readVarLong(buffer);
+            String description = readString(buffer);
+            boolean forSale = readByte(buffer) != 0;
+            items[i] = new Item(id, users[(int) owner], name, price, description, forSale);
+        }
+        return items;
+    }
+
+    private static <T> T[] concat(T[][] parts, IntFunction<T[]> create) {
+        int size = 0;
+        for (T[] part : parts) {
+            size += part.length;
+        }
+        T[] all = create.apply(size);
+        int at = 0;
+        for (T[] part : parts) {
+            System.arraycopy(part, 0, all, at, part.length);
+            at += part.length;
+        }
+        return all;
+    }
+
+    private static int blocks(int records) {
+        return (records + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+    }
+
+    private static void writeBlock(DataOutputStream data, int records, Buffer block) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(block.bytes, 0, block.size);
+        data.writeInt(records);
+        data.writeInt(block.size);
+        data.writeInt((int) crc.getValue());
+        data.write(block.bytes, 0, block.size);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Snapshot is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static int readByte(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            throw new IOException("Snapshot block is truncated");
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    private static long readVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(buffer);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in snapshot");
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        long length = readVarLong(buffer);
+        if (length > buffer.remaining()) {
+            throw new IOException("Snapshot block is truncated");
+        }
+        byte[] bytes = new byte[(int) length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A growable byte array a block is encoded into before its checksum is known.
+     */
+    private static final class Buffer {
+        private byte[] bytes = new byte[64 * 1024];
+        private int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            byte[] encoded = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            writeVarLong(encoded.length);
+            ensure(encoded.length);
+            System.arraycopy(encoded, 0, bytes, size, encoded.length);
+            size += encoded.length;
+        }
+    }
+}
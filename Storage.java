@@ -0,0 +1,143 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Where the Database keeps its users and items between runs.
+ *
+ * The Database calls the persist and delete methods right after changing its memory, under
+ * the same locks as the change, so they must be quick and must not call back into the
+ * Database. Each returns a token; once the Database has released its locks it waits for the
+ * change to be durable with awaitDurable, so backends can sync many changes at once.
+ * A balance change is persisted as a change of the whole user.
+ *
+ * The backends are chosen by name with open: "file" keeps a binary snapshot and a journal,
+ * "pages" keeps every record in a page file, and "memory" starts from what the file backend
+ * has and keeps nothing.
+ */
+public interface Storage extends Closeable {
+    /**
+     * Opens a backend by name.
+     *
+     * @param name         "file", "pages" or "memory"
+     * @param userFileName the legacy text file of users, the other files go in its directory
+     * @param itemFileName the legacy text file of items
+     * @return the backend
+     * @throws IllegalArgumentException if there is no backend with this name
+     */
+    static Storage open(String name, String userFileName, String itemFileName) {
+        File directory = new File(userFileName).getAbsoluteFile().getParentFile();
+        return switch (name.toLowerCase()) {
+            case "file" -> new FileStorage(userFileName, itemFileName);
+            case "pages" -> new PageFileStorage(new File(directory, "database.pages"),
+                    new FileStorage(userFileName, itemFileName));
+            case "memory" -> new MemoryStorage(new FileStorage(userFileName, itemFileName));
+            default -> throw new IllegalArgumentException("Unknown storage " + name);
+        };
+    }
+
+    /**
+     * Reads everything that was stored. Called once, before any change.
+     *
+     * @return the users and items
+     * @throws IOException if the stored data cannot be read
+     */
+    StoredData load() throws IOException;
+
+    /**
+     * Stores the whole state of a new or changed user.
+     *
+     * @param oldEmail the email the user had before the change, or its email if unchanged
+     * @param user     the user
+     * @return a token for awaitDurable
+     */
+    long persistUser(String oldEmail, User user);
+
+    /**
+     * Stores the whole state of a new or changed item.
+     *
+     * @param item the item
+     * @return a token for awaitDurable
+     */
+    long persistItem(Item item);
+
+    /**
+     * Removes a user and the items the Database removed with it.
+     *
+     * @param user  the user, with the email it was stored under
+     * @param items the items of the user
+     * @return a token for awaitDurable
+     */
+    long deleteUser(User user, Collection<Item> items);
+
+    /**
+     * Removes an item.
+     *
+     * @param item the item
+     * @return a token for awaitDurable
+     */
+    long deleteItem(Item item);
+
+    /**
+     * Stores a sale: the item is gone and both balances changed.
+     *
+     * @param item   the sold item
+     * @param buyer  the buyer
+     * @param seller the seller
+     * @return a token for awaitDurable
+     */
+    long recordSale(Item item, User buyer, User seller);
+
+    /**
+     * Waits until the change that returned a token, and every change before it, is durable.
+     *
+     * @param token the token
+     * @throws IOException if the change could not be written
+     */
+    void awaitDurable(long token) throws IOException;
+
+    /**
+     * Copies the users and items for a snapshot.
+     */
+    @FunctionalInterface
+    interface Copier {
+        /**
+         * Copies the users and items under the Database lock.
+         *
+         * @param mark run under the lock right before copying, where a backend notes which
+         *             changes it already has
+         * @return the copy
+         */
+        StoredData copy(Runnable mark);
+    }
+
+    /**
+     * Writes a compact copy of everything, so a restart has less to read. The backend notes
+     * which changes the copy already has while the lock is held; changes made while it is
+     * written are still persisted by the methods above.
+     *
+     * @param copy copies the current users and items under the Database lock
+     * @return the number of bytes written
+     * @throws IOException if the snapshot could not be written
+     */
+    long snapshot(Copier copy) throws IOException;
+
+    /**
+     * Returns how many bytes a restart would have to read besides the last snapshot.
+     *
+     * @return the backlog in bytes
+     */
+    default long getBacklogBytes() {
+        return 0;
+    }
+
+    /**
+     * Returns how many times the backend synced changes to disk.
+     *
+     * @return the number of syncs
+     */
+    default long getSyncCount() {
+        return 0;
+    }
+}
@@ -0,0 +1,10 @@
+/**
+ * Everything a Storage backend loaded: the users, the items and the next item id.
+ * Items refer to the user objects in the same StoredData.
+ *
+ * @param users      the users
+ * @param items      the items
+ * @param nextItemId the id the next new item gets
+ */
+public record StoredData(User[] users, Item[] items, long nextItemId) {
+}
@@ -1,15 +1,16 @@
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Objects;
 import java.util.regex.Pattern;
 
 public class User implements UserInterface, Serializable {
     private String name;
     private String email;
     private String password;
-    private double balance;
+    private volatile long balance; // in cents, changed under the user's UserLocks stripe
     private boolean onlineStatus;
 
-    public User(String name, String email, String password, double balance) {
+    public User(String name, String email, String password, long balance) {
         this.name = name;
         this.email = email;
         this.password = password;
@@ -35,7 +36,12 @@ public class User implements UserInterface, Serializable {
         return password;
     }
 
-    public double getBalance() {
+    /**
+     * Returns the balance in cents.
+     *
+     * @return the balance in cents
+     */
+    public long getBalance() {
         return balance;
     }
 
@@ -85,12 +91,28 @@ public class User implements UserInterface, Serializable {
         this.password = password;
     }
 
-    public void setBalance(double balance) {
+    public void setBalance(long balance) {
         this.balance = balance;
     }
 
-    public void addBalance(double balance) {
-        this.balance += balance;
+    public void addBalance(long balance) {
+        this.balance = Math.addExact(this.balance, balance);
+    }
+
+    /**
+     * Sets every stored field at once without validating them, used by the database to
+     * replay its journal. The values were already validated when they were first set.
+     *
+     * @param name     the username
+     * @param email    the email
+     * @param password the password
+     * @param balance  the balance in cents
+     */
+    void restore(String name, String email, String password, long balance) {
+        this.name = name;
+        this.email = email;
+        this.password = password;
+        this.balance = balance;
     }
 
     // public ArrayList<Item> listItems() {
@@ -126,15 +148,20 @@ public class User implements UserInterface, Serializable {
         User user = (User) o;
 
         return  name.equals(user.getName()) && email.equals(user.getEmail()) && 
-                password.equals(user.getPassword()) && balance == user.getBalance();
+                Objects.equals(password, user.getPassword());
    
     }
 
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, email, password);
+    }
+
     public String toString() {
         return name +
                 ";" + password +
                 ";" + email +
-                ";" + balance;
+                ";" + Money.format(balance);
     }
 
     // follows the format of name password email balance
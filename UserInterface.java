@@ -8,11 +8,11 @@ public interface UserInterface {
     public String getName();
     public String getEmail();
     public String getPassword();
-    public double getBalance();
+    public long getBalance();
     public void setName(String name) throws InvalidAccountOperationException;
     public void setEmail(String Email) throws InvalidAccountOperationException;
     public void setPassword(String password) throws InvalidAccountOperationException;
-    public void setBalance(double balance);
+    public void setBalance(long balance);
     //public ArrayList<Item> listItems();
     public String toString();
 
@@ -0,0 +1,97 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks guarding the balances of users and the state of the items they sell.
+ *
+ * Each user maps to one of a fixed number of locks, so changes to unrelated users run in
+ * parallel while two changes to the same user never overlap. When an operation involves two
+ * users, both stripes are taken in increasing stripe order, so two purchases between the
+ * same pair of users in opposite directions cannot deadlock.
+ *
+ * Users have no numeric id, a user's stripe comes from its identity hash code, which stays
+ * the same for the lifetime of the object even when the name or email changes.
+ */
+public class UserLocks {
+    public static final int DEFAULT_STRIPES = 256;
+
+    /**
+     * The body of a locked section, which may throw a checked exception.
+     */
+    @FunctionalInterface
+    public interface Action<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    private final ReentrantLock[] stripes;
+
+    public UserLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates the locks.
+     *
+     * @param stripes the number of locks, rounded up to a power of two
+     */
+    public UserLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Runs an action while holding the lock of one user.
+     *
+     * @param user   the user
+     * @param action the action
+     * @return the result of the action
+     */
+    public <T, E extends Exception> T withUser(User user, Action<T, E> action) throws E {
+        ReentrantLock lock = stripes[stripeOf(user)];
+        lock.lock();
+        try {
+            return action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs an action while holding the locks of two users, taken in stripe order.
+     * The users may be the same or share a stripe.
+     *
+     * @param first  one user
+     * @param second the other user
+     * @param action the action
+     * @return the result of the action
+     */
+    public <T, E extends Exception> T withUsers(User first, User second, Action<T, E> action) throws E {
+        int a = stripeOf(first);
+        int b = stripeOf(second);
+        if (a == b) {
+            return withUser(first, action);
+        }
+        ReentrantLock low = stripes[Math.min(a, b)];
+        ReentrantLock high = stripes[Math.max(a, b)];
+        low.lock();
+        try {
+            high.lock();
+            try {
+                return action.run();
+            } finally {
+                high.unlock();
+            }
+        } finally {
+            low.unlock();
+        }
+    }
+
+    private int stripeOf(User user) {
+        int h = System.identityHashCode(user);
+        // spread the high bits, identity hashes are not uniform in the low ones
+        h ^= (h >>> 16);
+        return h & (stripes.length - 1);
+    }
+}
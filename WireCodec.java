@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A hand-written binary encoding for the payloads that are sent most often:
+ * item listings and the logged in user. It replaces Java serialization for these,
+ * which wrote the class descriptors and the seller's whole User (password included)
+ * for every single item.
+ *
+ * Every payload starts with the codec version byte. Counts, string lengths, prices and
+ * balances are unsigned varints, money in cents; strings are UTF-8.
+ *
+ * The version is agreed on when a client connects: the client offers the highest
+ * version it knows and the server answers with the one both sides will use.
+ * Version 0 means plain Java serialization.
+ */
+public final class WireCodec {
+    public static final byte SERIALIZATION = 0;
+    public static final byte VERSION = 1;
+
+    private WireCodec() {
+    }
+
+    /**
+     * Picks the codec version to use with a client.
+     *
+     * @param offered the highest version the client supports
+     * @return the version both sides support
+     */
+    public static byte negotiate(int offered) {
+        if (offered < SERIALIZATION) {
+            return SERIALIZATION;
+        }
+        return (byte) Math.min(offered, VERSION);
+    }
+
+    /**
+     * Encodes items as listings: id, name, price, description, seller name and forSale flag.
+     *
+     * @param items the items to encode
+     * @param version the codec version agreed with the client
+     * @return the encoded payload
+     */
+    public static byte[] encodeListings(Collection<Item> items, int version) {
+        Encoder encoder = new Encoder(32 + items.size() * 48);
+        encoder.writeByte(version);
+        encoder.writeVarLong(items.size());
+        for (Item item : items) {
+            encoder.writeVarLong(item.getId());
+            encoder.writeString(item.getItemName());
+            encoder.writeVarLong(item.getPrice());
+            encoder.writeString(item.getDescription());
+            encoder.writeString(item.getOwner().getName());
+            encoder.writeByte(item.isForSale() ? 1 : 0);
+        }
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Decodes a payload written by encodeListings.
+     *
+     * @param payload the encoded payload
+     * @return the listings
+     * @throws IOException if the payload is malformed or uses an unknown version
+     */
+    public static ArrayList<ItemListing> decodeListings(byte[] payload) throws IOException {
+        Decoder decoder = new Decoder(payload);
+        decoder.readVersion();
+        int count = decoder.readCount();
+        ArrayList<ItemListing> listings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = decoder.readVarLong();
+            String name = decoder.readString();
+            long price = decoder.readVarLong();
+            String description = decoder.readString();
+            String seller = decoder.readString();
+            boolean forSale = decoder.readByte() != 0;
+            listings.add(new ItemListing(id, name, price, description, seller, forSale));
+        }
+        return listings;
+    }
+
+    /**
+     * Encodes the account data a client needs after logging in: name, email and balance.
+     * The password is never sent back.
+     *
+     * @param user the user to encode
+     * @param version the codec version agreed with the client
+     * @return the encoded payload
+     */
+    public static byte[] encodeUser(User user, int version) {
+        Encoder encoder = new Encoder(64);
+        encoder.writeByte(version);
+        encoder.writeString(user.getName());
+        encoder.writeString(user.getEmail());
+        encoder.writeVarLong(user.getBalance());
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Decodes a payload written by encodeUser. The returned user has no password.
+     *
+     * @param payload the encoded payload
+     * @return the user
+     * @throws IOException if the payload is malformed or uses an unknown version
+     */
+    public static User decodeUser(byte[] payload) throws IOException {
+        Decoder decoder = new Decoder(payload);
+        decoder.readVersion();
+        String name = decoder.readString();
+        String email = decoder.readString();
+        long balance = decoder.readVarLong();
+        return new User(name, email, null, balance);
+    }
+
+    /**
+     * Appends values to a growable byte array.
+     */
+    private static final class Encoder {
+        private byte[] buffer;
+        private int size;
+
+        Encoder(int capacity) {
+            buffer = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    /**
+     * Reads values from a byte array, checking every read against its end.
+     */
+    private static final class Decoder {
+        private final byte[] buffer;
+        private int position;
+
+        Decoder(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int readVersion() throws IOException {
+            int version = readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported codec version " + version);
+            }
+            return version;
+        }
+
+        int readByte() throws IOException {
+            if (position >= buffer.length) {
+                throw new IOException("Truncated payload");
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readCount() throws IOException {
+            long count = readVarLong();
+            if (count > buffer.length - position) {
+                throw new IOException("Invalid count " + count);
+            }
+            return (int) count;
+        }
+
+        String readString() throws IOException {
+            int length = readCount();
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
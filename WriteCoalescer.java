@@ -0,0 +1,421 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The write path from the Database to its storage backend. Changes made with SYNC
+ * durability go straight to the backend; changes made with COALESCED durability are
+ * collected and handed to it in batches.
+ *
+ * A coalesced change only marks what it changed as dirty. A worker thread wakes up at most
+ * the latency bound after the first change of a batch, persists every dirty user and item
+ * once, however often it changed, and waits for one sync. The change is lost if the server
+ * crashes before that, which is acceptable for profile edits but not for money. A change
+ * the backend fails to take stays dirty, and the worker tries it again after a pause.
+ *
+ * The storage backend must see the changes of one user in order, so a change made with
+ * SYNC durability first persists whatever is still dirty about the users it touches, and
+ * the worker persists a user while holding its UserLocks stripe, like every change does.
+ * Users are remembered with the name and email the backend knows them by, so a backend
+ * that finds users by email or items by owner name is never handed a key it has not seen.
+ */
+public class WriteCoalescer implements Closeable {
+    /**
+     * The name and email the storage backend last saw for a dirty user.
+     */
+    private record Stored(String name, String email) {
+    }
+
+    // how long the worker waits before retrying after a failed flush
+    private static final long RETRY_MILLIS = 1000;
+
+    private final Storage storage;
+    private final UserLocks userLocks;
+    private volatile long latencyNanos;
+
+    // guards everything below, and makes taking a dirty entry and persisting it one step
+    private final Object monitor = new Object();
+    private final IdentityHashMap<User, Stored> dirtyUsers = new IdentityHashMap<>();
+    // dirty items, true when the item was deleted
+    private final IdentityHashMap<Item, Boolean> dirtyItems = new IdentityHashMap<>();
+    private long firstDirty;
+    private long flushes;
+    private long coalesced;
+    private boolean closed;
+    private Thread worker;
+
+    /**
+     * Creates a coalescer. The worker thread starts with the first dirty change.
+     *
+     * @param storage      the backend changes are persisted to
+     * @param userLocks    the stripes guarding the users
+     * @param latencyMillis how long a coalesced change may wait before it is persisted
+     * @throws IllegalArgumentException if the bound is negative
+     */
+    public WriteCoalescer(Storage storage, UserLocks userLocks, long latencyMillis) {
+        if (latencyMillis < 0) {
+            throw new IllegalArgumentException("Latency bound cannot be negative");
+        }
+        this.storage = storage;
+        this.userLocks = userLocks;
+        this.latencyNanos = latencyMillis * 1_000_000;
+    }
+
+    /**
+     * Sets how long a coalesced change may wait before it is persisted. A longer bound
+     * merges more changes into one sync.
+     *
+     * @param latencyMillis the bound in milliseconds, 0 to persist as soon as possible
+     * @throws IllegalArgumentException if the bound is negative
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        if (latencyMillis < 0) {
+            throw new IllegalArgumentException("Latency bound cannot be negative");
+        }
+        latencyNanos = latencyMillis * 1_000_000;
+    }
+
+    /**
+     * Marks a user as changed. The caller must hold the user's stripe and must call this
+     * with the name and email the user had before the change.
+     *
+     * @param user     the user
+     * @param oldName  the name before the change
+     * @param oldEmail the email before the change
+     */
+    public void markUser(User user, String oldName, String oldEmail) {
+        synchronized (monitor) {
+            changed(dirtyUsers.putIfAbsent(user, new Stored(oldName, oldEmail)) == null);
+        }
+    }
+
+    /**
+     * Marks an item as created, changed or deleted. The caller must hold the stripe of
+     * the item's owner.
+     *
+     * @param item    the item
+     * @param deleted whether the item was deleted
+     */
+    public void markItem(Item item, boolean deleted) {
+        synchronized (monitor) {
+            changed(dirtyItems.put(item, deleted) == null);
+        }
+    }
+
+    /**
+     * Persists a user now with its whole current state, after whatever was still dirty
+     * about it. The caller must hold the user's stripe.
+     *
+     * @param user     the user
+     * @param oldEmail the email before the change being persisted
+     * @return the token of the change
+     */
+    public long persistUser(User user, String oldEmail) {
+        synchronized (monitor) {
+            Stored stored = dirtyUsers.remove(user);
+            return stored != null ? persist(user, stored) : storage.persistUser(oldEmail, user);
+        }
+    }
+
+    /**
+     * Persists a new or changed item now, after its owner if the owner is dirty. The
+     * caller must hold the owner's stripe.
+     *
+     * @param item the item
+     * @return the token of the change
+     */
+    public long persistItem(Item item) {
+        synchronized (monitor) {
+            dirtyItems.remove(item);
+            settleUser(item.getOwner());
+            return storage.persistItem(item);
+        }
+    }
+
+    /**
+     * Persists the deletion of an item now. The caller must hold the owner's stripe.
+     *
+     * @param item the item
+     * @return the token of the change
+     */
+    public long deleteItem(Item item) {
+        synchronized (monitor) {
+            dirtyItems.remove(item);
+            settleUser(item.getOwner());
+            return storage.deleteItem(item);
+        }
+    }
+
+    /**
+     * Persists the deletion of a user and its items now. The caller must hold the user's
+     * stripe.
+     *
+     * @param user  the user
+     * @param items the items deleted with it
+     * @return the token of the change
+     */
+    public long deleteUser(User user, Collection<Item> items) {
+        synchronized (monitor) {
+            settleUser(user);
+            for (Item item : items) {
+                dirtyItems.remove(item);
+            }
+            return storage.deleteUser(user, items);
+        }
+    }
+
+    /**
+     * Persists a sale now, after the buyer and seller if they are dirty. The caller must
+     * hold both stripes.
+     *
+     * @param item   the sold item
+     * @param buyer  the buyer
+     * @param seller the seller
+     * @return the token of the change
+     */
+    public long recordSale(Item item, User buyer, User seller) {
+        synchronized (monitor) {
+            dirtyItems.remove(item);
+            settleUser(buyer);
+            settleUser(seller);
+            return storage.recordSale(item, buyer, seller);
+        }
+    }
+
+    /**
+     * Persists whatever is still dirty about a user. The caller must hold the user's
+     * stripe.
+     *
+     * @param user the user
+     * @return the token of the change, or 0 if the user was not dirty
+     */
+    private long settleUser(User user) {
+        synchronized (monitor) {
+            Stored stored = dirtyUsers.remove(user);
+            return stored == null ? 0 : persist(user, stored);
+        }
+    }
+
+    /**
+     * Persists a user just taken out of the dirty users, putting it back if the backend
+     * fails, so the change is not lost. The caller must hold monitor.
+     *
+     * @param user   the user
+     * @param stored the name and email the backend knows the user by
+     * @return the token of the change
+     */
+    private long persist(User user, Stored stored) {
+        try {
+            return storage.persistUser(stored.email(), user);
+        } catch (RuntimeException e) {
+            dirtyUsers.putIfAbsent(user, stored);
+            throw e;
+        }
+    }
+
+    /**
+     * Persists the dirty user that the backend still knows by a name or email, so the
+     * name or email can be given to someone else. The caller must hold the write lock,
+     * which keeps every name and email from changing.
+     *
+     * @param name  a name about to be taken, or null
+     * @param email an email about to be taken, or null
+     * @return the token of the change, or 0 if no dirty user had them
+     */
+    public long settleClaim(String name, String email) {
+        synchronized (monitor) {
+            for (Map.Entry<User, Stored> entry : dirtyUsers.entrySet()) {
+                Stored stored = entry.getValue();
+                if (stored.name().equals(name) || stored.email().equals(email)) {
+                    User user = entry.getKey();
+                    dirtyUsers.remove(user);
+                    return persist(user, stored);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Persists every dirty user whose name or email changed since the backend last saw it,
+     * so a snapshot copied next agrees with the backend on every name and email. The caller
+     * must hold the database lock, which keeps names and emails from changing; the users'
+     * stripes are not needed, a change of anything else made meanwhile is persisted again
+     * after this.
+     */
+    public void settleKeys() {
+        synchronized (monitor) {
+            Iterator<Map.Entry<User, Stored>> entries = dirtyUsers.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<User, Stored> entry = entries.next();
+                User user = entry.getKey();
+                Stored stored = entry.getValue();
+                if (!stored.name().equals(user.getName()) || !stored.email().equals(user.getEmail())) {
+                    entries.remove();
+                    persist(user, stored);
+                }
+            }
+        }
+    }
+
+    /**
+     * Persists every dirty user and item and waits until they are durable.
+     *
+     * @throws IOException if the backend could not write them
+     */
+    public void flush() throws IOException {
+        ArrayList<User> users;
+        ArrayList<Item> items;
+        synchronized (monitor) {
+            if (dirtyUsers.isEmpty() && dirtyItems.isEmpty()) {
+                return;
+            }
+            users = new ArrayList<>(dirtyUsers.keySet());
+            items = new ArrayList<>(dirtyItems.keySet());
+            coalesced += users.size() + items.size();
+            flushes++;
+        }
+        long token = 0;
+        for (User user : users) {
+            token = Math.max(token, userLocks.withUser(user, () -> settleUser(user)));
+        }
+        for (Item item : items) {
+            token = Math.max(token, userLocks.withUser(item.getOwner(), () -> settleItem(item)));
+        }
+        storage.awaitDurable(token);
+    }
+
+    /**
+     * Returns how many batches the worker and explicit flushes have persisted.
+     *
+     * @return the number of flushes
+     */
+    public long getFlushCount() {
+        synchronized (monitor) {
+            return flushes;
+        }
+    }
+
+    /**
+     * Returns how many dirty users and items the flushes have persisted, each counted once
+     * per flush however often it changed.
+     *
+     * @return the number of persisted users and items
+     */
+    public long getCoalescedCount() {
+        synchronized (monitor) {
+            return coalesced;
+        }
+    }
+
+    /**
+     * Stops the worker and persists everything still dirty.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (monitor) {
+            closed = true;
+            monitor.notifyAll();
+            thread = worker;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Persists a dirty item, after its owner so the backend knows the owner by its current
+     * name. The caller must hold the owner's stripe.
+     *
+     * @param item the item
+     * @return the token of the change, or 0 if the item was not dirty
+     */
+    private long settleItem(Item item) {
+        synchronized (monitor) {
+            Boolean deleted = dirtyItems.remove(item);
+            if (deleted == null) {
+                return 0;
+            }
+            try {
+                settleUser(item.getOwner());
+                return deleted ? storage.deleteItem(item) : storage.persistItem(item);
+            } catch (RuntimeException e) {
+                // keep the change for the next flush
+                dirtyItems.putIfAbsent(item, deleted);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Notes a new dirty change and starts the worker if it is not running, or no longer
+     * running after an unexpected error. A batch starts when the first entry is added;
+     * changing an entry that is already dirty does not move its deadline. The caller must
+     * hold monitor.
+     *
+     * @param added whether the change added a new dirty entry
+     */
+    private void changed(boolean added) {
+        if ((worker == null || !worker.isAlive()) && !closed) {
+            worker = new Thread(this::flushLoop, "database-coalescer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        if (!added || dirtyUsers.size() + dirtyItems.size() != 1) {
+            // the worker already waits for this batch
+            return;
+        }
+        firstDirty = System.nanoTime();
+        monitor.notifyAll();
+    }
+
+    /**
+     * The worker thread: waits for a dirty change, then until the latency bound has passed
+     * since it, and flushes everything dirty by then.
+     */
+    private void flushLoop() {
+        while (true) {
+            synchronized (monitor) {
+                try {
+                    while (!closed && dirtyUsers.isEmpty() && dirtyItems.isEmpty()) {
+                        monitor.wait();
+                    }
+                    long wait;
+                    while (!closed && (wait = firstDirty + latencyNanos - System.nanoTime()) > 0) {
+                        monitor.wait(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                flush();
+            } catch (IOException | RuntimeException e) {
+                // what could not be handed to the backend is still dirty, retry after a pause
+                System.out.println("Error saving coalesced changes: " + e.getMessage());
+                synchronized (monitor) {
+                    try {
+                        if (!closed) {
+                            monitor.wait(RETRY_MILLIS);
+                        }
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}